@@ -0,0 +1,130 @@
+/**
+ * Window bookkeeping shared by the controllers: slow start, Reno-style
+ * congestion avoidance, the timeout response and event reporting.
+ */
+public abstract class AbstractCongestionController implements CongestionController {
+
+    protected int mss = Constants.MAX_SEGMENT_SIZE;
+
+    protected int congestionWindow = mss; // Start with 1 MSS
+    protected int slowStartThreshold = 10 * mss; // Initial high value
+    protected CongestionState state = CongestionState.SLOW_START;
+    protected int bytesSinceLastIncrease = 0;
+
+    protected double latestRtt = 0;
+    protected double minRtt = Double.MAX_VALUE;
+
+    private Listener listener;
+
+    @Override
+    public synchronized void onTimeout() {
+        int oldCongestionWindow = congestionWindow;
+        slowStartThreshold = lossThreshold();
+        congestionWindow = mss;
+        state = CongestionState.SLOW_START;
+        bytesSinceLastIncrease = 0;
+
+        Log.info("[CONGESTION] Timeout - Resetting to Slow Start (" + getName() + ")");
+        Log.info("[CONGESTION] Old CWND: " + oldCongestionWindow + " bytes");
+        Log.info("[CONGESTION] New ssthresh: " + slowStartThreshold + " bytes (" +
+                (slowStartThreshold / mss) + " MSS)");
+        Log.info("[CONGESTION] New CWND: " + congestionWindow + " bytes");
+        emit("TIMEOUT");
+    }
+
+    @Override
+    public synchronized void setMss(int mss) {
+        this.mss = mss;
+        congestionWindow = mss;
+        slowStartThreshold = 10 * mss;
+    }
+
+    @Override
+    public synchronized void onRttSample(double rttMs) {
+        latestRtt = rttMs;
+        minRtt = Math.min(minRtt, rttMs);
+    }
+
+    @Override
+    public synchronized int getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    @Override
+    public synchronized int getSlowStartThreshold() {
+        return slowStartThreshold;
+    }
+
+    @Override
+    public synchronized CongestionState getState() {
+        return state;
+    }
+
+    @Override
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the ssthresh to use after a loss: half the window, at least one MSS.
+     */
+    protected int lossThreshold() {
+        return Math.max(congestionWindow / 2, mss);
+    }
+
+    /**
+     * Exponential growth: increases CWND by the bytes acknowledged.
+     */
+    protected void slowStart(int ackedBytes) {
+        congestionWindow += ackedBytes;
+        if (Log.DEBUG) {
+            Log.debug("[CONGESTION] Slow Start - CWND increased to " + congestionWindow +
+                    " bytes (" + (congestionWindow / mss) + " MSS)");
+        }
+        emit("SLOW_START_INCREASE");
+
+        if (congestionWindow >= slowStartThreshold) {
+            state = CongestionState.CONGESTION_AVOIDANCE;
+            bytesSinceLastIncrease = 0;
+            Log.info("[CONGESTION] Switching to Congestion Avoidance (CWND >= ssthresh)");
+            emit("TRANSITION_TO_CA");
+        }
+    }
+
+    /**
+     * Linear growth: increases CWND by one MSS once a full window has been acknowledged.
+     */
+    protected void congestionAvoidance(int ackedBytes) {
+        bytesSinceLastIncrease += ackedBytes;
+
+        if (bytesSinceLastIncrease >= congestionWindow) {
+            congestionWindow += mss;
+            bytesSinceLastIncrease = 0;
+            if (Log.DEBUG) {
+                Log.debug("[CONGESTION] Congestion Avoidance - CWND increased to " +
+                        congestionWindow + " bytes (" + (congestionWindow / mss) + " MSS)");
+            }
+            emit("CA_INCREASE");
+        } else if (Log.DEBUG) {
+            Log.debug("[CONGESTION] CA Progress: " + bytesSinceLastIncrease +
+                    "/" + congestionWindow + " bytes toward next increase");
+        }
+    }
+
+    /**
+     * Keeps the window at one MSS or more and reports the event.
+     */
+    protected void emit(String event) {
+        if (congestionWindow < mss) {
+            congestionWindow = mss;
+        }
+        if (listener != null) {
+            listener.onCongestionEvent(event, this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Model-based controller in the style of BBR. Rather than reacting to loss, it
+ * estimates the bottleneck bandwidth (windowed max of delivery rate) and the
+ * round-trip propagation delay (windowed min RTT). It sends at about their
+ * product: the pacing rate is gain * bandwidth, and the window is
+ * CWND_GAIN * BDP. The gain cycles through the phases:
+ * <ul>
+ * <li>STARTUP: doubles the sending rate each round until bandwidth stops growing.</li>
+ * <li>DRAIN: empties the queue STARTUP built up.</li>
+ * <li>PROBE_BW: probes up and down around the estimate.</li>
+ * <li>PROBE_RTT: briefly shrinks the window to measure the min RTT again.</li>
+ * </ul>
+ */
+public class BbrController extends AbstractCongestionController {
+
+    private enum Mode {
+        STARTUP, DRAIN, PROBE_BW, PROBE_RTT
+    }
+
+    private static final double HIGH_GAIN = 2.885; // 2/ln(2)
+    private static final double CWND_GAIN = 2.0;
+    private static final double[] PROBE_BW_GAINS = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+    private static final int BANDWIDTH_FILTER_ROUNDS = 10;
+    private static final long MIN_RTT_WINDOW_NANOS = 10_000_000_000L;
+    private static final long PROBE_RTT_NANOS = 200_000_000L;
+
+    private Mode mode = Mode.STARTUP;
+    private double pacingGain = HIGH_GAIN;
+
+    // Delivery-rate samples, one per round trip, for the windowed max
+    private final double[] bandwidthSamples = new double[BANDWIDTH_FILTER_ROUNDS];
+    private long roundCount = 0;
+    private long delivered = 0;
+    private long roundStartDelivered = 0;
+    private long roundEndDelivered = 0;
+    private long roundStartNanos = System.nanoTime();
+
+    // STARTUP exits once bandwidth grows by less than 25% for three rounds
+    private double fullBandwidth = 0;
+    private int fullBandwidthRounds = 0;
+
+    private double minRttMs = Double.MAX_VALUE;
+    private long minRttStampNanos = System.nanoTime();
+    private long probeRttDoneNanos = 0;
+
+    private int cycleIndex = 0;
+    private long cycleStartNanos = 0;
+
+    @Override
+    public String getName() {
+        return "BBR";
+    }
+
+    @Override
+    public synchronized void onAck(long ackNum, int ackedBytes, long bytesInFlight) {
+        long now = System.nanoTime();
+        delivered += ackedBytes;
+
+        if (delivered >= roundEndDelivered) {
+            endRound(now, bytesInFlight);
+        }
+
+        switch (mode) {
+            case STARTUP:
+                if (fullBandwidthRounds >= 3) {
+                    enterMode(Mode.DRAIN, 1 / HIGH_GAIN);
+                }
+                break;
+            case DRAIN:
+                if (bytesInFlight <= bdp()) {
+                    enterProbeBandwidth(now);
+                }
+                break;
+            case PROBE_BW:
+                if (now - cycleStartNanos > rttNanos()) {
+                    cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+                    cycleStartNanos = now;
+                    pacingGain = PROBE_BW_GAINS[cycleIndex];
+                }
+                break;
+            case PROBE_RTT:
+                if (now >= probeRttDoneNanos) {
+                    minRttStampNanos = now;
+                    enterProbeBandwidth(now);
+                }
+                break;
+        }
+
+        if (mode != Mode.PROBE_RTT && minRttMs != Double.MAX_VALUE && now - minRttStampNanos > MIN_RTT_WINDOW_NANOS) {
+            probeRttDoneNanos = now + Math.max(PROBE_RTT_NANOS, rttNanos());
+            enterMode(Mode.PROBE_RTT, 1);
+        }
+
+        updateWindow(ackedBytes);
+    }
+
+    @Override
+    public synchronized boolean onDupAck(long ackNum, int dupAckCount, long bytesInFlight) {
+        // Loss is not a congestion signal here; just repair it
+        return dupAckCount >= Constants.FAST_RETRANSMIT_THRESHOLD;
+    }
+
+    @Override
+    public synchronized void onRttSample(double rttMs) {
+        super.onRttSample(rttMs);
+        if (rttMs <= minRttMs || System.nanoTime() - minRttStampNanos > MIN_RTT_WINDOW_NANOS) {
+            minRttMs = rttMs;
+            minRttStampNanos = System.nanoTime();
+        }
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        // The model still holds; the window is restored from it on the next ACK
+        congestionWindow = mss;
+        Log.info("[CONGESTION] Timeout (BBR) - CWND collapsed to 1 MSS until the next ACK");
+        emit("TIMEOUT");
+    }
+
+    @Override
+    public synchronized long getPacingRate() {
+        double bandwidth = maxBandwidth();
+        return bandwidth > 0 ? (long) (pacingGain * bandwidth) : 0;
+    }
+
+    @Override
+    public synchronized CongestionState getState() {
+        return mode == Mode.STARTUP ? CongestionState.SLOW_START : CongestionState.CONGESTION_AVOIDANCE;
+    }
+
+    private void endRound(long now, long bytesInFlight) {
+        long elapsed = now - roundStartNanos;
+        if (elapsed > 0 && delivered > roundStartDelivered) {
+            double sample = (delivered - roundStartDelivered) * 1e9 / elapsed;
+            bandwidthSamples[(int) (roundCount % BANDWIDTH_FILTER_ROUNDS)] = sample;
+        }
+        roundCount++;
+        bandwidthSamples[(int) (roundCount % BANDWIDTH_FILTER_ROUNDS)] = 0;
+
+        // The next round ends once the data in flight right now is delivered
+        roundStartNanos = now;
+        roundStartDelivered = delivered;
+        roundEndDelivered = delivered + Math.max(bytesInFlight, mss);
+
+        if (mode == Mode.STARTUP) {
+            double bandwidth = maxBandwidth();
+            if (bandwidth >= fullBandwidth * 1.25) {
+                fullBandwidth = bandwidth;
+                fullBandwidthRounds = 0;
+            } else {
+                fullBandwidthRounds++;
+            }
+        }
+    }
+
+    private void updateWindow(int ackedBytes) {
+        int oldCongestionWindow = congestionWindow;
+        if (mode == Mode.PROBE_RTT) {
+            congestionWindow = minWindow();
+        } else if (maxBandwidth() == 0) {
+            // No model yet: grow like slow start
+            congestionWindow += ackedBytes;
+        } else {
+            congestionWindow = (int) Math.max(CWND_GAIN * bdp(), minWindow());
+        }
+
+        if (congestionWindow / mss != oldCongestionWindow / mss) {
+            if (Log.DEBUG) {
+                Log.debug("[CONGESTION] BBR " + mode + " - CWND " + congestionWindow + " bytes (" +
+                        (congestionWindow / mss) + " MSS) | BtlBw: " + (long) maxBandwidth() + " B/s" +
+                        " | RTprop: " + String.format("%.2f", minRttMs) + "ms" +
+                        " | Pacing gain: " + String.format("%.2f", pacingGain));
+            }
+            emit(mode == Mode.STARTUP ? "SLOW_START_INCREASE" : "CA_INCREASE");
+        }
+    }
+
+    private void enterProbeBandwidth(long now) {
+        // Start the cycle at a random phase other than the probe-down one
+        cycleIndex = (int) (now % (PROBE_BW_GAINS.length - 1));
+        if (cycleIndex >= 1) {
+            cycleIndex++;
+        }
+        cycleStartNanos = now;
+        enterMode(Mode.PROBE_BW, PROBE_BW_GAINS[cycleIndex]);
+    }
+
+    private void enterMode(Mode next, double gain) {
+        Log.info("[CONGESTION] BBR " + mode + " -> " + next +
+                " | BtlBw: " + (long) maxBandwidth() + " B/s | RTprop: " + String.format("%.2f", minRttMs) + "ms");
+        mode = next;
+        pacingGain = gain;
+        emit("BBR_" + next);
+    }
+
+    private double maxBandwidth() {
+        double max = 0;
+        for (double sample : bandwidthSamples) {
+            max = Math.max(max, sample);
+        }
+        return max;
+    }
+
+    private long rttNanos() {
+        // 1 ms until the first sample, and never less: loopback samples of a
+        // few microseconds would advance the gain cycle every couple of packets
+        double rttMs = minRttMs == Double.MAX_VALUE ? 1 : Math.max(minRttMs, 1);
+        return (long) (rttMs * 1_000_000);
+    }
+
+    private int minWindow() {
+        return 4 * mss;
+    }
+
+    private double bdp() {
+        return maxBandwidth() * rttNanos() / 1e9;
+    }
+}
@@ -0,0 +1,110 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Measures what integrity checks cost per segment: computing the CRC32C
+ * checksum on send, verifying it on receipt, and the SHA-256 file digest,
+ * at several segment sizes for heap and direct (pooled) packets.
+ *
+ * Usage: java ChecksumBenchmark [seconds per case]
+ */
+public class ChecksumBenchmark {
+
+    private static final int[] SEGMENT_SIZES = { 64, Constants.MAX_SEGMENT_SIZE, 1460, 8960 };
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+        long budgetNanos = (long) (seconds * 1e9);
+
+        System.out.println(String.format("%-8s %8s %12s %12s %12s %10s", "buffer", "payload", "update_ns",
+                "verify_ns", "sha256_ns", "crc_GB/s"));
+        for (boolean direct : new boolean[] { false, true }) {
+            for (int size : SEGMENT_SIZES) {
+                Packet packet = segment(size, direct);
+                // Warm up each path before timing it
+                timeUpdate(packet, budgetNanos / 4);
+                timeVerify(packet, budgetNanos / 4);
+                timeDigest(packet, budgetNanos / 4);
+
+                double updateNs = timeUpdate(packet, budgetNanos);
+                double verifyNs = timeVerify(packet, budgetNanos);
+                double digestNs = timeDigest(packet, budgetNanos);
+                System.out.println(String.format("%-8s %8d %12.1f %12.1f %12.1f %10.2f", direct ? "direct" : "heap",
+                        size, updateNs, verifyNs, digestNs, packet.getPacketLength() / updateNs));
+            }
+        }
+    }
+
+    private static Packet segment(int payloadSize, boolean direct) {
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+
+        int capacity = Packet.MAX_HEADER_SIZE + payloadSize;
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        Packet packet = new Packet(buffer, 0, 20);
+        packet.clear();
+        packet.setSourcePort(Constants.CLIENT_PORT);
+        packet.setDestinationPort(Constants.SERVER_PORT);
+        packet.setSequenceNumber(123456);
+        packet.setAckNumber(654321);
+        packet.setAckFlag(true);
+        packet.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        packet.addTimestampsOption(1, 2);
+        packet.setPayload(payload, 0, payloadSize);
+        return packet;
+    }
+
+    private static double timeUpdate(Packet packet, long budgetNanos) {
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                packet.setSequenceNumber(iterations + i);
+                packet.updateChecksum();
+            }
+            iterations += 1000;
+        } while ((elapsed = System.nanoTime() - start) < budgetNanos);
+        return (double) elapsed / iterations;
+    }
+
+    private static double timeVerify(Packet packet, long budgetNanos) {
+        packet.updateChecksum();
+        long iterations = 0;
+        int failures = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                if (!packet.verifyChecksum()) {
+                    failures++;
+                }
+            }
+            iterations += 1000;
+        } while ((elapsed = System.nanoTime() - start) < budgetNanos);
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " checksum failures on an unchanged packet");
+        }
+        return (double) elapsed / iterations;
+    }
+
+    private static double timeDigest(Packet packet, long budgetNanos) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer payload = packet.getBuffer().duplicate();
+        int from = packet.getPayloadOffset();
+        int to = from + packet.getPayloadLength();
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 100; i++) {
+                payload.limit(to).position(from);
+                digest.update(payload);
+            }
+            iterations += 100;
+        } while ((elapsed = System.nanoTime() - start) < budgetNanos);
+        digest.digest();
+        return (double) elapsed / iterations;
+    }
+}
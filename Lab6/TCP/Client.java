@@ -1,239 +1,439 @@
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Client {
 
-    // TCP Variant Selection
-    private enum TcpVariant {
-        TAHOE, RENO
-    }
-
-    private TcpVariant tcpVariant = TcpVariant.RENO; // Default to Reno
-
-    private static class CwndLogEntry {
-        public final long timestamp;
-        public final int packetNumber;
-        public final int cwndValue;
-        public final int ssthresh;
-        public final String event;
-        public final CongestionState state;
-        public final double RTT;
-
-        public CwndLogEntry(long timestamp, int packetNumber, int cwndValue, String event, CongestionState state,
-                int ssthresh, double rtt) {
-            this.timestamp = timestamp;
-            this.packetNumber = packetNumber;
-            this.cwndValue = cwndValue;
-            this.ssthresh = ssthresh;
-            this.event = event;
-            this.state = state;
-            this.RTT = rtt;
-        }
-    }
-
-    private List<CwndLogEntry> cwndLog = new ArrayList<>();
-    private long startTime;
+    // Live metrics, summed over every connection in this JVM (Metrics)
+    private static final Metrics.Counter SEGMENTS_SENT = Metrics.counter("tcp_client_segments_sent_total",
+            "Data segments sent, including retransmissions and simulated losses");
+    private static final Metrics.Counter BYTES_ACKED = Metrics.counter("tcp_client_bytes_acked_total",
+            "Payload bytes acknowledged by the server");
+    private static final Metrics.Counter TIMEOUT_RETRANSMITS = Metrics.counter("tcp_client_retransmits_total",
+            "Segments retransmitted, by what triggered it", "kind", "timeout");
+    private static final Metrics.Counter FAST_RETRANSMITS = Metrics.counter("tcp_client_retransmits_total",
+            "Segments retransmitted, by what triggered it", "kind", "fast");
+    private static final Metrics.Counter DUPLICATE_ACKS = Metrics.counter("tcp_client_duplicate_acks_total",
+            "Duplicate ACKs received");
+    private static final Metrics.Histogram RTT = Metrics.histogram("tcp_client_rtt_seconds",
+            "RTT samples", 4, 25, 1e-6);
+    // Gauges of the open connection, labelled with its local port
+    private final List<Metrics.Function> connectionMetrics = new ArrayList<>();
+    private long bytesAcked = 0;
+
+    // CWND history of the current connection, streamed to cwnd_log_<time>.csv
+    private CwndRecorder cwndRecorder;
 
     private ConnectionManager connectionManager = new ConnectionManager();
     private Random random = new Random();
-    private long sequenceNumber;
+    // Next sequence to send; written by the sender, read by the ACK receiver when recovery starts
+    private volatile long sequenceNumber;
     private long ackNumber;
-    private int serverWindowSize;
-
-    private Map<Long, UnackedPacket> unackedPackets = new ConcurrentHashMap<>();
-    private Timer retransmissionTimer = new Timer(true);
-    private long baseSequenceNumber;
+    // Receive window from the latest ACK, already scaled; written by the ACK receiver
+    private volatile int serverWindowSize;
+    private int serverWindowScale;
+
+    private final SendBuffer unackedPackets = new SendBuffer();
+    private final PacketPool packetPool = new PacketPool(Constants.PACKET_POOL_SIZE);
+    // Set by the sender, read by retransmissions on the timer and ACK threads
+    private volatile FileSegmentSource fileSource;
+    // Held while a retransmission reads from fileSource and while the source is closed
+    private final Object sourceLock = new Object();
+    private long dataStartSequence;
+    // Header segment of the file being sent, rebuilt from these if it needs resending
+    private long fileHeaderSequence = -1;
+    private byte[] fileHeaderPayload;
+    private boolean fileHeaderStripe;
+    private int filesSent = 0;
+
+    private Socket socket;
+    private DataOutputStream out;
+    private RetransmissionTimerWheel retransmissionTimers;
+    private volatile long baseSequenceNumber;
     private volatile boolean ackReceiverRunning = true;
+    private volatile boolean transferFailed = false;
+    private volatile Packet finAckPacket;
+
+    // Signalled by the ACK receiver whenever the window may have opened
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private final Condition windowOpened = windowLock.newCondition();
 
-    private static final double PACKET_LOSS_RATE = 0.05;
+    private double packetLossRate = Constants.PACKET_LOSS_RATE;
     private int totalPacketsSent = 0;
     private int packetsDropped = 0;
+    private int packetsCorrupted = 0;
+    private int corruptAcksDropped = 0;
+    private int staleAcksDropped = 0;
+
+    // Digest of every data byte delivered on this connection; null unless -Dtcp.fileDigest=true
+    private final DeliveredDigest deliveredDigest = Constants.FILE_DIGEST_ENABLED ? new DeliveredDigest() : null;
 
     private long lastAckReceived = -1;
     private int duplicateAckCount = 0;
-    private static final int FAST_RETRANSMIT_THRESHOLD = 3;
+    private int acksReceived = 0;
+    private Thread ackThread;
 
-    private double estimatedRTT = 1000.0;
-    private double devRTT = 0.0;
+    // Written by the ACK receiver, read by the sender for pacing
+    private volatile double estimatedRTT = 1000.0;
+    private volatile double devRTT = 0.0;
     private static final double ALPHA = 0.125;
     private static final double BETA = 0.25;
 
-    // Congestion Control Variables
-    private int congestionWindow = Constants.MAX_SEGMENT_SIZE; // Start with 1 MSS
-    private int slowStartThreshold = 730 * 10; // Initial high value
+    // Congestion control algorithm, chosen with -Dtcp.cc or the first argument
+    private final CongestionController congestionController;
+    private TokenBucket sendPacer;
+    private long pacingWaits = 0;
+    private long pacingWaitNanos = 0;
 
-    private enum CongestionState {
-        SLOW_START, CONGESTION_AVOIDANCE, FAST_RECOVERY
-    }
+    // Selective acknowledgment (RFC 2018), negotiated during the handshake
+    private boolean sackEnabled;
+    private long sackRecoveryPoint = -1;
+    private int sackRetransmits = 0;
 
-    private CongestionState congestionState = CongestionState.SLOW_START;
-    // private int fastRecoveryInflight = 0;
-    private long fastRecoverySequence = -1;
-    private int packetsSinceLastIncrease = 0;
+    // Batches each window burst into one socket write
+    private PacketWriter packetWriter;
 
-    private DataOutputStream currentOutputStream;
+    public Client(CongestionController congestionController) {
+        this.congestionController = congestionController;
+        congestionController.setListener((event, controller) -> logCwnd(event));
+    }
 
     public static void main(String[] args) {
-        System.setOut(new PrintStream(System.out, true));
-        Client client = new Client();
-        client.selectTcpVariant(); // Add variant selection
-        client.connect();
+        String algorithm = args.length > 0 ? args[0] : Constants.CONGESTION_CONTROL;
+        Client client = new Client(CongestionController.create(algorithm));
+        if (args.length > 1) {
+            // Any further arguments are files, sent one after another over a single connection
+            List<Path> files = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                files.add(Paths.get(args[i]));
+            }
+            client.sendFiles(files);
+        } else {
+            client.connect();
+        }
     }
 
-    private void selectTcpVariant() {
-        Scanner scanner = new Scanner(System.in);
-
-        System.out.println("=== TCP Congestion Control Variant Selection ===");
-        System.out.println("1. TCP Tahoe (no fast recovery)");
-        System.out.println("2. TCP Reno (with fast recovery)");
-        System.out.print("Enter your choice (1 or 2): ");
-
-        while (true) {
-            try {
-                int choice = scanner.nextInt();
+    /**
+     * Sends Constants.FILE_PATH over a new connection and closes it.
+     */
+    public void connect() {
+        try {
+            open();
+            sendFile(Paths.get(Constants.FILE_PATH), null);
+        } catch (IOException e) {
+            Log.error("[ERROR] Connection error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error("[ERROR] Thread interrupted: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
 
-                if (choice == 1) {
-                    tcpVariant = TcpVariant.TAHOE;
-                    System.out.println("[TCP-VARIANT] Selected: TCP Tahoe");
-                    System.out.println("[TCP-VARIANT] Fast recovery: DISABLED");
-                    System.out.println("[TCP-VARIANT] Triple duplicate ACKs will trigger timeout behavior");
-                    break;
-                } else if (choice == 2) {
-                    tcpVariant = TcpVariant.RENO;
-                    System.out.println("[TCP-VARIANT] Selected: TCP Reno");
-                    System.out.println("[TCP-VARIANT] Fast recovery: ENABLED");
-                    System.out.println(
-                            "[TCP-VARIANT] Triple duplicate ACKs will trigger fast retransmit and fast recovery");
+    /**
+     * Sends each file under its own name over one connection, then closes it.
+     */
+    public void sendFiles(List<Path> files) {
+        try {
+            open();
+            for (Path file : files) {
+                if (!sendFile(file)) {
                     break;
-                } else {
-                    System.out.print("Invalid choice. Please enter 1 or 2: ");
                 }
-            } catch (Exception e) {
-                System.out.print("Invalid input. Please enter 1 or 2: ");
-                scanner.nextLine(); // Clear invalid input
             }
+        } catch (IOException e) {
+            Log.error("[ERROR] Connection error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error("[ERROR] Thread interrupted: " + e.getMessage());
+        } finally {
+            close();
         }
+    }
 
-        System.out.println("================================================\n");
+    /**
+     * Connects and completes the handshake, leaving the connection ready for sendFile.
+     */
+    public void open() throws IOException {
+        socket = connectionManager.connect();
+        // Through the emulated link, if one is configured; the handshake above went direct
+        out = new DataOutputStream(LinkEmulator.wrap(socket.getOutputStream(), "client->server"));
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), Constants.BUFFER_SIZE));
+
+        // Wraps out so its writes and the FIN exchange share one lock
+        PacketWriter writer = new PacketWriter(out);
+        packetWriter = writer;
+        retransmissionTimers = new RetransmissionTimerWheel(seqNum -> retransmitPacket(seqNum, writer));
+        cwndRecorder = new CwndRecorder("cwnd_log_" + System.currentTimeMillis() + ".csv");
+        registerConnectionMetrics(String.valueOf(socket.getLocalPort()));
+
+        sequenceNumber = connectionManager.getSequenceNumber();
+        ackNumber = connectionManager.getAckNumber();
+        serverWindowSize = connectionManager.getServerWindowSize();
+        serverWindowScale = connectionManager.getServerWindowScale();
+        baseSequenceNumber = sequenceNumber;
+        sackEnabled = connectionManager.isSackPermitted();
+        congestionController.setMss(connectionManager.getMss());
+
+        Log.info("[TCP-VARIANT] Running with: " + congestionController.getName());
+
+        // Start ACK receiver thread BEFORE sending any data
+        ackThread = new Thread(() -> handleAcks(in));
+        ackThread.setDaemon(true);
+        ackThread.start();
     }
 
-    public void connect() {
-        try (Socket socket = connectionManager.connect();
-                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                DataInputStream in = new DataInputStream(socket.getInputStream())) {
+    /**
+     * Sends a file under its own name on the open connection. The congestion
+     * window and RTT estimate carry over from earlier files, so later files
+     * skip the handshake and start from where the connection left off.
+     * Returns false if the file could not be delivered completely.
+     */
+    public boolean sendFile(Path path) throws IOException, InterruptedException {
+        return sendFile(path, path.getFileName().toString());
+    }
+
+    /**
+     * Sends length bytes of a file from offset as one stripe of a striped
+     * transfer. The server writes them at that offset of the output file it
+     * shares with the transfer's other connections.
+     */
+    public boolean sendStripe(Path path, long transferId, long offset, long length)
+            throws IOException, InterruptedException {
+        if (!isUsable()) {
+            throw new IOException("Connection is not open");
+        }
+        byte[] name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 * Long.BYTES + name.length);
+        header.putLong(transferId).putLong(offset).putLong(length).putLong(Files.size(path)).put(name);
+        return sendFile(new FileSegmentSource(path, offset, length), header.array(), true);
+    }
+
+    /**
+     * Sends a file, preceded by a header segment carrying name unless name is
+     * null, and waits until all of it is acknowledged.
+     */
+    private boolean sendFile(Path path, String name) throws IOException, InterruptedException {
+        if (!isUsable()) {
+            throw new IOException("Connection is not open");
+        }
+        // Segments are produced lazily from the mapping as the window opens
+        return sendFile(new FileSegmentSource(path),
+                name != null ? name.getBytes(StandardCharsets.UTF_8) : null, false);
+    }
+
+    private boolean sendFile(FileSegmentSource source, byte[] header, boolean stripe)
+            throws IOException, InterruptedException {
+        try {
+            fileSource = source;
+            if (header != null) {
+                sendFileHeader(header, stripe);
+            }
+            sendFileWithSlidingWindow(packetWriter);
+            boolean delivered = waitForAllAcks();
+            if (!delivered) {
+                transferFailed = true;
+            } else if (deliveredDigest != null) {
+                deliveredDigest.update(fileSource);
+            }
+            filesSent++;
+            return delivered;
+        } finally {
+            // Segments of a failed transfer must not be resent from a closed source
+            abandonUnacknowledged();
+            synchronized (sourceLock) {
+                if (fileSource != null) {
+                    fileSource.close();
+                    fileSource = null;
+                }
+            }
+        }
+    }
 
-            currentOutputStream = out;
-            startTime = System.currentTimeMillis();
-            // performHandshake(in, out);
+    /**
+     * Drops the segments still waiting for an ACK and cancels their timers.
+     */
+    private void abandonUnacknowledged() {
+        List<UnackedPacket> dropped = unackedPackets.clear();
+        for (UnackedPacket segment : dropped) {
+            retransmissionTimers.cancel(segment.seqNum);
+        }
+        if (!dropped.isEmpty()) {
+            Log.warn("[TRANSFER] Abandoned " + dropped.size() + " unacknowledged segments");
+        }
+    }
 
-            sequenceNumber = connectionManager.getSequenceNumber();
-            ackNumber = connectionManager.getAckNumber();
-            serverWindowSize = connectionManager.getServerWindowSize();
-            baseSequenceNumber = sequenceNumber;
+    /**
+     * Sends the segment naming the next file (or stripe) and waits for its ACK,
+     * so the server has switched files before any of the new file's bytes arrive.
+     */
+    private void sendFileHeader(byte[] payload, boolean stripe) throws IOException, InterruptedException {
+        if (payload.length > connectionManager.getMss()) {
+            throw new IOException("File header longer than one segment: " + payload.length + " bytes");
+        }
+        fileHeaderPayload = payload;
+        fileHeaderStripe = stripe;
+        fileHeaderSequence = sequenceNumber;
+        Log.info("[FILE] Starting " + (stripe ? "stripe" : "file") + " (seq: " + fileHeaderSequence +
+                ", " + fileSource.size() + " bytes)");
+
+        sendPacketReliably(buildDataPacket(fileHeaderSequence, payload.length), fileHeaderSequence, packetWriter);
+        packetWriter.flush();
+        sequenceNumber += payload.length;
+        connectionManager.setSequenceNumber(sequenceNumber);
+
+        if (!awaitAllAcknowledged(TimeUnit.MILLISECONDS.toNanos(15000))) {
+            transferFailed = true;
+            throw new IOException("File header was not acknowledged");
+        }
+    }
 
-            System.out.println("[TCP-VARIANT] Running with: " + tcpVariant);
+    /**
+     * Compares our digest of the data sent with the one the server computed
+     * over the files it wrote, returned in its FIN-ACK.
+     */
+    private void checkServerDigest(byte[] digest, byte[] serverDigest) {
+        if (serverDigest.length == 0) {
+            Log.warn("[DIGEST] Server did not return a digest");
+        } else if (DeliveredDigest.matches(digest, serverDigest)) {
+            Log.info("[DIGEST] SHA-256 of delivered data matches the server's: " +
+                    DeliveredDigest.toHex(digest));
+        } else {
+            Log.error("[DIGEST] MISMATCH - sent " + DeliveredDigest.toHex(digest) +
+                    ", server wrote " + DeliveredDigest.toHex(serverDigest));
+        }
+    }
 
-            // Start ACK receiver thread BEFORE sending any data
-            Thread ackThread = new Thread(() -> handleAcks(in));
-            ackThread.setDaemon(true);
-            ackThread.start();
+    /**
+     * Overrides the simulated loss rate (Constants.PACKET_LOSS_RATE) for this connection.
+     */
+    public void setPacketLossRate(double packetLossRate) {
+        this.packetLossRate = packetLossRate;
+    }
 
-            // Give ACK thread time to start
-            Thread.sleep(200);
+    /**
+     * Segment size the handshake settled on; valid once open() returns.
+     */
+    public int getMss() {
+        return connectionManager.getMss();
+    }
 
-            // Verify thread is running
-            if (!ackThread.isAlive()) {
-                throw new RuntimeException("ACK receiver thread failed to start");
-            }
+    /**
+     * Whether the connection is open and can carry another file.
+     */
+    public boolean isUsable() {
+        return socket != null && !socket.isClosed() && ackReceiverRunning && !transferFailed;
+    }
 
-            sendFileWithSlidingWindow(out);
-            waitForAllAcks();
+    /**
+     * Exchanges FINs with the server and releases the connection. Safe to call
+     * more than once.
+     */
+    public void close() {
+        if (socket == null || socket.isClosed()) {
+            return;
+        }
+        try {
             logCwndHistory();
             connectionManager.setSequenceNumber(sequenceNumber);
             connectionManager.setAckNumber(ackNumber);
-            connectionManager.closeConnection(in, out);
+
+            if (ackReceiverRunning && !transferFailed) {
+                // The ACK receiver owns the input stream, so it picks up the FIN-ACK for us
+                byte[] digest = deliveredDigest != null ? deliveredDigest.digest() : null;
+                connectionManager.sendFin(out, digest);
+                Packet finAck = awaitFinAck();
+                if (finAck != null) {
+                    if (digest != null) {
+                        checkServerDigest(digest, finAck.getPayload());
+                    }
+                    connectionManager.finishClose(finAck, out);
+                } else {
+                    Log.info("[CLOSE] Connection closed (may not have received FIN-ACK)");
+                }
+            }
         } catch (IOException e) {
-            System.err.println("[ERROR] Connection error: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("[ERROR] Connection error: " + e.getMessage());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            System.err.println("[ERROR] Thread interrupted: " + e.getMessage());
+            Log.error("[ERROR] Thread interrupted: " + e.getMessage());
         } finally {
             ackReceiverRunning = false;
-            retransmissionTimer.cancel();
+            if (retransmissionTimers != null) {
+                retransmissionTimers.stop();
+            }
+            connectionMetrics.forEach(Metrics.Function::remove);
+            connectionMetrics.clear();
+            synchronized (sourceLock) {
+                if (fileSource != null) {
+                    try {
+                        fileSource.close();
+                    } catch (IOException e) {
+                        Log.error("[ERROR] Error closing file: " + e.getMessage());
+                    }
+                    fileSource = null;
+                }
+            }
+            try {
+                // Lets an emulated link deliver the final ACK before the socket goes
+                out.close();
+                socket.close();
+            } catch (IOException e) {
+                Log.error("[ERROR] Error closing socket: " + e.getMessage());
+            }
         }
     }
 
-    private void sendFileWithSlidingWindow(DataOutputStream out) throws IOException {
-        byte[] fileData;
-        try {
-            fileData = Files.readAllBytes(Paths.get(Constants.FILE_PATH));
-            System.out.println("[FILE] File size: " + fileData.length + " bytes");
-        } catch (IOException e) {
-            System.err.println("[ERROR] Error reading file: " + e.getMessage());
-            return;
-        }
-
-        int totalChunks = (int) Math.ceil((double) fileData.length / Constants.MAX_SEGMENT_SIZE);
-        int bytesSent = 0;
-        int chunkNumber = 0;
+    private void sendFileWithSlidingWindow(PacketWriter out) throws IOException {
+        Log.info("[FILE] File size: " + fileSource.size() + " bytes");
 
-        System.out.println("[TRANSFER] Starting file transfer with congestion control...");
-
-        // Make sure ACK receiver thread is fully started and ready
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return;
-        }
+        long fileSize = fileSource.size();
+        // Never larger than MAX_SEGMENT_SIZE; lower if the server's MSS option asked for less
+        int segmentSize = connectionManager.getMss();
+        long totalChunks = (fileSize + segmentSize - 1) / segmentSize;
+        long bytesSent = 0;
+        long chunkNumber = 0;
+        dataStartSequence = sequenceNumber;
 
-        System.out.println("[TRANSFER] ACK receiver thread status: " + ackReceiverRunning);
+        Log.info("[TRANSFER] Starting file transfer with congestion control...");
 
-        while (bytesSent < fileData.length) {
+        while (bytesSent < fileSize) {
             // Calculate effective window size using congestion control
-            int effectiveWindowSize = Math.min(Math.min(serverWindowSize, Constants.CLIENT_WINDOW_SIZE),
-                    congestionWindow);
+            int effectiveWindowSize = getEffectiveWindowSize();
 
             boolean sentPacket = false;
-            boolean windowFull = false;
 
             // Send packets within the congestion window
-            while (getBytesInFlight() + Constants.MAX_SEGMENT_SIZE <= effectiveWindowSize &&
-                    bytesSent < fileData.length) {
+            while (getBytesInFlight() + segmentSize <= effectiveWindowSize &&
+                    bytesSent < fileSize) {
 
-                int remainingBytes = fileData.length - bytesSent;
-                int chunkSize = Math.min(Constants.MAX_SEGMENT_SIZE, remainingBytes);
+                int chunkSize = (int) Math.min(segmentSize, fileSize - bytesSent);
 
-                byte[] chunk = new byte[chunkSize];
-                System.arraycopy(fileData, bytesSent, chunk, 0, chunkSize);
-
-                Packet dataPacket = new Packet();
-                dataPacket.setSourcePort(Constants.CLIENT_PORT);
-                dataPacket.setDestinationPort(Constants.SERVER_PORT);
-                dataPacket.setSequenceNumber(sequenceNumber);
-                dataPacket.setAckNumber(ackNumber);
-                dataPacket.setAckFlag(true);
-                dataPacket.setPshFlag(true);
-                dataPacket.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
-                dataPacket.setPayload(chunk);
+                try {
+                    paceSend(chunkSize);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
 
-                sendPacketReliably(dataPacket, out);
+                Packet dataPacket = buildDataPacket(sequenceNumber, chunkSize);
+                sendPacketReliably(dataPacket, sequenceNumber, out);
 
                 chunkNumber++;
                 bytesSent += chunkSize;
@@ -241,380 +441,412 @@ public class Client {
                 connectionManager.setSequenceNumber(sequenceNumber); // Keep ConnectionManager in sync
                 sentPacket = true;
 
-                System.out.println("[TRANSFER] Chunk " + chunkNumber + "/" + totalChunks +
-                        " sent (seq: " + dataPacket.getSequenceNumber() +
-                        ", size: " + chunkSize + " bytes)" +
-                        " | CWND: " + congestionWindow + " bytes (" +
-                        (congestionWindow / Constants.MAX_SEGMENT_SIZE) + " MSS)" +
-                        " | State: " + congestionState +
-                        " | In-flight: " + getBytesInFlight() + "/" + effectiveWindowSize);
-            }
-
-            // Check why we stopped sending packets
-            if (sentPacket) {
-                if (bytesSent >= fileData.length) {
-                    System.out.println("[TRANSFER] All packets sent. Waiting for ACKs...");
-                } else if (getBytesInFlight() + Constants.MAX_SEGMENT_SIZE > effectiveWindowSize) {
-                    System.out.println("[TRANSFER] Congestion window filled. Waiting for ACKs...");
-                    windowFull = true;
+                if (Log.DEBUG) {
+                    Log.debug("[TRANSFER] Chunk " + chunkNumber + "/" + totalChunks +
+                            " sent (seq: " + (sequenceNumber - chunkSize) +
+                            ", size: " + chunkSize + " bytes)" +
+                            " | CWND: " + congestionController.getCongestionWindow() + " bytes (" +
+                            (congestionController.getCongestionWindow() / connectionManager.getMss()) + " MSS)" +
+                            " | State: " + congestionController.getState() +
+                            " | In-flight: " + getBytesInFlight() + "/" + effectiveWindowSize);
                 }
             }
 
-            // Wait for ACKs to open the window only if window is actually full
-            if (windowFull && getBytesInFlight() >= effectiveWindowSize) {
-                long waitStart = System.currentTimeMillis();
-                long maxWait = 8000;
-                long initialBytesInFlight = getBytesInFlight();
+            // The whole burst goes out in one write
+            out.flush();
 
-                while (getBytesInFlight() >= effectiveWindowSize &&
-                        (System.currentTimeMillis() - waitStart) < maxWait &&
-                        bytesSent < fileData.length) {
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        return;
-                    }
-
-                    // Check if we received any ACKs during waiting
-                    if (getBytesInFlight() < initialBytesInFlight) {
-                        System.out.println("[TRANSFER] ACK received during wait, window opening");
-                        break;
-                    }
+            if (bytesSent >= fileSize) {
+                if (Log.DEBUG) {
+                    Log.debug("[TRANSFER] All packets sent. Waiting for ACKs...");
                 }
+                break;
+            }
 
-                if (getBytesInFlight() < initialBytesInFlight) {
-                    System.out.println("[TRANSFER] ACKs received, congestion window opened");
-                } else if (bytesSent < fileData.length) {
-                    System.out.println("[TRANSFER] Wait timeout, continuing to avoid deadlock...");
+            if (sentPacket) {
+                if (Log.DEBUG) {
+                    Log.debug("[TRANSFER] Congestion window filled. Waiting for ACKs...");
                 }
             }
 
+            // Block until an ACK or a window change lets the next segment out
             try {
-                Thread.sleep(1);
+                if (!awaitWindowOpen()) {
+                    Log.error("[ERROR] Transfer aborted - no ACKs can open the window");
+                    return;
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                break;
+                return;
             }
         }
 
-        System.out.println("[TRANSFER] File transfer completed successfully!");
-        System.out.println("[TRANSFER] Final congestion window: " + congestionWindow + " bytes");
-        System.out.println("[TRANSFER] Final state: " + congestionState);
-        System.out.println("[TRANSFER] Total chunks sent: " + chunkNumber);
+        Log.info("[TRANSFER] File transfer completed successfully!");
+        Log.info("[TRANSFER] Final congestion window: " + congestionController.getCongestionWindow() + " bytes");
+        Log.info("[TRANSFER] Final state: " + congestionController.getState());
+        Log.info("[TRANSFER] Total chunks sent: " + chunkNumber);
     }
 
     private void handleAcks(DataInputStream in) {
         try {
-            System.out.println("[ACK-RECEIVER] Thread started successfully");
+            Log.info("[ACK-RECEIVER] Thread started successfully");
+
+            // One packet is reused for every incoming ACK
+            Packet ackPacket = new Packet(Packet.MAX_HEADER_SIZE);
 
             while (ackReceiverRunning) {
                 try {
-                    Packet ackPacket = Packet.receivePacket(in);
-                    long receivedTime = System.currentTimeMillis();
+                    ackPacket.readFrom(in);
+                    if (Constants.CHECKSUM_ENABLED && !ackPacket.verifyChecksum()) {
+                        corruptAcksDropped++;
+                        if (Log.DEBUG) {
+                            Log.debug("[CHECKSUM] Dropped corrupt ACK (" + corruptAcksDropped + " so far)");
+                        }
+                        continue;
+                    }
+                    acksReceived++;
 
-                    System.out.println("[ACK-RECEIVER] Received ACK for seq: " + ackPacket.getAckNumber() +
-                            " | Window: " + ackPacket.getWindowSize() +
-                            " | Time: "
-                            + new java.text.SimpleDateFormat("HH:mm:ss.SSS").format(new java.util.Date(receivedTime)));
+                    if (Log.DEBUG) {
+                        Log.debug("[ACK-RECEIVER] Received ACK for seq: " + ackPacket.getAckNumber() +
+                                " | Window: " + (ackPacket.getWindowSize() << serverWindowScale));
+                    }
+
+                    if (ackPacket.getFinFlag()) {
+                        Log.info("[ACK-RECEIVER] FIN-ACK received - stopping ACK receiver");
+                        finAckPacket = ackPacket;
+                        signalWindowOpened();
+                        break;
+                    }
 
                     if (ackPacket.getAckFlag()) {
-                        long ackNum = ackPacket.getAckNumber();
+                        long ackNum = Packet.unwrapSequence(ackPacket.getAckNumber(), baseSequenceNumber);
+                        if (ackNum < lastAckReceived) {
+                            // Overtaken on a reordering link: its window and SACK blocks are older than
+                            // what we have, and letting it move lastAckReceived back would turn the next
+                            // real ACK into a false duplicate
+                            staleAcksDropped++;
+                            if (Log.DEBUG) {
+                                Log.debug("[ACK-RECEIVER] Dropped stale ACK " + ackNum +
+                                        " (latest: " + lastAckReceived + ")");
+                            }
+                            continue;
+                        }
+
+                        // TSecr echoes the send time of the segment this ACK answers; -1 without timestamps
+                        long ackTimestampEcho = -1;
+                        if (connectionManager.isTimestampsEnabled() && ackPacket.hasTimestamps()) {
+                            connectionManager.updateServerTimestamp(ackPacket);
+                            ackTimestampEcho = ackPacket.getTimestampEcho();
+                        }
 
-                        // Check for duplicate ACKs
-                        if (ackNum == lastAckReceived) {
+                        if (sackEnabled) {
+                            updateSackScoreboard(ackPacket);
+                        }
+
+                        int previousWindow = serverWindowSize;
+                        serverWindowSize = ackPacket.getWindowSize() << serverWindowScale;
+
+                        if (ackNum == lastAckReceived && serverWindowSize != previousWindow) {
+                            // A window update is not a duplicate ACK (RFC 5681)
+                            if (Log.DEBUG) {
+                                Log.debug("[ACK-RECEIVER] Window update: " + previousWindow +
+                                        " -> " + serverWindowSize + " bytes");
+                            }
+                            signalWindowOpened();
+                        } else if (ackNum == lastAckReceived) {
                             duplicateAckCount++;
-                            System.out.println("[ACK-RECEIVER] Duplicate ACK #" + duplicateAckCount +
-                                    " for seq: " + ackNum +
-                                    " | Total duplicates: " + duplicateAckCount);
-
-                            if (duplicateAckCount >= FAST_RETRANSMIT_THRESHOLD) {
-                                System.out.println(
-                                        "[ACK-RECEIVER] Triple duplicate ACK detected - triggering " +
-                                                (tcpVariant == TcpVariant.RENO ? "fast retransmit" : "timeout behavior")
-                                                +
-                                                " | ACK seq: " + ackNum +
-                                                " | Duplicate count: " + duplicateAckCount);
-
-                                if (tcpVariant == TcpVariant.RENO) {
-                                    handleFastRetransmit(ackNum);
-                                } else { // TCP Tahoe
-                                    handleTahoeTripleDupAck(ackNum);
-                                }
-                                duplicateAckCount = 0;
+                            DUPLICATE_ACKS.increment();
+                            if (Log.DEBUG) {
+                                Log.debug("[ACK-RECEIVER] Duplicate ACK #" + duplicateAckCount +
+                                        " for seq: " + ackNum +
+                                        " | Total duplicates: " + duplicateAckCount);
                             }
+                            handleDuplicateAck(ackNum);
                         } else {
                             // New ACK received
-                            System.out.println("[ACK-RECEIVER] New ACK received" +
-                                    " | Previous: " + lastAckReceived +
-                                    " | Current: " + ackNum +
-                                    " | Resetting duplicate count from: " + duplicateAckCount);
+                            if (Log.DEBUG) {
+                                Log.debug("[ACK-RECEIVER] New ACK received" +
+                                        " | Previous: " + lastAckReceived +
+                                        " | Current: " + ackNum +
+                                        " | Resetting duplicate count from: " + duplicateAckCount);
+                            }
 
                             duplicateAckCount = 0;
                             lastAckReceived = ackNum;
 
-                            int ackedBytes = processAck(ackNum);
+                            int ackedBytes = processAck(ackNum, ackTimestampEcho);
                             if (ackedBytes > 0) {
-                                updateCongestionControl(ackedBytes, false);
-                                System.out.println("[ACK-RECEIVER] Successfully processed ACK" +
-                                        " | Bytes acked: " + ackedBytes +
-                                        " | New CWND: " + congestionWindow + " bytes" +
-                                        " | In-flight: " + getBytesInFlight() + " bytes" +
-                                        " | State: " + congestionState);
-                            } else {
-                                System.out.println("[ACK-RECEIVER] No new bytes acknowledged" +
+                                bytesAcked += ackedBytes;
+                                BYTES_ACKED.add(ackedBytes);
+                                congestionController.onAck(ackNum, ackedBytes, getBytesInFlight());
+                                if (congestionController.getState() == CongestionState.FAST_RECOVERY) {
+                                    // Partial ACK: the controller is still recovering, so the
+                                    // segment at the new ACK point was lost too
+                                    retransmitAfterPartialAck(ackNum);
+                                }
+                                signalWindowOpened();
+                                if (Log.DEBUG) {
+                                    Log.debug("[ACK-RECEIVER] Successfully processed ACK" +
+                                            " | Bytes acked: " + ackedBytes +
+                                            " | New CWND: " + congestionController.getCongestionWindow() + " bytes" +
+                                            " | In-flight: " + getBytesInFlight() + " bytes" +
+                                            " | State: " + congestionController.getState());
+                                }
+                            } else if (Log.DEBUG) {
+                                Log.debug("[ACK-RECEIVER] No new bytes acknowledged" +
                                         " | ACK num: " + ackNum +
                                         " | Current base: " + baseSequenceNumber);
                             }
                         }
-                    } else {
-                        System.out.println("[ACK-RECEIVER] Received packet without ACK flag set" +
+                    } else if (Log.DEBUG) {
+                        Log.debug("[ACK-RECEIVER] Received packet without ACK flag set" +
                                 " | Seq: " + ackPacket.getSequenceNumber() +
                                 " | ACK: " + ackPacket.getAckNumber());
                     }
                 } catch (IOException e) {
                     if (ackReceiverRunning) {
-                        System.err.println("[ACK-RECEIVER] Error receiving ACK packet: " + e.getMessage());
-                        e.printStackTrace();
+                        Log.error("[ACK-RECEIVER] Error receiving ACK packet: " + e.getMessage());
                     } else {
-                        System.out.println("[ACK-RECEIVER] Thread stopping - connection closed");
+                        Log.info("[ACK-RECEIVER] Thread stopping - connection closed");
                     }
                     break;
                 }
             }
         } catch (Exception e) {
-            System.err.println("[ACK-RECEIVER] Unexpected error in ACK receiver thread: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("[ACK-RECEIVER] Unexpected error in ACK receiver thread: " + e);
+        } finally {
+            // Wake the sender so it does not wait for ACKs that can no longer arrive
+            ackReceiverRunning = false;
+            signalWindowOpened();
         }
 
-        System.out.println("[ACK-RECEIVER] Thread terminated" +
+        Log.info("[ACK-RECEIVER] Thread terminated" +
                 " | Final state - Running: " + ackReceiverRunning +
                 " | Unacked packets: " + unackedPackets.size());
     }
 
-    private void updateCongestionControl(int ackedBytes, boolean isTimeout) {
-        if (isTimeout) {
-            // FIXED: Save old congestion window first, then use it to calculate ssthresh
-            int oldCongestionWindow = congestionWindow;
-            slowStartThreshold = Math.max(oldCongestionWindow / 2, Constants.MAX_SEGMENT_SIZE);
-            congestionWindow = Constants.MAX_SEGMENT_SIZE;
-            congestionState = CongestionState.SLOW_START;
-            packetsSinceLastIncrease = 0;
-
-            System.out.println("[CONGESTION] Timeout - Resetting to Slow Start (" + tcpVariant + ")");
-            System.out.println("[CONGESTION] Old CWND: " + oldCongestionWindow + " bytes");
-            System.out.println("[CONGESTION] New ssthresh: " + slowStartThreshold + " bytes");
-            System.out.println("[CONGESTION] New CWND: " + Constants.MAX_SEGMENT_SIZE + " bytes");
-            System.out.println("[CONGESTION] State: SLOW_START");
-
-            cwndLog.add(new CwndLogEntry(
-                    System.currentTimeMillis() - startTime,
-                    totalPacketsSent,
-                    congestionWindow,
-                    "TIMEOUT",
-                    congestionState, slowStartThreshold, estimatedRTT));
-            return;
+    /**
+     * Lets the controller decide what to do with a duplicate ACK, then repairs
+     * the loss: a fast retransmit, or resending newly SACKed holes while recovery
+     * is already under way.
+     */
+    private void handleDuplicateAck(long ackNum) {
+        if (congestionController.onDupAck(ackNum, duplicateAckCount, getBytesInFlight())) {
+            Log.info("[ACK-RECEIVER] Triple duplicate ACK detected - triggering fast retransmit (" +
+                    congestionController.getName() + ")" +
+                    " | ACK seq: " + ackNum +
+                    " | Duplicate count: " + duplicateAckCount);
+            triggerFastRetransmit(ackNum);
+            duplicateAckCount = 0;
+        } else if (sackEnabled && ackNum < sackRecoveryPoint) {
+            // Already recovering: resend holes revealed by the new SACK blocks
+            retransmitSackHoles();
         }
+        // Recovery may have inflated the window
+        signalWindowOpened();
+    }
 
-        switch (congestionState) {
-            case SLOW_START:
-                // Exponential growth: increase CWND by MSS for each ACK
-                congestionWindow += ackedBytes; // Use actual bytes acknowledged
-
-                cwndLog.add(new CwndLogEntry(
-                        System.currentTimeMillis() - startTime,
-                        totalPacketsSent,
-                        congestionWindow,
-                        "SLOW_START_INCREASE",
-                        congestionState, slowStartThreshold, estimatedRTT));
-
-                System.out.println("[CONGESTION] Slow Start - CWND increased to " + congestionWindow +
-                        " bytes (" + (congestionWindow / Constants.MAX_SEGMENT_SIZE) + " MSS)");
-
-                // Check if we should switch to congestion avoidance
-                if (congestionWindow >= slowStartThreshold) {
-                    congestionState = CongestionState.CONGESTION_AVOIDANCE;
-                    packetsSinceLastIncrease = 0;
-                    System.out.println("[CONGESTION] Switching to Congestion Avoidance (CWND >= ssthresh)");
-                    cwndLog.add(new CwndLogEntry(
-                            System.currentTimeMillis() - startTime,
-                            totalPacketsSent,
-                            congestionWindow,
-                            "TRANSITION_TO_CA",
-                            congestionState, slowStartThreshold, estimatedRTT));
-                }
-                break;
-
-            case CONGESTION_AVOIDANCE:
-                // Linear growth: increase CWND by MSS per RTT
-                // In practice: increase by (MSS * MSS) / CWND for each ACK
-                packetsSinceLastIncrease += ackedBytes;
-
-                // When we've acknowledged a full congestion window worth of data,
-                // increase CWND by one MSS
-                if (packetsSinceLastIncrease >= congestionWindow) {
-                    congestionWindow += Constants.MAX_SEGMENT_SIZE;
-                    packetsSinceLastIncrease = 0;
-
-                    System.out.println("[CONGESTION] Congestion Avoidance - CWND increased to " +
-                            congestionWindow + " bytes (" +
-                            (congestionWindow / Constants.MAX_SEGMENT_SIZE) + " MSS)");
-                    cwndLog.add(new CwndLogEntry(
-                            System.currentTimeMillis() - startTime,
-                            totalPacketsSent,
-                            congestionWindow,
-                            "CA_INCREASE",
-                            congestionState, slowStartThreshold, estimatedRTT));
-                } else {
-                    // Log the progress towards next increase
-                    System.out.println("[CONGESTION] CA Progress: " + packetsSinceLastIncrease +
-                            "/" + congestionWindow + " bytes toward next increase");
-                }
-                break;
-
-            case FAST_RECOVERY:
-                // Only TCP Reno should reach here
-                if (tcpVariant == TcpVariant.RENO) {
-                    // Check if we can exit fast recovery
-                    if (lastAckReceived > fastRecoverySequence) {
-                        // New ACK received, exit fast recovery
-                        congestionWindow = slowStartThreshold;
-                        congestionState = CongestionState.CONGESTION_AVOIDANCE;
-                        packetsSinceLastIncrease = 0;
-
-                        System.out.println("[CONGESTION] Exiting Fast Recovery (TCP Reno)");
-                        System.out.println("[CONGESTION] CWND set to ssthresh: " + congestionWindow + " bytes");
-                        System.out.println("[CONGESTION] State: CONGESTION_AVOIDANCE");
-                        cwndLog.add(new CwndLogEntry(
-                                System.currentTimeMillis() - startTime,
-                                totalPacketsSent,
-                                congestionWindow,
-                                "EXIT_FAST_RECOVERY",
-                                congestionState, slowStartThreshold, estimatedRTT));
-                    }
-                } else {
-                    // TCP Tahoe should never be in fast recovery
-                    System.err.println("[ERROR] TCP Tahoe should not be in FAST_RECOVERY state!");
-                    congestionState = CongestionState.CONGESTION_AVOIDANCE;
-                }
-                break;
+    private void retransmitAfterPartialAck(long ackNum) {
+        if (sackEnabled && retransmitSackHoles() > 0) {
+            return;
         }
-
-        // Ensure minimum window size
-        if (congestionWindow < Constants.MAX_SEGMENT_SIZE) {
-            congestionWindow = Constants.MAX_SEGMENT_SIZE;
+        UnackedPacket next = unackedPackets.first();
+        if (next != null && next.seqNum == ackNum) {
+            Log.info("[FAST-RETRANSMIT] Partial ACK " + ackNum + " - retransmitting next hole");
+            retransmitPacketImmediately(next.seqNum);
         }
     }
 
-    private void handleFastRetransmit(long ackNum) {
-        // Only for TCP Reno - enter fast recovery
-        if (tcpVariant == TcpVariant.RENO) {
-            if (congestionState != CongestionState.FAST_RECOVERY) {
-                // FIXED: Save old congestion window first
-                int oldCongestionWindow = congestionWindow;
-                slowStartThreshold = Math.max(oldCongestionWindow / 2, Constants.MAX_SEGMENT_SIZE);
-                congestionWindow = slowStartThreshold + 3 * Constants.MAX_SEGMENT_SIZE;
-                congestionState = CongestionState.FAST_RECOVERY;
-                fastRecoverySequence = ackNum;
-
-                cwndLog.add(new CwndLogEntry(
-                        System.currentTimeMillis() - startTime,
-                        totalPacketsSent,
-                        congestionWindow,
-                        "FAST_RETRANSMIT_RENO",
-                        congestionState, slowStartThreshold, estimatedRTT));
-
-                System.out.println("[FAST-RETRANSMIT] Entering Fast Recovery (TCP Reno)");
-                System.out.println("[FAST-RETRANSMIT] Old CWND: " + oldCongestionWindow + " bytes");
-                System.out.println("[FAST-RETRANSMIT] New ssthresh: " + slowStartThreshold + " bytes");
-                System.out.println("[FAST-RETRANSMIT] New CWND: " + congestionWindow + " bytes");
+    /**
+     * Holds the sender to the pacing rate, if there is one. Waits shorter than
+     * PACING_MIN_SLEEP_NANOS are left as debt in the bucket and repaid by the
+     * next real wait: a park rarely returns that soon, and sleeping for every
+     * segment at sub-millisecond RTTs would cap the rate at the timer's.
+     */
+    private void paceSend(int bytes) throws IOException, InterruptedException {
+        long pacingRate = getPacingRate();
+        if (pacingRate <= 0) {
+            return;
+        }
+        if (sendPacer == null) {
+            sendPacer = new TokenBucket(pacingRate, 2L * connectionManager.getMss());
+        } else {
+            sendPacer.setBytesPerSecond(pacingRate);
+        }
+        long waitNanos = sendPacer.reserve(bytes);
+        if (waitNanos < Constants.PACING_MIN_SLEEP_NANOS) {
+            return;
+        }
+        // Don't hold staged frames across the wait
+        packetWriter.flush();
+        pacingWaits++;
+        pacingWaitNanos += waitNanos;
+        long deadline = System.nanoTime() + waitNanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
         }
-
-        // Trigger the actual retransmission (both Reno and Tahoe)
-        triggerFastRetransmit(ackNum);
     }
 
-    private void handleTahoeTripleDupAck(long ackNum) {
-        // TCP Tahoe behavior: treat triple duplicate ACK like a timeout
-        System.out.println("[FAST-RETRANSMIT] TCP Tahoe - treating triple dup ACK as timeout");
-
-        // FIXED: Save old congestion window first
-        int oldCongestionWindow = congestionWindow;
-        slowStartThreshold = Math.max(oldCongestionWindow / 2, Constants.MAX_SEGMENT_SIZE);
-        congestionWindow = Constants.MAX_SEGMENT_SIZE;
-        congestionState = CongestionState.SLOW_START;
-        packetsSinceLastIncrease = 0;
+    /**
+     * The controller's own pacing rate (BBR), or with -Dtcp.pacing gain x cwnd /
+     * smoothed RTT: 2x in slow start so the window can still double each
+     * round trip, 1.2x otherwise (the gains Linux uses). 0 means unpaced,
+     * which is also the case until the first RTT sample.
+     */
+    private long getPacingRate() {
+        long pacingRate = congestionController.getPacingRate();
+        double srtt = estimatedRTT;
+        if (pacingRate > 0 || !Constants.PACING_ENABLED || srtt == 1000.0) {
+            return pacingRate;
+        }
+        double gain = congestionController.getState() == CongestionState.SLOW_START ? 2.0 : 1.2;
+        return (long) (gain * congestionController.getCongestionWindow() * 1000.0 / Math.max(srtt, 0.01));
+    }
 
-        cwndLog.add(new CwndLogEntry(
-                System.currentTimeMillis() - startTime,
-                totalPacketsSent,
-                congestionWindow,
-                "FAST_RETRANSMIT_TAHOE",
-                congestionState, slowStartThreshold, estimatedRTT));
+    private void logCwnd(String event) {
+        CwndRecorder recorder = cwndRecorder;
+        if (recorder != null) {
+            recorder.record(totalPacketsSent, congestionController.getCongestionWindow(),
+                    congestionController.getSlowStartThreshold(), estimatedRTT, event,
+                    congestionController.getState());
+        }
+    }
 
-        System.out.println("[FAST-RETRANSMIT] TCP Tahoe - Resetting to Slow Start");
-        System.out.println("[FAST-RETRANSMIT] Old CWND: " + oldCongestionWindow + " bytes");
-        System.out.println("[FAST-RETRANSMIT] New ssthresh: " + slowStartThreshold + " bytes");
-        System.out.println("[FAST-RETRANSMIT] New CWND: " + Constants.MAX_SEGMENT_SIZE + " bytes");
-        System.out.println("[FAST-RETRANSMIT] State: SLOW_START");
+    private boolean shouldDropPacket() {
+        return random.nextDouble() < packetLossRate;
+    }
 
-        // Trigger the actual retransmission
-        triggerFastRetransmit(ackNum);
+    private boolean shouldCorruptPacket() {
+        return Constants.PACKET_CORRUPTION_RATE > 0 && random.nextDouble() < Constants.PACKET_CORRUPTION_RATE;
     }
 
-    private boolean shouldDropPacket() {
-        return random.nextDouble() < PACKET_LOSS_RATE;
+    /**
+     * Builds a data segment in a pooled packet, reading its payload from the file source.
+     * The caller releases the packet once it has been written.
+     */
+    private Packet buildDataPacket(long seqNum, int length) throws IOException {
+        Packet dataPacket = packetPool.acquire();
+        dataPacket.setSourcePort(Constants.CLIENT_PORT);
+        dataPacket.setDestinationPort(Constants.SERVER_PORT);
+        dataPacket.setSequenceNumber(seqNum);
+        dataPacket.setAckNumber(ackNumber);
+        dataPacket.setAckFlag(true);
+        dataPacket.setPshFlag(true);
+        dataPacket.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        connectionManager.addTimestamps(dataPacket);
+        if (seqNum == fileHeaderSequence) {
+            if (fileHeaderStripe) {
+                dataPacket.addStripeOption();
+            } else {
+                dataPacket.addFileNameOption();
+            }
+            dataPacket.setPayload(fileHeaderPayload, 0, length);
+        } else {
+            fileSource.readInto(seqNum - dataStartSequence, length, dataPacket);
+        }
+        return dataPacket;
     }
 
-    private void sendPacketReliably(Packet packet, DataOutputStream out) throws IOException {
-        long seqNum = packet.getSequenceNumber();
+    /**
+     * Writes a segment and queues it for retransmission. seqNum is its 64-bit
+     * stream position; the header holds only the low 32 bits.
+     */
+    private void sendPacketReliably(Packet packet, long seqNum, PacketWriter out) throws IOException {
+        int length = packet.getPayloadLength();
         totalPacketsSent++;
-        cwndLog.add(new CwndLogEntry(
-                System.currentTimeMillis() - startTime,
-                totalPacketsSent,
-                congestionWindow,
-                "PACKET_SENT",
-                congestionState, slowStartThreshold, estimatedRTT));
+        SEGMENTS_SENT.increment();
+        logCwnd("PACKET_SENT");
 
         if (shouldDropPacket()) {
             packetsDropped++;
-            System.out.println("[LOSS] Simulated packet loss - seq: " + seqNum +
-                    " | Loss rate: " + packetsDropped + "/" + totalPacketsSent +
-                    " (" + String.format("%.1f", (packetsDropped * 100.0 / totalPacketsSent)) + "%)");
+            if (Log.DEBUG) {
+                Log.debug("[LOSS] Simulated packet loss - seq: " + seqNum +
+                        " | Loss rate: " + packetsDropped + "/" + totalPacketsSent +
+                        " (" + String.format("%.1f", (packetsDropped * 100.0 / totalPacketsSent)) + "%)");
+            }
 
-            UnackedPacket unackedPacket = new UnackedPacket(packet);
-            unackedPacket.sendTime = System.currentTimeMillis();
-            unackedPackets.put(seqNum, unackedPacket);
-            scheduleRetransmission(seqNum, out);
+            packet.release();
+            unackedPackets.add(new UnackedPacket(seqNum, length));
+            scheduleRetransmission(seqNum);
             return;
         }
 
-        packet.sendPacket(out);
-        UnackedPacket unackedPacket = new UnackedPacket(packet);
-        unackedPacket.sendTime = System.currentTimeMillis();
-        unackedPackets.put(seqNum, unackedPacket);
-        scheduleRetransmission(seqNum, out);
+        synchronized (out) {
+            out.write(packet);
+            if (shouldCorruptPacket()) {
+                // The checksum was computed as the frame was staged, so the server will reject it
+                out.corruptLastFrame();
+                packetsCorrupted++;
+                if (Log.DEBUG) {
+                    Log.debug("[CORRUPT] Simulated bit error - seq: " + seqNum);
+                }
+            }
+        }
+        packet.release();
+        unackedPackets.add(new UnackedPacket(seqNum, length));
+        scheduleRetransmission(seqNum);
+    }
+
+    private void updateSackScoreboard(Packet ackPacket) {
+        int blocks = ackPacket.getSackBlockCount();
+        for (int i = 0; i < blocks; i++) {
+            long left = Packet.unwrapSequence(ackPacket.getSackLeftEdge(i), baseSequenceNumber);
+            long right = Packet.unwrapSequence(ackPacket.getSackRightEdge(i), baseSequenceNumber);
+            int newlySacked = unackedPackets.markSacked(left, right);
+            if (newlySacked > 0) {
+                if (Log.DEBUG) {
+                    Log.debug("[SACK] Block [" + left + ", " + right + ") | Newly SACKed: " +
+                            newlySacked + " bytes | Total SACKed: " + unackedPackets.getSackedBytes() + " bytes");
+                }
+            }
+        }
     }
 
-    private void triggerFastRetransmit(long ackNum) {
-        // Find the packet that the receiver is expecting (the missing packet)
-        Long seqToRetransmit = null;
+    /**
+     * Resends every hole in the SACK scoreboard once per recovery episode.
+     * Returns the number of segments resent.
+     */
+    private int retransmitSackHoles() {
+        int resent = 0;
+        for (UnackedPacket hole : unackedPackets.sackHoles()) {
+            hole.sackRetransmitted = true;
+            if (Log.DEBUG) {
+                Log.debug("[SACK] Retransmitting hole - seq: " + hole.seqNum +
+                        " | Length: " + hole.length);
+            }
+            retransmitPacketImmediately(hole.seqNum);
+            sackRetransmits++;
+            resent++;
+        }
+        return resent;
+    }
 
-        // Look for the earliest unacknowledged packet
-        for (Map.Entry<Long, UnackedPacket> entry : unackedPackets.entrySet()) {
-            long seqNum = entry.getKey();
-            if (seqToRetransmit == null || seqNum < seqToRetransmit) {
-                seqToRetransmit = seqNum;
+    private void triggerFastRetransmit(long ackNum) {
+        if (sackEnabled) {
+            // Some controllers signal on every third duplicate; only an ACK past the
+            // recovery point starts a new episode, so each hole is resent once per episode
+            boolean recovering = ackNum < sackRecoveryPoint;
+            if (!recovering) {
+                sackRecoveryPoint = sequenceNumber;
+                unackedPackets.startRecovery();
+            }
+            if (retransmitSackHoles() > 0 || recovering) {
+                return;
             }
         }
 
-        if (seqToRetransmit != null) {
-            System.out.println("[FAST-RETRANSMIT] Retransmitting seq: " + seqToRetransmit +
+        // The receiver is expecting the earliest unacknowledged packet
+        UnackedPacket earliest = unackedPackets.first();
+
+        if (earliest != null) {
+            Log.info("[FAST-RETRANSMIT] Retransmitting seq: " + earliest.seqNum +
                     " (ACK expecting: " + ackNum + ")");
-            retransmitPacketImmediately(seqToRetransmit);
+            retransmitPacketImmediately(earliest.seqNum);
         } else {
-            System.out.println("[FAST-RETRANSMIT] No packet found for retransmission (ACK: " + ackNum + ")");
+            Log.warn("[FAST-RETRANSMIT] No packet found for retransmission (ACK: " + ackNum + ")");
         }
     }
 
@@ -630,61 +862,85 @@ public class Client {
 
             if (shouldDropPacket()) {
                 packetsDropped++;
-                System.out.println("[LOSS] Fast retransmission dropped - seq: " + seqNum);
+                if (Log.DEBUG) {
+                    Log.debug("[LOSS] Fast retransmission dropped - seq: " + seqNum);
+                }
                 return;
             }
 
-            unackedPacket.packet.sendPacket(currentOutputStream);
-            System.out.println("[FAST-RETRANSMIT] Packet retransmitted - seq: " + seqNum);
+            if (!resendSegment(unackedPacket, packetWriter)) {
+                return;
+            }
+            FAST_RETRANSMITS.increment();
+            Log.info("[FAST-RETRANSMIT] Packet retransmitted - seq: " + seqNum);
 
         } catch (IOException e) {
-            System.err.println("[ERROR] Fast retransmit failed: " + e.getMessage());
+            Log.error("[ERROR] Fast retransmit failed: " + e.getMessage());
         }
     }
 
-    private int processAck(long ackNum) {
-        System.out.println("[ACK-PROCESSOR] Starting ACK processing" +
-                " | ACK num: " + ackNum +
-                " | Current base: " + baseSequenceNumber +
-                " | Unacked packets: " + unackedPackets.size());
+    /**
+     * Sets up the sender state open() would, with no socket behind it, so that
+     * sent segments and ACKs can be fed in through trackSentSegment and
+     * processAck. For the benchmarks in jmh/; stopDetached undoes it.
+     */
+    void openDetached(long initialSequence) {
+        retransmissionTimers = new RetransmissionTimerWheel(seqNum -> { });
+        sequenceNumber = initialSequence;
+        baseSequenceNumber = initialSequence;
+    }
+
+    void stopDetached() {
+        retransmissionTimers.stop();
+    }
+
+    /**
+     * Queues a segment as sent and arms its timer, as sendPacketReliably does after writing it.
+     */
+    void trackSentSegment(long seqNum, int length) {
+        unackedPackets.add(new UnackedPacket(seqNum, length));
+        scheduleRetransmission(seqNum);
+    }
+
+    int processAck(long ackNum, long timestampEcho) {
+        if (Log.DEBUG) {
+            Log.debug("[ACK-PROCESSOR] Starting ACK processing" +
+                    " | ACK num: " + ackNum +
+                    " | Current base: " + baseSequenceNumber +
+                    " | Unacked packets: " + unackedPackets.size());
+        }
 
         int ackedPackets = 0;
         int ackedBytes = 0;
 
-        // Create a list to track which packets to remove
-        List<Long> packetsToRemove = new ArrayList<>();
-
-        // Process cumulative acknowledgment - ACK acknowledges all bytes up to ackNum
-        for (Map.Entry<Long, UnackedPacket> entry : unackedPackets.entrySet()) {
-            long seqNum = entry.getKey();
-            UnackedPacket packet = entry.getValue();
-            long endSeqNum = seqNum + packet.packet.getPayload().length;
-
-            // If this packet is completely acknowledged by the cumulative ACK
-            if (endSeqNum <= ackNum) {
-                ackedPackets++;
-                ackedBytes += packet.packet.getPayload().length;
-
-                // Calculate RTT only for the first packet being ACKed in this batch
-                // to avoid RTT measurement issues with cumulative ACKs
-                if (ackedPackets == 1) {
-                    double sampleRTT = System.currentTimeMillis() - packet.sendTime;
-                    updateRTTEstimates(sampleRTT);
-                    System.out.println("[RTT] Measured from packet seq: " + seqNum +
+        // Process cumulative acknowledgment - ACK acknowledges all bytes up to ackNum.
+        // Segments are released from the head of the queue, lowest sequence first.
+        UnackedPacket packet;
+        while ((packet = unackedPackets.pollAcknowledged(ackNum)) != null) {
+            long seqNum = packet.seqNum;
+            ackedPackets++;
+            ackedBytes += packet.length;
+            retransmissionTimers.cancel(seqNum);
+
+            // One RTT sample per ACK. With timestamps it comes from the echoed TSval, which
+            // also measures ACKs of retransmissions; otherwise from the oldest segment's send time
+            if (ackedPackets == 1) {
+                double sampleRTT = timestampEcho >= 0
+                        ? Packet.timestampAge(timestampEcho) / 1000.0
+                        : System.currentTimeMillis() - packet.sendTime;
+                updateRTTEstimates(sampleRTT);
+                congestionController.onRttSample(sampleRTT);
+                if (Log.DEBUG) {
+                    Log.debug("[RTT] Measured from packet seq: " + seqNum +
                             " | Sample RTT: " + String.format("%.2f", sampleRTT) + "ms");
                 }
-
-                packetsToRemove.add(seqNum);
-
-                System.out.println("[ACK-PROCESSOR] Packet acknowledged - seq: " + seqNum +
-                        " | bytes: " + packet.packet.getPayload().length +
-                        " | was buffered at server: " + (seqNum > baseSequenceNumber + Constants.MAX_SEGMENT_SIZE));
             }
-        }
 
-        // Remove all acknowledged packets
-        for (Long seqNum : packetsToRemove) {
-            unackedPackets.remove(seqNum);
+            if (Log.DEBUG) {
+                Log.debug("[ACK-PROCESSOR] Packet acknowledged - seq: " + seqNum +
+                        " | bytes: " + packet.length +
+                        " | was buffered at server: " + (seqNum > baseSequenceNumber + connectionManager.getMss()));
+            }
         }
 
         // Handle duplicate ACK detection
@@ -695,37 +951,34 @@ public class Client {
             baseSequenceNumber = ackNum;
 
             if (duplicateAckCount > 0) {
-                System.out.println("[ACK-PROCESSOR] Resetting duplicate ACK count from " + duplicateAckCount +
-                        " (new data acknowledged)");
+                if (Log.DEBUG) {
+                    Log.debug("[ACK-PROCESSOR] Resetting duplicate ACK count from " + duplicateAckCount +
+                            " (new data acknowledged)");
+                }
                 duplicateAckCount = 0;
             }
 
-            System.out.println("[ACK-PROCESSOR] Cumulative ACK processed" +
-                    " | Previous ACK: " + oldLastAck +
-                    " | New ACK: " + ackNum +
-                    " | Packets acknowledged: " + ackedPackets +
-                    " | Bytes acknowledged: " + ackedBytes +
-                    " | New base: " + baseSequenceNumber);
+            if (Log.DEBUG) {
+                Log.debug("[ACK-PROCESSOR] Cumulative ACK processed" +
+                        " | Previous ACK: " + oldLastAck +
+                        " | New ACK: " + ackNum +
+                        " | Packets acknowledged: " + ackedPackets +
+                        " | Bytes acknowledged: " + ackedBytes +
+                        " | New base: " + baseSequenceNumber);
+            }
 
         } else if (ackNum == lastAckReceived && !unackedPackets.isEmpty()) {
             // Same ACK with no new data acknowledged AND we have unacked packets
             duplicateAckCount++;
+            DUPLICATE_ACKS.increment();
 
-            System.out.println("[DUPLICATE-ACK] Count: " + duplicateAckCount +
-                    " | ACK: " + ackNum +
-                    " | Unacked packets: " + unackedPackets.size());
-
-            // Only trigger fast retransmit if we have packets that could be lost
-            if (duplicateAckCount >= FAST_RETRANSMIT_THRESHOLD) {
-                // Find the earliest unacked packet
-                Long earliestUnacked = unackedPackets.keySet().stream().min(Long::compare).orElse(null);
-                if (earliestUnacked != null) {
-                    System.out.println("[FAST-RETRANSMIT] Triggering for ACK: " + ackNum +
-                            " | Earliest unacked: " + earliestUnacked);
-                    handleFastRetransmit(ackNum);
-                    duplicateAckCount = 0; // Reset after fast retransmit
-                }
+            if (Log.DEBUG) {
+                Log.debug("[DUPLICATE-ACK] Count: " + duplicateAckCount +
+                        " | ACK: " + ackNum +
+                        " | Unacked packets: " + unackedPackets.size());
             }
+
+            handleDuplicateAck(ackNum);
         }
         // If ackNum < lastAckReceived, it's an old ACK - ignore it
 
@@ -733,6 +986,7 @@ public class Client {
     }
 
     private void updateRTTEstimates(double sampleRTT) {
+        RTT.record(Math.round(sampleRTT * 1000));
         if (estimatedRTT == 1000.0) { // Initial value check
             estimatedRTT = sampleRTT;
             devRTT = sampleRTT / 2.0;
@@ -741,10 +995,32 @@ public class Client {
             estimatedRTT = (1 - ALPHA) * estimatedRTT + ALPHA * sampleRTT;
         }
 
-        System.out.println("[RTT] Sample: " + String.format("%.2f", sampleRTT) + "ms" +
-                " | Estimated: " + String.format("%.2f", estimatedRTT) + "ms" +
-                " | Deviation: " + String.format("%.2f", devRTT) + "ms" +
-                " | Timeout would be: " + String.format("%.2f", (estimatedRTT + 4 * devRTT)) + "ms");
+        if (Log.DEBUG) {
+            Log.debug("[RTT] Sample: " + String.format("%.2f", sampleRTT) + "ms" +
+                    " | Estimated: " + String.format("%.2f", estimatedRTT) + "ms" +
+                    " | Deviation: " + String.format("%.2f", devRTT) + "ms" +
+                    " | Timeout would be: " + String.format("%.2f", (estimatedRTT + 4 * devRTT)) + "ms");
+        }
+    }
+
+    /**
+     * Exports the state of the connection being opened as gauges labelled conn=<local port>, until close().
+     */
+    private void registerConnectionMetrics(String conn) {
+        connectionMetrics.add(Metrics.gauge("tcp_client_cwnd_bytes", "Congestion window",
+                congestionController::getCongestionWindow, "conn", conn));
+        connectionMetrics.add(Metrics.gauge("tcp_client_ssthresh_bytes", "Slow start threshold",
+                congestionController::getSlowStartThreshold, "conn", conn));
+        connectionMetrics.add(Metrics.gauge("tcp_client_bytes_in_flight", "Bytes sent and not yet acknowledged",
+                this::getBytesInFlight, "conn", conn));
+        connectionMetrics.add(Metrics.gauge("tcp_client_srtt_seconds", "Smoothed RTT",
+                () -> estimatedRTT / 1000.0, "conn", conn));
+        connectionMetrics.add(Metrics.gauge("tcp_client_rttvar_seconds", "RTT variation",
+                () -> devRTT / 1000.0, "conn", conn));
+        connectionMetrics.add(Metrics.gauge("tcp_client_rto_seconds", "Retransmission timeout",
+                () -> calculateTimeoutInterval() / 1000.0, "conn", conn));
+        connectionMetrics.add(Metrics.counterFunction("tcp_client_connection_bytes_acked_total",
+                "Payload bytes acknowledged on this connection", () -> bytesAcked, "conn", conn));
     }
 
     private long calculateTimeoutInterval() {
@@ -753,7 +1029,7 @@ public class Client {
         // Less aggressive minimum timeouts
         if (totalPacketsSent <= 3) {
             timeoutInterval = Math.max(1000, timeoutInterval); // 2 seconds for first few packets
-        } else if (congestionWindow <= 2 * Constants.MAX_SEGMENT_SIZE) {
+        } else if (congestionController.getCongestionWindow() <= 2 * connectionManager.getMss()) {
             timeoutInterval = Math.max(100, timeoutInterval); // 1.5 seconds for small windows
         } else {
             timeoutInterval = Math.max(100, timeoutInterval); // 500ms minimum for normal operation
@@ -765,43 +1041,64 @@ public class Client {
         return (long) timeoutInterval;
     }
 
-    private void scheduleRetransmission(long seqNum, DataOutputStream out) {
+    private void scheduleRetransmission(long seqNum) {
         long timeout = calculateTimeoutInterval();
 
         // Add some debug info
         UnackedPacket packet = unackedPackets.get(seqNum);
         if (packet != null) {
-            System.out.println("[RETRANSMIT-TIMER] Scheduling retransmission for seq: " + seqNum +
-                    " | Timeout: " + timeout + "ms" +
-                    " | EstRTT: " + String.format("%.2f", estimatedRTT) + "ms" +
-                    " | DevRTT: " + String.format("%.2f", devRTT) + "ms");
+            if (Log.DEBUG) {
+                Log.debug("[RETRANSMIT-TIMER] Scheduling retransmission for seq: " + seqNum +
+                        " | Timeout: " + timeout + "ms" +
+                        " | EstRTT: " + String.format("%.2f", estimatedRTT) + "ms" +
+                        " | DevRTT: " + String.format("%.2f", devRTT) + "ms");
+            }
         }
 
-        retransmissionTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                retransmitPacket(seqNum, out);
+        retransmissionTimers.arm(seqNum, timeout);
+    }
+
+    /**
+     * Rebuilds a queued segment from the file source and writes it. Returns false if the segment was
+     * acknowledged or abandoned since the caller looked it up.
+     */
+    private boolean resendSegment(UnackedPacket unackedPacket, PacketWriter out) throws IOException {
+        Packet packet;
+        synchronized (sourceLock) {
+            if (unackedPackets.get(unackedPacket.seqNum) != unackedPacket) {
+                return false;
             }
-        }, timeout);
+            packet = buildDataPacket(unackedPacket.seqNum, unackedPacket.length);
+        }
+        try {
+            out.send(packet);
+        } finally {
+            packet.release();
+        }
+        return true;
     }
 
     // Also add more detailed logging to track when timeouts occur vs when ACKs
     // arrive
-    private void retransmitPacket(long seqNum, DataOutputStream out) {
+    private void retransmitPacket(long seqNum, PacketWriter out) {
         UnackedPacket unackedPacket = unackedPackets.get(seqNum);
         if (unackedPacket == null) {
-            System.out.println("[RETRANSMIT] Packet already ACKed - seq: " + seqNum);
+            if (Log.DEBUG) {
+                Log.debug("[RETRANSMIT] Packet already ACKed - seq: " + seqNum);
+            }
             return;
         }
 
         if (unackedPacket.retryCount >= Constants.MAX_RETRIES) {
-            System.err.println("[ERROR] Max retries exceeded for seq: " + seqNum);
+            Log.error("[ERROR] Max retries exceeded for seq: " + seqNum);
             unackedPackets.remove(seqNum);
+            transferFailed = true;
+            signalWindowOpened();
             return;
         }
 
         long timeSinceSent = System.currentTimeMillis() - unackedPacket.sendTime;
-        System.out.println("[RETRANSMIT] TIMEOUT occurred for seq: " + seqNum +
+        Log.info("[RETRANSMIT] TIMEOUT occurred for seq: " + seqNum +
                 " | Time since sent: " + timeSinceSent + "ms" +
                 " | Expected timeout: " + calculateTimeoutInterval() + "ms" +
                 " | EstRTT: " + String.format("%.2f", estimatedRTT) + "ms" +
@@ -812,200 +1109,156 @@ public class Client {
             unackedPacket.timestamp = System.currentTimeMillis();
             unackedPacket.sendTime = System.currentTimeMillis();
 
-            // FIXED: Save the congestion window BEFORE any modifications
             if (!unackedPacket.timeoutProcessed) {
-                int cwndBeforeTimeout = congestionWindow; // Capture current CWND
-                updateCongestionControlWithSavedCwnd(0, true, cwndBeforeTimeout);
+                congestionController.onTimeout();
                 unackedPacket.timeoutProcessed = true;
-                System.out.println("[CONGESTION] Timeout congestion control applied for seq: " + seqNum);
-            } else {
-                System.out.println(
+                Log.info("[CONGESTION] Timeout congestion control applied for seq: " + seqNum);
+            } else if (Log.DEBUG) {
+                Log.debug(
                         "[CONGESTION] Timeout already processed for seq: " + seqNum + " - skipping congestion control");
             }
 
-            unackedPacket.packet.sendPacket(out);
-            System.out.println("[RETRANSMIT] Packet retransmitted - seq: " + seqNum +
-                    " | Retry: " + unackedPacket.retryCount +
-                    " | New timeout: " + calculateTimeoutInterval() + "ms");
+            if (!resendSegment(unackedPacket, out)) {
+                return;
+            }
+            TIMEOUT_RETRANSMITS.increment();
+            if (Log.DEBUG) {
+                Log.debug("[RETRANSMIT] Packet retransmitted - seq: " + seqNum +
+                        " | Retry: " + unackedPacket.retryCount +
+                        " | New timeout: " + calculateTimeoutInterval() + "ms");
+            }
 
-            scheduleRetransmission(seqNum, out);
+            scheduleRetransmission(seqNum);
 
         } catch (IOException e) {
-            System.err.println("[ERROR] Retransmission failed: " + e.getMessage());
-        }
-    }
-
-    // Add this new method to handle timeout with saved CWND
-    private void updateCongestionControlWithSavedCwnd(int ackedBytes, boolean isTimeout, int oldCongestionWindow) {
-        if (isTimeout) {
-            // Use the saved congestion window value for ssthresh calculation
-            slowStartThreshold = Math.max(oldCongestionWindow / 2, Constants.MAX_SEGMENT_SIZE);
-            congestionWindow = Constants.MAX_SEGMENT_SIZE;
-            congestionState = CongestionState.SLOW_START;
-            packetsSinceLastIncrease = 0;
-
-            System.out.println("[CONGESTION] Timeout - Resetting to Slow Start");
-            System.out.println("[CONGESTION] Old CWND: " + oldCongestionWindow + " bytes");
-            System.out.println("[CONGESTION] New ssthresh: " + slowStartThreshold + " bytes (" +
-                    (slowStartThreshold / Constants.MAX_SEGMENT_SIZE) + " MSS)");
-            System.out.println("[CONGESTION] New CWND: " + Constants.MAX_SEGMENT_SIZE + " bytes");
-            System.out.println("[CONGESTION] State: SLOW_START");
-
-            cwndLog.add(new CwndLogEntry(
-                    System.currentTimeMillis() - startTime,
-                    totalPacketsSent,
-                    congestionWindow,
-                    "TIMEOUT",
-                    congestionState, slowStartThreshold, estimatedRTT));
-            return;
+            Log.error("[ERROR] Retransmission failed: " + e.getMessage());
         }
+    }
+
+    /**
+     * Blocks until every segment sent so far is acknowledged, the connection
+     * fails or the timeout passes. Returns whether everything was acknowledged.
+     */
+    private boolean awaitAllAcknowledged(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
 
-        // For non-timeout cases, use the regular method
-        updateCongestionControl(ackedBytes, isTimeout);
+        windowLock.lock();
+        try {
+            long remaining;
+            while (!unackedPackets.isEmpty() && ackReceiverRunning && !transferFailed &&
+                    (remaining = deadline - System.nanoTime()) > 0) {
+                windowOpened.awaitNanos(remaining);
+            }
+            return unackedPackets.isEmpty();
+        } finally {
+            windowLock.unlock();
+        }
     }
 
-    private void waitForAllAcks() {
-        System.out.println("[TRANSFER] Waiting for all packets to be acknowledged...");
-        System.out.println("[TRANSFER] Packet loss statistics - Dropped: " + packetsDropped +
+    private boolean waitForAllAcks() {
+        Log.info("[TRANSFER] Waiting for all packets to be acknowledged...");
+        Log.info("[TRANSFER] Packet loss statistics - Dropped: " + packetsDropped +
                 "/" + totalPacketsSent +
                 " (" + String.format("%.1f", (packetsDropped * 100.0 / totalPacketsSent)) + "%)");
 
-        long waitStart = System.currentTimeMillis();
-        long maxWaitTime = 15000;
-
-        while (!unackedPackets.isEmpty() &&
-                (System.currentTimeMillis() - waitStart) < maxWaitTime) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            }
+        try {
+            awaitAllAcknowledged(TimeUnit.MILLISECONDS.toNanos(15000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
         if (unackedPackets.isEmpty()) {
-            System.out.println("[TRANSFER] All packets acknowledged successfully!");
-            System.out.println("[TRANSFER] Final congestion control state:");
-            System.out.println("[TRANSFER] Final CWND: " + congestionWindow + " bytes (" +
-                    (congestionWindow / Constants.MAX_SEGMENT_SIZE) + " MSS)");
-            System.out.println("[TRANSFER] Final ssthresh: " + slowStartThreshold + " bytes");
-            System.out.println("[TRANSFER] Final state: " + congestionState);
-            System.out.println("[TRANSFER] Total sent: " + totalPacketsSent +
+            Log.info("[TRANSFER] All packets acknowledged successfully!");
+            Log.info("[TRANSFER] Final congestion control state:");
+            int finalCwnd = congestionController.getCongestionWindow();
+            Log.info("[TRANSFER] Final CWND: " + finalCwnd + " bytes (" +
+                    (finalCwnd / connectionManager.getMss()) + " MSS)");
+            Log.info("[TRANSFER] Final ssthresh: " + congestionController.getSlowStartThreshold() + " bytes");
+            Log.info("[TRANSFER] Final state: " + congestionController.getState());
+            Log.info("[TRANSFER] Total sent: " + totalPacketsSent +
                     " | Dropped: " + packetsDropped +
                     " (" + String.format("%.1f", (packetsDropped * 100.0 / totalPacketsSent)) + "%)");
-        } else {
-            System.err.println("[ERROR] Timeout waiting for acknowledgments. " +
-                    unackedPackets.size() + " packets still unacked.");
+            Log.info("[PACKET-POOL] Pooled segments: " + packetPool.getHits() +
+                    " | Pool misses: " + packetPool.getMisses());
+            Log.info("[RETRANSMIT-TIMER] Timers armed: " + retransmissionTimers.getTimersArmed() +
+                    " | Fired: " + retransmissionTimers.getTimersFired() +
+                    " | Cancelled: " + retransmissionTimers.getTimersCancelled());
+            Log.info("[SACK] Enabled: " + sackEnabled +
+                    " | Holes retransmitted: " + sackRetransmits);
+            Log.info("[PACKET-WRITER] " + packetWriter);
+            Log.info("[PACING] " + (congestionController.getPacingRate() > 0 ? "controller rate"
+                    : Constants.PACING_ENABLED ? "gain x cwnd / SRTT" : "off") +
+                    " | Waits: " + pacingWaits +
+                    " | Time paced: " + TimeUnit.NANOSECONDS.toMillis(pacingWaitNanos) + " ms");
+            Log.info("[CHECKSUM] Enabled: " + Constants.CHECKSUM_ENABLED +
+                    " | Segments corrupted in flight: " + packetsCorrupted +
+                    " | Corrupt ACKs dropped: " + corruptAcksDropped);
+            long ackCpuNanos = ManagementFactory.getThreadMXBean().getThreadCpuTime(ackThread.getId());
+            Log.info("[ACK-RECEIVER] ACKs received: " + acksReceived +
+                    " | Stale (reordered) ACKs dropped: " + staleAcksDropped +
+                    " | Thread CPU: " + TimeUnit.NANOSECONDS.toMillis(ackCpuNanos) + " ms" +
+                    " | Per ACK: " + (ackCpuNanos / 1000 / Math.max(1, acksReceived)) + " us");
+            return true;
         }
+        Log.error("[ERROR] Timeout waiting for acknowledgments. " +
+                unackedPackets.size() + " packets still unacked.");
+        return false;
     }
 
     private void logCwndHistory() {
-        String csvFileName = "cwnd_log_" + System.currentTimeMillis()
-                + ".csv";
-
-        try (PrintWriter writer = new PrintWriter(new FileWriter(csvFileName))) {
-            // Write CSV header with TCP variant info
-            writer.println("Time_ms,Packet_Number,CWND_bytes,CWND_MSS,SSThresh,RTT_ms,Event,State");
-
-            // Write data rows
-            for (CwndLogEntry entry : cwndLog) {
-                int cwndInMss = entry.cwndValue / Constants.MAX_SEGMENT_SIZE;
-                writer.printf("%d,%d,%d,%d,%d,%.2f,%s,%s%n",
-                        entry.timestamp,
-                        entry.packetNumber,
-                        entry.cwndValue,
-                        cwndInMss,
-                        entry.ssthresh,
-                        entry.RTT,
-                        entry.event,
-                        entry.state);
-            }
-
-            System.out.println("[CWND-LOG] CWND history saved to: " + csvFileName);
-            System.out.println("[CWND-LOG] TCP Variant: " + tcpVariant);
-            System.out.println("[CWND-LOG] Total entries logged: " + cwndLog.size());
-
-            // Print summary statistics to console
-            if (!cwndLog.isEmpty()) {
-                int maxCwnd = cwndLog.stream().mapToInt(e -> e.cwndValue).max().orElse(0);
-                int minCwnd = cwndLog.stream().mapToInt(e -> e.cwndValue).min().orElse(0);
-                double avgCwnd = cwndLog.stream().mapToInt(e -> e.cwndValue).average().orElse(0);
-                long duration = cwndLog.get(cwndLog.size() - 1).timestamp;
-
-                System.out.println("[CWND-LOG] Transfer Statistics (" + tcpVariant + "):");
-                System.out.println("[CWND-LOG]   Duration: " + duration + "ms");
-                System.out.println("[CWND-LOG]   Max CWND: " + maxCwnd + " bytes ("
-                        + (maxCwnd / Constants.MAX_SEGMENT_SIZE) + " MSS)");
-                System.out.println("[CWND-LOG]   Min CWND: " + minCwnd + " bytes ("
-                        + (minCwnd / Constants.MAX_SEGMENT_SIZE) + " MSS)");
-                System.out.println("[CWND-LOG]   Avg CWND: " + String.format("%.2f", avgCwnd) + " bytes ("
-                        + String.format("%.2f", avgCwnd / Constants.MAX_SEGMENT_SIZE) + " MSS)");
-
-                // Count different event types
-                long timeouts = cwndLog.stream().filter(e -> e.event.equals("TIMEOUT")).count();
-                long fastRetransmitsReno = cwndLog.stream().filter(e -> e.event.equals("FAST_RETRANSMIT_RENO")).count();
-                long fastRetransmitsTahoe = cwndLog.stream().filter(e -> e.event.equals("FAST_RETRANSMIT_TAHOE"))
-                        .count();
-                long slowStartIncreases = cwndLog.stream().filter(e -> e.event.equals("SLOW_START_INCREASE")).count();
-                long caIncreases = cwndLog.stream().filter(e -> e.event.equals("CA_INCREASE")).count();
-
-                System.out.println("[CWND-LOG]   Events Summary:");
-                System.out.println("[CWND-LOG]     Timeouts: " + timeouts);
-                if (tcpVariant == TcpVariant.RENO) {
-                    System.out.println("[CWND-LOG]     Fast Retransmits (Reno): " + fastRetransmitsReno);
-                } else {
-                    System.out.println("[CWND-LOG]     Fast Retransmits (Tahoe): " + fastRetransmitsTahoe);
-                }
-                System.out.println("[CWND-LOG]     Slow Start Increases: " + slowStartIncreases);
-                System.out.println("[CWND-LOG]     Congestion Avoidance Increases: " + caIncreases);
-            }
+        cwndRecorder.close();
+        cwndRecorder.logSummary(congestionController.getName());
+    }
 
-        } catch (IOException e) {
-            System.err.println("[ERROR] Failed to write CWND log to CSV file: " + e.getMessage());
-            // Fall back to console logging
-            System.out.println("[CWND-LOG] Falling back to console output:");
-            logCwndToConsole();
-        }
+    private long getBytesInFlight() {
+        return unackedPackets.getBytesInFlight();
     }
 
-    private void logCwndToConsole() {
-        System.out.println("\n[CWND-LOG] ==================== CONGESTION WINDOW HISTORY ====================");
-        System.out.println(
-                "[CWND-LOG]  Format: Time(ms) | Packet#  | CWND(bytes)  | CWND(MSS) | SSTHRESH | RTT | Event  | State");
-        System.out.println("[CWND-LOG] =====================================================================");
+    private int getEffectiveWindowSize() {
+        return Math.min(serverWindowSize, congestionController.getCongestionWindow());
+    }
 
-        for (CwndLogEntry entry : cwndLog) {
-            int cwndInMss = entry.cwndValue / Constants.MAX_SEGMENT_SIZE;
-            System.out.printf("[CWND-LOG] %8d | %7d | %10d | %8d | %8d | %8.2f | %-20s | %s%n",
-                    entry.timestamp,
-                    entry.packetNumber,
-                    entry.cwndValue,
-                    cwndInMss,
-                    entry.ssthresh,
-                    entry.RTT,
-                    entry.event,
-                    entry.state);
+    private void signalWindowOpened() {
+        windowLock.lock();
+        try {
+            windowOpened.signalAll();
+        } finally {
+            windowLock.unlock();
         }
-        System.out.println("[CWND-LOG] =====================================================================\n");
     }
 
-    private long getBytesInFlight() {
-        return sequenceNumber - baseSequenceNumber;
+    /**
+     * Blocks the sender until the next segment fits in the window. Returns false
+     * if the transfer can no longer make progress.
+     */
+    private boolean awaitWindowOpen() throws InterruptedException {
+        windowLock.lock();
+        try {
+            while (getBytesInFlight() + connectionManager.getMss() > getEffectiveWindowSize()) {
+                if (!ackReceiverRunning || transferFailed) {
+                    return false;
+                }
+                windowOpened.await();
+            }
+            return true;
+        } finally {
+            windowLock.unlock();
+        }
     }
 
-    private static class UnackedPacket {
-        Packet packet;
-        long sendTime;
-        int retryCount;
-        long timestamp;
-        boolean timeoutProcessed; // Add this flag
+    private Packet awaitFinAck() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Constants.TIMEOUT_MS);
 
-        public UnackedPacket(Packet packet) {
-            this.packet = packet;
-            this.timestamp = System.currentTimeMillis();
-            this.sendTime = System.currentTimeMillis();
-            this.retryCount = 0;
-            this.timeoutProcessed = false; // Initialize to false
+        windowLock.lock();
+        try {
+            long remaining;
+            while (finAckPacket == null && ackReceiverRunning &&
+                    (remaining = deadline - System.nanoTime()) > 0) {
+                windowOpened.awaitNanos(remaining);
+            }
+            return finAckPacket;
+        } finally {
+            windowLock.unlock();
         }
     }
-n}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,73 +1,354 @@
 import java.io.*;
 import java.net.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Handles individual client connections for the TCP server
+ * Handles individual client connections for the TCP server. The handshake,
+ * file reception and close run as a state machine fed one packet at a time,
+ * so the same handler serves a blocking socket (handleConnection) and a
+ * selector event loop (onPacket for each parsed frame).
  */
 public class ClientConnectionHandler {
+
+    private enum State {
+        AWAIT_SYN, AWAIT_HANDSHAKE_ACK, RECEIVING, AWAIT_FINAL_ACK, CLOSED
+    }
+
+    // Live metrics, summed over every connection in this JVM (Metrics)
+    private static final Metrics.Counter SEGMENTS_RECEIVED = Metrics.counter("tcp_server_segments_received_total",
+            "Data segments received, including duplicates");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("tcp_server_bytes_written_total",
+            "Payload bytes written to output files");
+    private static final Metrics.Counter OUT_OF_ORDER_SEGMENTS = Metrics.counter(
+            "tcp_server_out_of_order_segments_total", "Segments received ahead of a gap");
+    private static final Metrics.Counter DUPLICATE_SEGMENTS = Metrics.counter("tcp_server_duplicate_segments_total",
+            "Segments received again after they were already held or acknowledged");
+    private static final Metrics.Counter CORRUPT_SEGMENTS = Metrics.counter("tcp_server_corrupt_segments_total",
+            "Segments dropped for a bad checksum");
+    private static final Metrics.Counter ACKS_SENT = Metrics.counter("tcp_server_acks_sent_total", "ACKs sent");
+    private static final Metrics.Histogram OUT_OF_ORDER_DEPTH = Metrics.histogram("tcp_server_out_of_order_depth",
+            "Segments held past a gap, sampled each time one is added", 2, 16, 1);
+    // Gauges of this connection, labelled with its client id
+    private final List<Metrics.Function> connectionMetrics = new ArrayList<>();
+
     private final Socket clientSocket;
+    private PacketSink sink;
     private final Random random = new Random();
     private final int clientId;
-    private final String outputFile;
-    private static int clientCounter = 0;
+    private String outputFile;
+    private int filesReceived = 0;
+    private static final AtomicInteger clientCounter = new AtomicInteger();
 
+    private State state = State.AWAIT_SYN;
     private long sequenceNumber;
     private long expectedSeqNumber;
-    private ByteArrayOutputStream receivedData;
+    private long dataStartSeqNumber;
+    private FileChannel outputChannel;
+    // Set while receiving one stripe of a striped transfer: the shared output file,
+    // and the file offset where the stripe's first byte (dataStartSeqNumber) goes
+    private StripedFile stripe;
+    private long outputOffset = 0;
     private int clientWindowSize;
 
-    private Map<Long, byte[]> outOfOrderBuffer = new TreeMap<>();
-    private Set<Long> acknowledgedSequences = new HashSet<>();
+    private long totalBytesReceived = 0;
+    private int packetsReceived = 0;
+    private int corruptSegmentsDropped = 0;
+    // Digest of the data bytes delivered in order on this connection; null unless -Dtcp.fileDigest=true
+    private final DeliveredDigest deliveredDigest = Constants.FILE_DIGEST_ENABLED ? new DeliveredDigest() : null;
+
+    // Out-of-order segments are written to disk on arrival; only their ranges are kept (seq -> length)
+    private final TreeMap<Long, Integer> outOfOrderBuffer = new TreeMap<>();
+    private long outOfOrderBytes = 0;
+    private long lastOutOfOrderSeq = -1;
+
+    // Receive window: its right edge only moves forward, and only as far as the receive
+    // buffer has room beyond the out-of-order bytes it holds. Windows we advertise are
+    // shifted right by windowShift when the client offered window scaling.
+    private int receiveBufferSize;
+    private int windowShift = 0;
+    private long windowRightEdge;
+
+    // RFC 7323 timestamps: tsRecent is the client TSval echoed in our ACKs, taken only from
+    // segments at or below the last ACK point so a delayed or gap ACK echoes the oldest one
+    private boolean timestampsEnabled;
+    private long tsRecent;
+    private long lastAckSent;
+
+    // SACK blocks are reported when the client offered SACK-permitted in its SYN
+    private boolean sackPermitted;
+    private final long[] sackEdges = new long[2 * Packet.MAX_SACK_BLOCKS];
+
+    // Delayed ACK state: in-order bytes not yet acknowledged and when the ACK is due (0 = none pending)
+    private int unackedSegments = 0;
+    private long ackDeadlineNanos = 0;
+    private int ackPort;
+    private int acksSent = 0;
+    private int acksDelayed = 0;
+
+    // Each segment is read into a pooled slot and written straight to disk; ACKs reuse one packet
+    private final PacketPool packetPool = new PacketPool(2);
+    private final Packet ackPacket = new Packet();
+
+    // Optional slow-receiver emulation; null means the receiver runs at full speed
+    private final TokenBucket receiverPacer = Constants.RECEIVER_PACING_RATE > 0
+            ? new TokenBucket(Constants.RECEIVER_PACING_RATE, Constants.RECEIVER_PACING_BURST)
+            : null;
 
     public ClientConnectionHandler(Socket clientSocket) {
         this.clientSocket = clientSocket;
-        this.clientId = ++clientCounter;
+        this.clientId = clientCounter.incrementAndGet();
         this.outputFile = Constants.OUTPUT_FILE_PREFIX + clientId + ".txt";
-        this.receivedData = new ByteArrayOutputStream();
+        registerConnectionMetrics(String.valueOf(clientId));
     }
 
-    public void handleConnection() {
-        try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-                DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
-
-            System.out.println("Handling client " + clientId);
+    private void registerConnectionMetrics(String conn) {
+        connectionMetrics.add(Metrics.gauge("tcp_server_out_of_order_segments", "Segments held past a gap",
+                outOfOrderBuffer::size, "conn", conn));
+        connectionMetrics.add(Metrics.gauge("tcp_server_out_of_order_bytes", "Bytes held past a gap",
+                () -> outOfOrderBytes, "conn", conn));
+        connectionMetrics.add(Metrics.counterFunction("tcp_server_connection_bytes_received_total",
+                "Payload bytes received in order on this connection", () -> totalBytesReceived, "conn", conn));
+    }
 
-            performHandshake(in, out);
+    /**
+     * Creates a handler driven by an event loop, which reads the frames and
+     * passes each packet to onPacket.
+     */
+    public ClientConnectionHandler(PacketSink sink) {
+        this((Socket) null);
+        this.sink = sink;
+    }
 
-            receiveFile(in, out);
+    public void handleConnection() {
+        try (FrameInputStream frames = new FrameInputStream(clientSocket.getInputStream());
+                DataInputStream in = new DataInputStream(frames);
+                OutputStream out = LinkEmulator.wrap(clientSocket.getOutputStream(), "server->client " + clientId)) {
+
+            Log.info("Handling client " + clientId);
+            // ACKs are staged and flushed once no further frame is already buffered,
+            // so a burst of segments read in one go is answered with one write
+            PacketWriter writer = new PacketWriter(out);
+            sink = writer::write;
+
+            while (!isClosed()) {
+                Packet packet;
+                try {
+                    if (ackDeadlineNanos != 0 && !awaitFrameUntil(frames, ackDeadlineNanos)) {
+                        // No segment arrived before the delayed ACK fell due
+                        onAckTimer();
+                        writer.flush();
+                        continue;
+                    }
+                    packet = Packet.receivePacket(in, packetPool);
+                } catch (EOFException e) {
+                    onEndOfStream();
+                    break;
+                }
 
-            handleConnectionClose(in, out);
+                int payloadLength = onPacket(packet);
+                if (receiverPacer != null && payloadLength > 0) {
+                    writer.flush();
+                    receiverPacer.acquire(payloadLength);
+                } else if (!frames.hasBufferedData()) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+            Log.info("Client " + clientId + " - [PACKET-WRITER] " + writer);
 
         } catch (IOException e) {
-            System.err.println("Error handling client " + clientId + ": " + e.getMessage());
+            Log.error("Error handling client " + clientId + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            close();
             try {
                 clientSocket.close();
-                System.out.println("Client " + clientId + " disconnected");
+                Log.info("Client " + clientId + " disconnected");
             } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
+                Log.error("Error closing client socket: " + e.getMessage());
             }
         }
     }
 
-    private void performHandshake(DataInputStream in, DataOutputStream out) throws IOException {
+    /**
+     * Waits for the next frame until deadline. Returns false on timeout, with
+     * nothing consumed from the stream.
+     */
+    private boolean awaitFrameUntil(FrameInputStream frames, long deadline) throws IOException {
+        long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) {
+            return frames.hasBufferedData();
+        }
+        // Round up: a zero timeout would mean wait forever
+        clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999_999)));
+        try {
+            frames.awaitData();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            clientSocket.setSoTimeout(0);
+        }
+    }
 
-        Packet synPacket = Packet.receivePacket(in);
+    /**
+     * Advances the connection by one received packet and releases it. Returns
+     * the payload bytes consumed, which the caller uses for receiver pacing.
+     */
+    public int onPacket(Packet packet) throws IOException {
+        try {
+            if (Constants.CHECKSUM_ENABLED && !packet.verifyChecksum()) {
+                // Dropped like a lost segment; the client's loss recovery resends it
+                corruptSegmentsDropped++;
+                CORRUPT_SEGMENTS.increment();
+                if (Log.DEBUG) {
+                    Log.debug("Client " + clientId + " - Dropped corrupt segment (seq: " +
+                            packet.getSequenceNumber() + ", " + corruptSegmentsDropped + " so far)");
+                }
+                return 0;
+            }
+            switch (state) {
+                case AWAIT_SYN:
+                    handleSyn(packet);
+                    return 0;
+                case AWAIT_HANDSHAKE_ACK:
+                    handleHandshakeAck(packet);
+                    return 0;
+                case RECEIVING:
+                    return handleSegment(packet);
+                case AWAIT_FINAL_ACK:
+                    handleFinalAck(packet);
+                    return 0;
+                default:
+                    return 0;
+            }
+        } finally {
+            packet.release();
+        }
+    }
 
+    /**
+     * Called when the client closed its side of the connection.
+     */
+    public void onEndOfStream() {
+        if (state == State.AWAIT_FINAL_ACK) {
+            Log.info("Client " + clientId + " - Client closed connection or timeout occurred");
+        } else if (state != State.CLOSED) {
+            Log.error("Error handling client " + clientId + ": connection closed in state " + state);
+        }
+        close();
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public int getClientId() {
+        return clientId;
+    }
+
+    public TokenBucket getReceiverPacer() {
+        return receiverPacer;
+    }
+
+    /**
+     * Returns the System.nanoTime() deadline of the pending delayed ACK, or 0 if none.
+     */
+    public long getAckDeadlineNanos() {
+        return ackDeadlineNanos;
+    }
+
+    /**
+     * Sends the pending delayed ACK if its deadline has passed.
+     */
+    public void onAckTimer() throws IOException {
+        if (ackDeadlineNanos != 0 && System.nanoTime() - ackDeadlineNanos >= 0) {
+            acksDelayed++;
+            sendCumulativeAck(ackPort);
+        }
+    }
+
+    /**
+     * Releases the output file; safe to call more than once.
+     */
+    public void close() {
+        state = State.CLOSED;
+        connectionMetrics.forEach(Metrics.Function::remove);
+        if (stripe != null) {
+            // Dropped mid-stripe; the stripe's bytes are not counted towards the file
+            stripe.release();
+            stripe = null;
+            outputChannel = null;
+        }
+        closeOutput();
+    }
+
+    /**
+     * Completes the file (or stripe) received so far.
+     */
+    private void finishOutput() {
+        if (stripe != null) {
+            stripe.finishStripe(expectedSeqNumber - dataStartSeqNumber);
+            Log.info("Client " + clientId + " - Stripe of " + stripe.getOutputFile() + " received (" +
+                    (expectedSeqNumber - dataStartSeqNumber) + " bytes at offset " + outputOffset + ")");
+            stripe = null;
+            outputChannel = null;
+            outputOffset = 0;
+            return;
+        }
+        saveReceivedFile();
+        closeOutput();
+    }
+
+    private void closeOutput() {
+        if (outputChannel != null && outputChannel.isOpen()) {
+            try {
+                outputChannel.close();
+            } catch (IOException e) {
+                Log.error("Error closing output file: " + e.getMessage());
+            }
+        }
+        outputChannel = null;
+    }
+
+    private void handleSyn(Packet synPacket) throws IOException {
         if (!synPacket.getSynFlag()) {
-            System.err.println("Expected SYN packet but didn't receive one");
+            Log.error("Expected SYN packet but didn't receive one");
+            close();
             return;
         }
 
-        System.out.println("Client " + clientId + " - Received SYN packet:");
+        if (Log.DEBUG) {
+            Log.debug("Client " + clientId + " - Received SYN packet:");
+        }
         synPacket.printPacketInfo();
 
         sequenceNumber = random.nextInt(1000000);
         expectedSeqNumber = synPacket.getSequenceNumber() + 1;
         clientWindowSize = synPacket.getWindowSize();
+        sackPermitted = Constants.SACK_ENABLED && synPacket.hasOption(Packet.OPTION_SACK_PERMITTED);
+        boolean windowScaling = Constants.WINDOW_SCALING_ENABLED && synPacket.getWindowScale() >= 0;
+        receiveBufferSize = windowScaling ? Constants.RECEIVE_BUFFER_SIZE
+                : Math.min(Constants.RECEIVE_BUFFER_SIZE, Packet.MAX_WINDOW);
+        if (windowScaling) {
+            while ((receiveBufferSize >> windowShift) > Packet.MAX_WINDOW && windowShift < Packet.MAX_WINDOW_SCALE) {
+                windowShift++;
+            }
+        }
+        windowRightEdge = expectedSeqNumber + receiveBufferSize;
+        timestampsEnabled = Constants.TIMESTAMPS_ENABLED && synPacket.hasTimestamps();
+        if (timestampsEnabled) {
+            tsRecent = synPacket.getTimestampValue();
+        }
+        lastAckSent = expectedSeqNumber;
 
         Packet synAckPacket = new Packet();
         synAckPacket.setSourcePort(Constants.SERVER_PORT);
@@ -76,169 +357,432 @@ public class ClientConnectionHandler {
         synAckPacket.setAckNumber(expectedSeqNumber);
         synAckPacket.setSynFlag(true);
         synAckPacket.setAckFlag(true);
-        synAckPacket.setWindowSize(Constants.WINDOW_SIZE);
+        // Never scaled in a SYN-ACK
+        synAckPacket.setWindowSize(Math.min(receiveBufferSize, Packet.MAX_WINDOW));
+        synAckPacket.addMssOption(Constants.MAX_SEGMENT_SIZE);
+        if (sackPermitted) {
+            synAckPacket.addSackPermittedOption();
+        }
+        if (windowScaling) {
+            synAckPacket.addWindowScaleOption(windowShift);
+        }
+        addTimestamps(synAckPacket);
 
-        synAckPacket.sendPacket(out);
-        System.out.println("Client " + clientId + " - Sent SYN-ACK packet:");
+        sink.send(synAckPacket);
+        if (Log.DEBUG) {
+            Log.debug("Client " + clientId + " - Sent SYN-ACK packet:");
+        }
         synAckPacket.printPacketInfo();
 
         sequenceNumber++;
+        state = State.AWAIT_HANDSHAKE_ACK;
+    }
 
-        Packet ackPacket = Packet.receivePacket(in);
-
+    private void handleHandshakeAck(Packet ackPacket) throws IOException {
         if (!ackPacket.getAckFlag() || ackPacket.getSynFlag()) {
-            System.err.println("Expected ACK packet but didn't receive one");
+            Log.error("Expected ACK packet but didn't receive one");
+            close();
             return;
         }
 
-        if (ackPacket.getAckNumber() != sequenceNumber) {
-            System.err.println("Received incorrect ACK number");
+        if (Packet.unwrapSequence(ackPacket.getAckNumber(), sequenceNumber) != sequenceNumber) {
+            Log.error("Received incorrect ACK number");
+            close();
             return;
         }
 
-        System.out.println("Client " + clientId + " - Received ACK packet:");
+        if (Log.DEBUG) {
+            Log.debug("Client " + clientId + " - Received ACK packet:");
+        }
         ackPacket.printPacketInfo();
 
-        System.out.println("Client " + clientId + " - Connection established!");
-        System.out.println("Client window size: " + clientWindowSize);
-        System.out.println("Server window size: " + Constants.WINDOW_SIZE);
+        Log.info("Client " + clientId + " - Connection established!");
+        Log.info("Client window size: " + clientWindowSize);
+        Log.info("Server receive buffer: " + receiveBufferSize + " bytes" +
+                " | Window shift: " + windowShift);
+
+        startReceiving();
+    }
+
+    private void startReceiving() {
+        Log.info("Client " + clientId + " - Starting file reception..." +
+                (receiverPacer != null ? " (paced at " + receiverPacer + ")" : ""));
+
+        dataStartSeqNumber = expectedSeqNumber;
+        state = State.RECEIVING;
+    }
+
+    /**
+     * Writes received data to channel instead of the connection's output file;
+     * the benchmarks in jmh/ pass /dev/null.
+     */
+    void setOutputChannel(FileChannel channel) {
+        outputChannel = channel;
+    }
+
+    /**
+     * Opens the output file on first use, so idle connections hold only their socket.
+     */
+    private FileChannel output() throws IOException {
+        if (outputChannel == null) {
+            outputChannel = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+        return outputChannel;
     }
 
     private void saveReceivedFile() {
         try {
-            byte[] fileData = receivedData.toByteArray();
-            Files.write(Paths.get(outputFile), fileData);
-            System.out.println(
-                    "Client " + clientId + " - File saved as: " + outputFile + " (" + fileData.length + " bytes)");
-
-            String content = new String(fileData);
-            System.out.println("File content preview:");
-            System.out.println(content.substring(0, Math.min(100, content.length())) +
+            // Data is already on disk; trim anything past the last in-order byte and flush
+            long fileSize = expectedSeqNumber - dataStartSeqNumber;
+            FileChannel outputChannel = output();
+            outputChannel.truncate(fileSize);
+            outputChannel.force(false);
+            Log.info(
+                    "Client " + clientId + " - File saved as: " + outputFile + " (" + fileSize + " bytes)");
+
+            ByteBuffer preview = ByteBuffer.allocate(101);
+            outputChannel.read(preview, 0);
+            String content = new String(preview.array(), 0, preview.position(), StandardCharsets.UTF_8);
+            Log.info("File content preview:");
+            Log.info(content.substring(0, Math.min(100, content.length())) +
                     (content.length() > 100 ? "..." : ""));
 
         } catch (IOException e) {
-            System.err.println("Error saving file: " + e.getMessage());
+            Log.error("Error saving file: " + e.getMessage());
         }
     }
 
-    private void handleConnectionClose(DataInputStream in, DataOutputStream out) throws IOException {
+    private int handleSegment(Packet dataPacket) throws IOException {
+        recordTimestamp(dataPacket);
 
-    }
+        if (dataPacket.getFinFlag()) {
+            Log.info("Client " + clientId + " - Received FIN packet - file transfer completed");
 
-    private void receiveFile(DataInputStream in, DataOutputStream out) throws IOException {
-        System.out.println("Client " + clientId + " - Starting file reception...");
-        int totalBytesReceived = 0;
-        int packetsReceived = 0;
+            processOutOfOrderPackets();
 
-        while (true) {
-            try {
-                Packet dataPacket = Packet.receivePacket(in);
+            finishOutput();
 
-                if (dataPacket.getFinFlag()) {
-                    System.out.println("Client " + clientId + " - Received FIN packet - file transfer completed");
+            Log.info("Client " + clientId + " - File reception completed:");
+            Log.info("Total packets received: " + packetsReceived);
+            Log.info("Total bytes received: " + totalBytesReceived);
+            Log.info("Named files received: " + filesReceived);
+            Log.info("Corrupt segments dropped: " + corruptSegmentsDropped);
+            Log.info("ACKs sent: " + acksSent + " for " + packetsReceived + " segments" +
+                    " (" + acksDelayed + " on delayed-ACK timeout)");
 
-                    processOutOfOrderPackets();
+            handleFinPacket(dataPacket);
+            return 0;
+        }
 
-                    saveReceivedFile();
+        int payloadLength = dataPacket.getPayloadLength();
+        if (payloadLength == 0) {
+            return 0;
+        }
 
-                    handleFinPacket(dataPacket, in, out);
-                    return;
-                }
+        packetsReceived++;
+        SEGMENTS_RECEIVED.increment();
+        long packetSeqNum = Packet.unwrapSequence(dataPacket.getSequenceNumber(), expectedSeqNumber);
 
-                byte[] payload = dataPacket.getPayload();
-                if (payload.length == 0) {
-                    continue;
-                }
+        if (dataPacket.isFileHeader()) {
+            handleFileHeader(dataPacket, payloadLength);
+            return payloadLength;
+        }
 
-                packetsReceived++;
-                long packetSeqNum = dataPacket.getSequenceNumber();
+        if (outOfOrderBuffer.containsKey(packetSeqNum)) {
+            DUPLICATE_SEGMENTS.increment();
+            if (Log.DEBUG) {
+                Log.debug("Client " + clientId + " - Received duplicate packet (seq: " + packetSeqNum + ")");
+            }
+
+            sendCumulativeAck(dataPacket.getSourcePort());
+            return payloadLength;
+        }
 
-                if (acknowledgedSequences.contains(packetSeqNum)) {
-                    System.out
-                            .println("Client " + clientId + " - Received duplicate packet (seq: " + packetSeqNum + ")");
+        if (packetSeqNum == expectedSeqNumber) {
 
-                    sendCumulativeAck(out, dataPacket.getSourcePort());
-                    continue;
-                }
+            dataPacket.writePayloadTo(output(), outputOffset + packetSeqNum - dataStartSeqNumber);
+            BYTES_WRITTEN.add(payloadLength);
+            if (deliveredDigest != null) {
+                deliveredDigest.update(dataPacket);
+            }
+            totalBytesReceived += payloadLength;
+            expectedSeqNumber += payloadLength;
 
-                if (packetSeqNum == expectedSeqNumber) {
+            if (Log.DEBUG) {
+                Log.debug("Client " + clientId + " - Received in-order packet " + packetsReceived +
+                        " (seq: " + packetSeqNum + ", " + payloadLength + " bytes) - Total: " + totalBytesReceived
+                        + " bytes");
+            }
 
-                    receivedData.write(payload);
-                    totalBytesReceived += payload.length;
-                    expectedSeqNumber += payload.length;
-                    acknowledgedSequences.add(packetSeqNum);
+            // Closing a gap, or still having one, is ACKed at once (RFC 5681); the
+            // steady in-order stream is ACKed every second segment
+            boolean filledGap = !outOfOrderBuffer.isEmpty();
+            processOutOfOrderPackets();
 
-                    System.out.println("Client " + clientId + " - Received in-order packet " + packetsReceived +
-                            " (seq: " + packetSeqNum + ", " + payload.length + " bytes) - Total: " + totalBytesReceived
-                            + " bytes");
+            if (filledGap || !outOfOrderBuffer.isEmpty()) {
+                sendCumulativeAck(dataPacket.getSourcePort());
+            } else {
+                delayAck(dataPacket.getSourcePort(), payloadLength);
+            }
 
-                    processOutOfOrderPackets();
+        } else if (packetSeqNum < expectedSeqNumber) {
+            DUPLICATE_SEGMENTS.increment();
 
-                    sendCumulativeAck(out, dataPacket.getSourcePort());
+            if (Log.DEBUG) {
+                Log.debug("Client " + clientId + " - Received old packet (seq: " + packetSeqNum +
+                        ", expected: " + expectedSeqNumber + ")");
+            }
 
-                } else if (packetSeqNum < expectedSeqNumber) {
+            sendCumulativeAck(dataPacket.getSourcePort());
 
-                    System.out.println("Client " + clientId + " - Received old packet (seq: " + packetSeqNum +
-                            ", expected: " + expectedSeqNumber + ")");
+        } else {
 
-                    sendCumulativeAck(out, dataPacket.getSourcePort());
+            if (Log.DEBUG) {
+                Log.debug("Client " + clientId + " - Received out-of-order packet (seq: " + packetSeqNum +
+                        ", expected: " + expectedSeqNumber + ") - buffering");
+            }
 
-                } else {
+            if (ackDeadlineNanos != 0) {
+                // Release the held ACK first, so the ACK for this segment reaches
+                // the client as a duplicate and counts towards fast retransmit
+                sendCumulativeAck(dataPacket.getSourcePort());
+            }
 
-                    System.out.println("Client " + clientId + " - Received out-of-order packet (seq: " + packetSeqNum +
-                            ", expected: " + expectedSeqNumber + ") - buffering");
+            if (packetSeqNum + payloadLength <= windowRightEdge) {
+                // Positional write at the segment's file offset; the gap is filled in later
+                dataPacket.writePayloadTo(output(), outputOffset + packetSeqNum - dataStartSeqNumber);
+                BYTES_WRITTEN.add(payloadLength);
+                OUT_OF_ORDER_SEGMENTS.increment();
+                outOfOrderBuffer.put(packetSeqNum, payloadLength);
+                OUT_OF_ORDER_DEPTH.record(outOfOrderBuffer.size());
+                outOfOrderBytes += payloadLength;
+                lastOutOfOrderSeq = packetSeqNum;
+            } else if (Log.DEBUG) {
+                Log.debug("Segment beyond the advertised window (right edge: " + windowRightEdge +
+                        "), dropping packet");
+            }
 
-                    if (outOfOrderBuffer.size() < Constants.BUFFER_SIZE / Constants.MAX_SEGMENT_SIZE) {
-                        outOfOrderBuffer.put(packetSeqNum, payload);
-                        acknowledgedSequences.add(packetSeqNum);
-                    } else {
-                        System.out.println("Out-of-order buffer full, dropping packet");
-                    }
+            sendCumulativeAck(dataPacket.getSourcePort());
+        }
 
-                    sendCumulativeAck(out, dataPacket.getSourcePort());
-                }
+        return payloadLength;
+    }
 
-                Thread.sleep(5);
+    /**
+     * Holds back the ACK for an in-order segment until ACK_EVERY_SEGMENTS full
+     * segments are unacknowledged or ACK_DELAY_MS has passed.
+     */
+    private void delayAck(int clientPort, int payloadLength) throws IOException {
+        if (Constants.ACK_DELAY_MS <= 0) {
+            sendCumulativeAck(clientPort);
+            return;
+        }
+        ackPort = clientPort;
+        if (payloadLength >= Constants.MAX_SEGMENT_SIZE) {
+            unackedSegments++;
+        }
+        if (unackedSegments >= Constants.ACK_EVERY_SEGMENTS) {
+            sendCumulativeAck(clientPort);
+        } else if (ackDeadlineNanos == 0) {
+            ackDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Constants.ACK_DELAY_MS);
+        }
+    }
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+    /**
+     * Starts the next file of a session. The client sends a header only once
+     * every byte before it is acknowledged, so when it arrives in order the
+     * current file is complete and all later bytes belong to the new one.
+     */
+    private void handleFileHeader(Packet header, int payloadLength) throws IOException {
+        long packetSeqNum = Packet.unwrapSequence(header.getSequenceNumber(), expectedSeqNumber);
+        if (packetSeqNum == expectedSeqNumber) {
+            if (filesReceived > 0 || expectedSeqNumber > dataStartSeqNumber) {
+                finishOutput();
             }
+            if (header.isStripeHeader()) {
+                openStripe(header.getPayload());
+            } else {
+                outputFile = Constants.OUTPUT_FILE_PREFIX + clientId + "_" + sanitizeFileName(header.getPayload());
+            }
+            expectedSeqNumber += payloadLength;
+            dataStartSeqNumber = expectedSeqNumber;
+            filesReceived++;
+            Log.info("Client " + clientId + " - Receiving file " + filesReceived + ": " + outputFile);
+        } else {
+            Log.info("Client " + clientId + " - Ignoring file header out of place (seq: " + packetSeqNum +
+                    ", expected: " + expectedSeqNumber + ")");
+        }
+        sendCumulativeAck(header.getSourcePort());
+    }
+
+    /**
+     * Joins the striped transfer a stripe header names. Its payload is the
+     * transfer id, the stripe's offset and length, the file size and the name.
+     */
+    private void openStripe(byte[] payload) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(payload);
+        long transferId = header.getLong();
+        long offset = header.getLong();
+        long length = header.getLong();
+        long fileSize = header.getLong();
+        if (offset < 0 || length < 0 || offset + length > fileSize) {
+            throw new IOException("Stripe [" + offset + ", " + (offset + length) + ") outside file of " +
+                    fileSize + " bytes");
         }
+        byte[] name = new byte[header.remaining()];
+        header.get(name);
+
+        stripe = StripedFile.open(transferId, Constants.OUTPUT_FILE_PREFIX + "striped_" + sanitizeFileName(name),
+                fileSize);
+        outputChannel = stripe.channel();
+        outputOffset = offset;
+        outputFile = stripe.getOutputFile();
+    }
 
-        System.out.println("Client " + clientId + " - File reception completed:");
-        System.out.println("Total packets received: " + packetsReceived);
-        System.out.println("Total bytes received: " + totalBytesReceived);
+    /**
+     * Keeps only a plain file name, so received files stay next to each other.
+     */
+    private static String sanitizeFileName(byte[] name) {
+        return new String(name, StandardCharsets.UTF_8).replaceAll("[^A-Za-z0-9._-]", "_");
     }
 
-    private void sendCumulativeAck(DataOutputStream out, int clientPort) throws IOException {
-        Packet ackPacket = new Packet();
+    private void sendCumulativeAck(int clientPort) throws IOException {
+        unackedSegments = 0;
+        ackDeadlineNanos = 0;
+        acksSent++;
+        ACKS_SENT.increment();
+
+        ackPacket.clear();
         ackPacket.setSourcePort(Constants.SERVER_PORT);
         ackPacket.setDestinationPort(clientPort);
         ackPacket.setSequenceNumber(sequenceNumber);
         ackPacket.setAckNumber(expectedSeqNumber);
         ackPacket.setAckFlag(true);
-        ackPacket.setWindowSize(Constants.WINDOW_SIZE);
+        ackPacket.setWindowSize(advertisedWindow());
+        addTimestamps(ackPacket);
+        lastAckSent = expectedSeqNumber;
+
+        int sackBlocks = sackPermitted ? buildSackBlocks(timestampsEnabled
+                ? Packet.MAX_SACK_BLOCKS_WITH_TIMESTAMPS : Packet.MAX_SACK_BLOCKS) : 0;
+        if (sackBlocks > 0) {
+            ackPacket.addSackOption(sackEdges, sackBlocks);
+        }
+
+        sink.send(ackPacket);
+        if (Log.DEBUG) {
+            Log.debug("Client " + clientId + " - Sent cumulative ACK for sequence: " + expectedSeqNumber +
+                    (sackBlocks > 0 ? " | SACK blocks: " + sackBlocks : ""));
+        }
+    }
+
+    private void recordTimestamp(Packet segment) {
+        if (timestampsEnabled && segment.hasTimestamps()
+                && Packet.unwrapSequence(segment.getSequenceNumber(), lastAckSent) <= lastAckSent) {
+            long tsVal = segment.getTimestampValue();
+            if (Packet.timestampAfter(tsVal, tsRecent)) {
+                tsRecent = tsVal;
+            }
+        }
+    }
+
+    private void addTimestamps(Packet packet) {
+        if (timestampsEnabled) {
+            packet.addTimestampsOption(Packet.timestampClock(), tsRecent);
+        }
+    }
+
+    /**
+     * Returns the window field for the next ACK: free receive buffer space
+     * beyond the ACK point, scaled by windowShift. Rounded up so the right
+     * edge the client sees never moves back (RFC 7323, section 2.4).
+     */
+    private int advertisedWindow() {
+        long window = Math.max(windowRightEdge - expectedSeqNumber, receiveBufferSize - outOfOrderBytes);
+        long scaled = Math.min(Packet.MAX_WINDOW, (window + (1L << windowShift) - 1) >> windowShift);
+        windowRightEdge = expectedSeqNumber + (scaled << windowShift);
+        return (int) scaled;
+    }
+
+    /**
+     * Fills sackEdges from the out-of-order ranges, merging adjacent segments.
+     * Per RFC 2018 the block holding the most recently received segment goes
+     * first, followed by the others in sequence order.
+     */
+    private int buildSackBlocks(int maxBlocks) {
+        int blocks = 0;
+        long recentStart = -1;
+        if (outOfOrderBuffer.containsKey(lastOutOfOrderSeq)) {
+            recentStart = lastOutOfOrderSeq;
+            Map.Entry<Long, Integer> lower;
+            while ((lower = outOfOrderBuffer.lowerEntry(recentStart)) != null &&
+                    lower.getKey() + lower.getValue() == recentStart) {
+                recentStart = lower.getKey();
+            }
+            long recentEnd = lastOutOfOrderSeq;
+            Integer length;
+            while ((length = outOfOrderBuffer.get(recentEnd)) != null) {
+                recentEnd += length;
+            }
+            sackEdges[0] = recentStart;
+            sackEdges[1] = recentEnd;
+            blocks = 1;
+        }
 
-        ackPacket.sendPacket(out);
-        System.out.println("Client " + clientId + " - Sent cumulative ACK for sequence: " + expectedSeqNumber);
+        long start = -1;
+        long end = -1;
+        for (Map.Entry<Long, Integer> entry : outOfOrderBuffer.entrySet()) {
+            if (entry.getKey() == end) {
+                end += entry.getValue();
+                continue;
+            }
+            if (start >= 0 && start != recentStart) {
+                sackEdges[2 * blocks] = start;
+                sackEdges[2 * blocks + 1] = end;
+                if (++blocks == maxBlocks) {
+                    return blocks;
+                }
+            }
+            start = entry.getKey();
+            end = start + entry.getValue();
+        }
+        if (start >= 0 && start != recentStart && blocks < maxBlocks) {
+            sackEdges[2 * blocks] = start;
+            sackEdges[2 * blocks + 1] = end;
+            blocks++;
+        }
+        return blocks;
     }
 
     private void processOutOfOrderPackets() throws IOException {
 
+        // Buffered segments are already on disk, so closing the gap only advances the ACK point
+        long runStart = expectedSeqNumber;
         while (outOfOrderBuffer.containsKey(expectedSeqNumber)) {
-            byte[] payload = outOfOrderBuffer.remove(expectedSeqNumber);
-            receivedData.write(payload);
-            System.out.println("Client " + clientId + " - Processed buffered packet (seq: " + expectedSeqNumber +
-                    ", " + payload.length + " bytes)");
-            expectedSeqNumber += payload.length;
+            int payloadLength = outOfOrderBuffer.remove(expectedSeqNumber);
+            if (Log.DEBUG) {
+                Log.debug("Client " + clientId + " - Processed buffered packet (seq: " + expectedSeqNumber +
+                        ", " + payloadLength + " bytes)");
+            }
+            expectedSeqNumber += payloadLength;
+            outOfOrderBytes -= payloadLength;
+        }
+        if (deliveredDigest != null && expectedSeqNumber > runStart) {
+            // The run is still in the page cache; hash it now rather than the whole file on FIN
+            deliveredDigest.update(output(), outputOffset + runStart - dataStartSeqNumber,
+                    expectedSeqNumber - runStart);
         }
     }
 
-    private void handleFinPacket(Packet finPacket, DataInputStream in, DataOutputStream out) throws IOException {
-        System.out.println("Client " + clientId + " - Handling connection close...");
+    private void handleFinPacket(Packet finPacket) throws IOException {
+        Log.info("Client " + clientId + " - Handling connection close...");
 
-        long finAckNumber = finPacket.getSequenceNumber() + 1;
+        // A FIN may carry the client's digest of the data it sent, ahead of the FIN itself
+        int digestLength = finPacket.getPayloadLength();
+        long finAckNumber = Packet.unwrapSequence(finPacket.getSequenceNumber(), expectedSeqNumber)
+                + digestLength + 1;
+        // The FIN-ACK covers any ACK still held back
+        ackDeadlineNanos = 0;
 
         Packet finAckPacket = new Packet();
         finAckPacket.setSourcePort(Constants.SERVER_PORT);
@@ -247,22 +791,34 @@ public class ClientConnectionHandler {
         finAckPacket.setAckNumber(finAckNumber);
         finAckPacket.setFinFlag(true);
         finAckPacket.setAckFlag(true);
-        finAckPacket.setWindowSize(Constants.WINDOW_SIZE);
+        finAckPacket.setWindowSize(advertisedWindow());
+        addTimestamps(finAckPacket);
+        if (digestLength > 0 && deliveredDigest != null) {
+            // Answer with our own digest of what we wrote, and report the verdict
+            byte[] digest = deliveredDigest.digest();
+            boolean match = DeliveredDigest.matches(digest, finPacket.getPayload());
+            Log.info("Client " + clientId + " - [DIGEST] SHA-256 " + DeliveredDigest.toHex(digest) +
+                    (match ? " matches the client's" : " DOES NOT MATCH the client's " +
+                            DeliveredDigest.toHex(finPacket.getPayload())));
+            finAckPacket.setPayload(digest);
+        } else if (digestLength > 0) {
+            Log.warn("Client " + clientId + " - [DIGEST] Client sent a digest, but this server runs without " +
+                    "-Dtcp.fileDigest=true; answering without one");
+        }
 
-        finAckPacket.sendPacket(out);
-        System.out.println("Client " + clientId + " - Sent FIN-ACK packet");
+        sink.send(finAckPacket);
+        Log.info("Client " + clientId + " - Sent FIN-ACK packet");
 
-        sequenceNumber++;
+        sequenceNumber += finAckPacket.getPayloadLength() + 1;
+        state = State.AWAIT_FINAL_ACK;
+    }
 
-        try {
-            Packet finalAckPacket = Packet.receivePacket(in);
-            if (finalAckPacket.getAckFlag() && finalAckPacket.getAckNumber() == sequenceNumber) {
-                System.out.println("Client " + clientId + " - Received final ACK - Connection closed gracefully");
-            } else {
-                System.out.println("Client " + clientId + " - Received unexpected packet during close");
-            }
-        } catch (IOException e) {
-            System.out.println("Client " + clientId + " - Client closed connection or timeout occurred");
+    private void handleFinalAck(Packet finalAckPacket) {
+        if (finalAckPacket.getAckFlag() && Packet.unwrapSequence(finalAckPacket.getAckNumber(), sequenceNumber) == sequenceNumber) {
+            Log.info("Client " + clientId + " - Received final ACK - Connection closed gracefully");
+        } else {
+            Log.info("Client " + clientId + " - Received unexpected packet during close");
         }
+        close();
     }
 }
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * Keeps established connections to the server open between transfers. A
+ * connection taken from the pool has already paid for its handshake and
+ * slow start: its congestion window and RTT estimate carry over to the next
+ * file. Safe to share between threads.
+ */
+public class ClientPool implements AutoCloseable {
+
+    private final Supplier<CongestionController> controllers;
+    private final int maxIdle;
+    private final Deque<Client> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    private int connectionsOpened = 0;
+    private int connectionsReused = 0;
+
+    public ClientPool(String algorithm, int maxIdle) {
+        this(() -> CongestionController.create(algorithm), maxIdle);
+    }
+
+    public ClientPool(Supplier<CongestionController> controllers, int maxIdle) {
+        this.controllers = controllers;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns an idle connection, or opens a new one if none is usable. Hand
+     * it back with release() when done.
+     */
+    public Client acquire() throws IOException {
+        Deque<Client> stale = new ArrayDeque<>();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Pool is closed");
+                }
+                Client client;
+                while ((client = idle.pollFirst()) != null) {
+                    if (client.isUsable()) {
+                        connectionsReused++;
+                        return client;
+                    }
+                    stale.add(client);
+                }
+            }
+        } finally {
+            // Closing runs the FIN exchange; keep it out of the lock like the handshake below
+            for (Client client : stale) {
+                client.close();
+            }
+        }
+        // Handshake outside the lock so other threads can take idle connections meanwhile
+        Client client = new Client(controllers.get());
+        client.open();
+        synchronized (this) {
+            connectionsOpened++;
+        }
+        return client;
+    }
+
+    /**
+     * Returns a connection to the pool, or closes it if it failed or the pool is full.
+     */
+    public void release(Client client) {
+        synchronized (this) {
+            if (!closed && client.isUsable() && idle.size() < maxIdle) {
+                idle.addFirst(client);
+                return;
+            }
+        }
+        client.close();
+    }
+
+    /**
+     * Sends one file over a pooled connection.
+     */
+    public boolean sendFile(Path path) throws IOException, InterruptedException {
+        Client client = acquire();
+        try {
+            return client.sendFile(path);
+        } finally {
+            release(client);
+        }
+    }
+
+    public synchronized int getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    public synchronized int getConnectionsReused() {
+        return connectionsReused;
+    }
+
+    @Override
+    public void close() {
+        Deque<Client> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+        for (Client client : toClose) {
+            client.close();
+        }
+        Log.info("[POOL] Connections opened: " + getConnectionsOpened() +
+                " | Reused: " + getConnectionsReused());
+    }
+}
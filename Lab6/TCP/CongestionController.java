@@ -0,0 +1,81 @@
+import java.util.Locale;
+
+/**
+ * Congestion control algorithm driven by the sender's ACK processing. The
+ * sender owns loss detection and retransmission; the controller decides how
+ * many bytes may be in flight and, optionally, how fast they may be sent.
+ */
+public interface CongestionController {
+
+    /**
+     * Notified whenever the controller changes its window or state.
+     */
+    interface Listener {
+        void onCongestionEvent(String event, CongestionController controller);
+    }
+
+    String getName();
+
+    /**
+     * Sets the segment size the handshake settled on. Called before any data
+     * is sent; resets the window to one segment.
+     */
+    void setMss(int mss);
+
+    /**
+     * New data was cumulatively acknowledged up to ackNum. The controller
+     * stays in FAST_RECOVERY after a partial ACK, in which case the sender
+     * resends the next missing segment.
+     */
+    void onAck(long ackNum, int ackedBytes, long bytesInFlight);
+
+    /**
+     * A duplicate ACK for ackNum arrived. Returns true if the sender should
+     * fast-retransmit the first unacknowledged segment.
+     */
+    boolean onDupAck(long ackNum, int dupAckCount, long bytesInFlight);
+
+    /**
+     * A retransmission timer expired.
+     */
+    void onTimeout();
+
+    void onRttSample(double rttMs);
+
+    int getCongestionWindow();
+
+    int getSlowStartThreshold();
+
+    CongestionState getState();
+
+    /**
+     * Returns the rate in bytes/s the sender should pace at, or 0 to send as
+     * fast as the window allows.
+     */
+    default long getPacingRate() {
+        return 0;
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Creates a controller by name: tahoe, reno, newreno, cubic or bbr.
+     */
+    static CongestionController create(String name) {
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "tahoe":
+                return new TahoeController();
+            case "reno":
+                return new RenoController();
+            case "newreno":
+                return new NewRenoController();
+            case "cubic":
+                return new CubicController();
+            case "bbr":
+                return new BbrController();
+            default:
+                throw new IllegalArgumentException("Unknown congestion control: " + name +
+                        " (expected tahoe, reno, newreno, cubic or bbr)");
+        }
+    }
+}
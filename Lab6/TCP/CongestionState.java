@@ -0,0 +1,6 @@
+/**
+ * Phase of the sender's congestion control, as recorded in the CWND log.
+ */
+public enum CongestionState {
+    SLOW_START, CONGESTION_AVOIDANCE, FAST_RECOVERY
+}
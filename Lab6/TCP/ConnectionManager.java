@@ -9,9 +9,18 @@ public class ConnectionManager {
     private long sequenceNumber;
     private long ackNumber;
     private int serverWindowSize;
+    private int serverWindowScale;
+    private int mss = Constants.MAX_SEGMENT_SIZE;
+    private boolean timestampsEnabled;
+    // Latest TSval from the server, echoed in our TSecr
+    private volatile long serverTimestamp;
+    private boolean sackPermitted;
+    private int finPayloadLength = 0;
     
     public Socket connect() throws IOException {
         Socket socket = new Socket(Constants.SERVER_HOST, Constants.SERVER_PORT);
+        // Frames are written as a length prefix plus body; don't let Nagle hold the body back
+        socket.setTcpNoDelay(true);
         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
         DataInputStream in = new DataInputStream(socket.getInputStream());
         
@@ -20,7 +29,8 @@ public class ConnectionManager {
     }
     
     private void performHandshake(DataInputStream in, DataOutputStream out) throws IOException {
-        sequenceNumber = random.nextInt(1000000);
+        sequenceNumber = Constants.INITIAL_SEQUENCE >= 0 ? Constants.INITIAL_SEQUENCE & 0xFFFFFFFFL
+                : random.nextInt() & 0xFFFFFFFFL;
         
         // Send SYN packet
         Packet synPacket = new Packet();
@@ -30,36 +40,57 @@ public class ConnectionManager {
         synPacket.setAckNumber(0);
         synPacket.setSynFlag(true);
         synPacket.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        if (Constants.SACK_ENABLED) {
+            synPacket.addSackPermittedOption();
+        }
+        synPacket.addMssOption(Constants.MAX_SEGMENT_SIZE);
+        if (Constants.WINDOW_SCALING_ENABLED) {
+            // We only receive ACKs, so our own window needs no scaling
+            synPacket.addWindowScaleOption(0);
+        }
+        if (Constants.TIMESTAMPS_ENABLED) {
+            synPacket.addTimestampsOption(Packet.timestampClock(), 0);
+        }
 
-        System.out.println("[HANDSHAKE] Sending SYN packet with seq: " + sequenceNumber);
+        Log.info("[HANDSHAKE] Sending SYN packet with seq: " + sequenceNumber);
         synPacket.sendPacket(out);
-        System.out.println("[HANDSHAKE] SYN packet sent successfully");
+        Log.debug("[HANDSHAKE] SYN packet sent successfully");
         synPacket.printPacketInfo();
 
         // Receive SYN-ACK packet
-        System.out.println("[HANDSHAKE] Waiting for SYN-ACK packet...");
+        Log.info("[HANDSHAKE] Waiting for SYN-ACK packet...");
         Packet synAckPacket = Packet.receivePacket(in);
 
-        System.out.println("[HANDSHAKE] Received packet - SYN: " + synAckPacket.getSynFlag() + 
+        Log.info("[HANDSHAKE] Received packet - SYN: " + synAckPacket.getSynFlag() + 
                           ", ACK: " + synAckPacket.getAckFlag());
-        System.out.println("[HANDSHAKE] Expected ACK: " + (sequenceNumber + 1) + 
+        Log.info("[HANDSHAKE] Expected ACK: " + (sequenceNumber + 1) + 
                           ", Received ACK: " + synAckPacket.getAckNumber());
 
         if (!synAckPacket.getSynFlag() || !synAckPacket.getAckFlag()) {
             throw new IOException("Expected SYN-ACK packet but didn't receive one");
         }
 
-        if (synAckPacket.getAckNumber() != sequenceNumber + 1) {
+        if (Packet.unwrapSequence(synAckPacket.getAckNumber(), sequenceNumber) != sequenceNumber + 1) {
             throw new IOException("Received incorrect ACK number in SYN-ACK");
         }
 
-        System.out.println("[HANDSHAKE] SYN-ACK packet received:");
+        Log.debug("[HANDSHAKE] SYN-ACK packet received:");
         synAckPacket.printPacketInfo();
 
         // Update connection state
         sequenceNumber++;
         ackNumber = synAckPacket.getSequenceNumber() + 1;
+        // The window in a SYN-ACK is never scaled; the shift applies from the next segment on
         serverWindowSize = synAckPacket.getWindowSize();
+        serverWindowScale = Constants.WINDOW_SCALING_ENABLED ? Math.max(0, synAckPacket.getWindowScale()) : 0;
+        sackPermitted = Constants.SACK_ENABLED && synAckPacket.hasOption(Packet.OPTION_SACK_PERMITTED);
+        if (synAckPacket.getMss() > 0) {
+            mss = Math.min(mss, synAckPacket.getMss());
+        }
+        timestampsEnabled = Constants.TIMESTAMPS_ENABLED && synAckPacket.hasTimestamps();
+        if (timestampsEnabled) {
+            serverTimestamp = synAckPacket.getTimestampValue();
+        }
 
         // Send ACK packet
         Packet ackPacket = new Packet();
@@ -69,17 +100,41 @@ public class ConnectionManager {
         ackPacket.setAckNumber(ackNumber);
         ackPacket.setAckFlag(true);
         ackPacket.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        addTimestamps(ackPacket);
 
         ackPacket.sendPacket(out);
-        System.out.println("[HANDSHAKE] ACK packet sent:");
+        Log.debug("[HANDSHAKE] ACK packet sent:");
         ackPacket.printPacketInfo();
         
-        System.out.println("[HANDSHAKE] Connection established successfully!");
-        System.out.println("[HANDSHAKE] Server window size: " + serverWindowSize + " bytes");
-        System.out.println("[HANDSHAKE] Client window size: " + Constants.CLIENT_WINDOW_SIZE + " bytes");
+        Log.info("[HANDSHAKE] Connection established successfully!");
+        Log.info("[HANDSHAKE] Server window size: " + serverWindowSize + " bytes");
+        Log.info("[HANDSHAKE] Client window size: " + Constants.CLIENT_WINDOW_SIZE + " bytes");
+        Log.info("[HANDSHAKE] Window scale: " + (synAckPacket.getWindowScale() >= 0
+                ? "server shift " + serverWindowScale : "disabled"));
+        Log.info("[HANDSHAKE] SACK: " + (sackPermitted ? "enabled" : "disabled"));
+        Log.info("[HANDSHAKE] MSS: " + mss + " bytes" +
+                " | Timestamps: " + (timestampsEnabled ? "enabled" : "disabled"));
     }
     
     public void closeConnection(DataInputStream in, DataOutputStream out) throws IOException {
+        sendFin(out);
+
+        try {
+            Packet finAckPacket = Packet.receivePacket(in);
+            finishClose(finAckPacket, out);
+        } catch (IOException e) {
+            Log.info("[CLOSE] Connection closed (may not have received FIN-ACK)");
+        }
+    }
+
+    public void sendFin(DataOutputStream out) throws IOException {
+        sendFin(out, null);
+    }
+
+    /**
+     * Sends our FIN, carrying digest (of the data sent) as its payload unless null.
+     */
+    public void sendFin(DataOutputStream out, byte[] digest) throws IOException {
         Packet finPacket = new Packet();
         finPacket.setSourcePort(Constants.CLIENT_PORT);
         finPacket.setDestinationPort(Constants.SERVER_PORT);
@@ -88,18 +143,42 @@ public class ConnectionManager {
         finPacket.setFinFlag(true);
         finPacket.setAckFlag(true);
         finPacket.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        addTimestamps(finPacket);
+        if (digest != null) {
+            finPacket.setPayload(digest);
+        }
+        finPayloadLength = finPacket.getPayloadLength();
 
         finPacket.sendPacket(out);
-        System.out.println("[CLOSE] FIN packet sent");
+        Log.info("[CLOSE] FIN packet sent");
+    }
 
-        try {
-            Packet finAckPacket = Packet.receivePacket(in);
-            if (finAckPacket.getFinFlag() && finAckPacket.getAckFlag()) {
-                System.out.println("[CLOSE] FIN-ACK received, connection closed gracefully");
-            }
-        } catch (IOException e) {
-            System.out.println("[CLOSE] Connection closed (may not have received FIN-ACK)");
+    /**
+     * Completes the four-way termination once the server's FIN-ACK has been read.
+     */
+    public void finishClose(Packet finAckPacket, DataOutputStream out) throws IOException {
+        if (!finAckPacket.getFinFlag() || !finAckPacket.getAckFlag()) {
+            Log.info("[CLOSE] Unexpected packet while closing connection");
+            return;
         }
+        Log.info("[CLOSE] FIN-ACK received, connection closed gracefully");
+
+        // Our FIN consumed one sequence number, after any digest it carried
+        sequenceNumber += finPayloadLength + 1;
+        ackNumber = Packet.unwrapSequence(finAckPacket.getSequenceNumber(), ackNumber) +
+                finAckPacket.getPayloadLength() + 1;
+
+        Packet ackPacket = new Packet();
+        ackPacket.setSourcePort(Constants.CLIENT_PORT);
+        ackPacket.setDestinationPort(Constants.SERVER_PORT);
+        ackPacket.setSequenceNumber(sequenceNumber);
+        ackPacket.setAckNumber(ackNumber);
+        ackPacket.setAckFlag(true);
+        ackPacket.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        addTimestamps(ackPacket);
+
+        ackPacket.sendPacket(out);
+        Log.info("[CLOSE] Final ACK sent");
     }
     
     // Getters for connection state
@@ -114,6 +193,49 @@ public class ConnectionManager {
     public int getServerWindowSize() {
         return serverWindowSize;
     }
+
+    /**
+     * Adds our clock and the server's latest timestamp when timestamps were negotiated.
+     */
+    public void addTimestamps(Packet packet) {
+        if (timestampsEnabled) {
+            packet.addTimestampsOption(Packet.timestampClock(), serverTimestamp);
+        }
+    }
+
+    /**
+     * Records the TSval of a segment from the server, to be echoed in later segments.
+     */
+    public void updateServerTimestamp(Packet packet) {
+        if (timestampsEnabled && packet.hasTimestamps()) {
+            long tsVal = packet.getTimestampValue();
+            if (Packet.timestampAfter(tsVal, serverTimestamp)) {
+                serverTimestamp = tsVal;
+            }
+        }
+    }
+
+    /**
+     * Returns the segment size to send: ours, lowered to the server's MSS if smaller.
+     */
+    public int getMss() {
+        return mss;
+    }
+
+    public boolean isTimestampsEnabled() {
+        return timestampsEnabled;
+    }
+
+    /**
+     * Returns how many bits to shift the window of the server's ACKs left by.
+     */
+    public int getServerWindowScale() {
+        return serverWindowScale;
+    }
+
+    public boolean isSackPermitted() {
+        return sackPermitted;
+    }
     
     public void incrementSequenceNumber() {
         sequenceNumber++;
@@ -3,11 +3,26 @@
  */
 public class Constants {
 
-    public static final int SERVER_PORT = 8080;
-    public static final int WINDOW_SIZE = 4096;
+    // Port the server listens on and clients connect to (-Dtcp.port=<port>)
+    public static final int SERVER_PORT = Integer.getInteger("tcp.port", 8080);
     public static final String OUTPUT_FILE_PREFIX = "received_file_";
     public static final int BUFFER_SIZE = 8192;
-    public static final int MAX_SEGMENT_SIZE = 730;
+    // Largest payload per segment; the handshake settles on the smaller of both ends' (-Dtcp.mss=<bytes>)
+    public static final int MAX_SEGMENT_SIZE = Math.min(Math.max(Integer.getInteger("tcp.mss", 730), 64),
+            Packet.MAX_WINDOW - Packet.MAX_HEADER_SIZE);
+
+    // Server receive buffer per connection; the advertised window is its free space.
+    // Windows beyond 64 KB need window scaling (-Dtcp.receiver.bufferSize=<bytes>, -Dtcp.windowScaling=false).
+    public static final int RECEIVE_BUFFER_SIZE = Math.max(Integer.getInteger("tcp.receiver.bufferSize", 256 * 1024),
+            MAX_SEGMENT_SIZE);
+    public static final boolean WINDOW_SCALING_ENABLED = Boolean.parseBoolean(
+            System.getProperty("tcp.windowScaling", "true"));
+    // RFC 7323 timestamps: every ACK echoes the send time of the segment it answers (-Dtcp.timestamps=false)
+    public static final boolean TIMESTAMPS_ENABLED = Boolean.parseBoolean(
+            System.getProperty("tcp.timestamps", "true"));
+
+    // Client initial sequence number: random over the whole 32-bit space unless set (-Dtcp.isn=<0..2^32-1>)
+    public static final long INITIAL_SEQUENCE = Long.getLong("tcp.isn", -1L);
 
     public static final String SERVER_HOST = "localhost";
     public static final int CLIENT_PORT = 12345;
@@ -16,10 +31,102 @@ public class Constants {
     public static final int TIMEOUT_MS = 1000;
     public static final int MAX_RETRIES = 5;
 
+    // Share of data segments the client drops on purpose to exercise recovery (-Dtcp.lossRate=<0..1>)
+    public static final double PACKET_LOSS_RATE = doubleProperty("tcp.lossRate", 0.05);
+
+    // Share of data segments the client corrupts (one bit flipped) after checksumming them (-Dtcp.corruptionRate=<0..1>)
+    public static final double PACKET_CORRUPTION_RATE = doubleProperty("tcp.corruptionRate", 0);
+    // CRC32C segment checksums, written on send and checked on receipt (-Dtcp.checksum=false)
+    public static final boolean CHECKSUM_ENABLED = Boolean.parseBoolean(System.getProperty("tcp.checksum", "true"));
+    // SHA-256 of the data delivered on a connection, compared with the server's on FIN (-Dtcp.fileDigest=true)
+    public static final boolean FILE_DIGEST_ENABLED = Boolean.parseBoolean(
+            System.getProperty("tcp.fileDigest", "false"));
+
     public static final int FAST_RETRANSMIT_THRESHOLD = 3;
+    // Selective acknowledgements, negotiated in the handshake (-Dtcp.sack=false for plain cumulative ACKs)
+    public static final boolean SACK_ENABLED = Boolean.parseBoolean(System.getProperty("tcp.sack", "true"));
+    // Congestion control: tahoe, reno, newreno, cubic or bbr (-Dtcp.cc=<name>)
+    public static final String CONGESTION_CONTROL = System.getProperty("tcp.cc", "reno");
+    // Delayed ACKs (RFC 1122): the receiver ACKs every second full segment, or once the delay
+    // expires; gaps are ACKed at once. -Dtcp.ack.delayMs=0 ACKs every segment immediately.
+    public static final long ACK_DELAY_MS = Long.getLong("tcp.ack.delayMs", 40L);
+    public static final int ACK_EVERY_SEGMENTS = Integer.getInteger("tcp.ack.everySegments", 2);
     public static final double RTT_ALPHA = 0.125;
     public static final double RTT_BETA = 0.25;
 
+    // Server I/O model: "thread" (blocking platform thread per connection), "virtual" (blocking
+    // virtual thread per connection, JDK 21+) or "selector" (NIO event loops).
+    // Override with -Dtcp.server.mode=<mode> and -Dtcp.server.eventLoops=<n>.
+    public static final String SERVER_MODE = System.getProperty("tcp.server.mode", "thread");
+    public static final int SERVER_EVENT_LOOPS = Integer.getInteger("tcp.server.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+    public static final int SERVER_ACCEPT_BACKLOG = Integer.getInteger("tcp.server.backlog", 1024);
+    public static final int SERVER_MAX_CONNECTIONS = Integer.getInteger("tcp.server.maxConnections", 16384);
+    public static final long SERVER_STATS_INTERVAL_MS = Long.getLong("tcp.server.statsIntervalMs", 0L);
+
+    // Sender pacing for every congestion variant: segments leave at gain x cwnd / smoothed RTT rather
+    // than in window-sized bursts (-Dtcp.pacing=true). BBR always paces at its own rate. Waits shorter
+    // than the minimum sleep are carried over instead of slept (-Dtcp.pacing.minSleepUs=<us>).
+    public static final boolean PACING_ENABLED = Boolean.parseBoolean(System.getProperty("tcp.pacing", "false"));
+    public static final long PACING_MIN_SLEEP_NANOS = Long.getLong("tcp.pacing.minSleepUs", 100L) * 1000;
+
+    // Link emulation on the sending side of each end (LinkEmulator), on when any of these is set:
+    // Bernoulli loss (-Dtcp.link.loss), or Gilbert-Elliott bursts when -Dtcp.link.ge.pGoodToBad > 0
+    // (-Dtcp.link.ge.pBadToGood, -Dtcp.link.ge.lossGood, -Dtcp.link.ge.lossBad); a delay with uniform
+    // or normal jitter (-Dtcp.link.delayMs, -Dtcp.link.jitterMs, -Dtcp.link.jitter=uniform|normal);
+    // reordering and duplication probabilities (-Dtcp.link.reorder, -Dtcp.link.duplicate; with
+    // -Dtcp.link.reorderAcksOnly=true only segments without data are reordered); a bandwidth
+    // cap with a drop-tail queue (-Dtcp.link.rateBytesPerSec, -Dtcp.link.queueBytes, 0 = unbounded).
+    // -Dtcp.link.seed fixes the random pattern; each further link in the same JVM uses the next seed.
+    public static final double LINK_LOSS = doubleProperty("tcp.link.loss", 0);
+    public static final double LINK_GE_P_GOOD_TO_BAD = doubleProperty("tcp.link.ge.pGoodToBad", 0);
+    public static final double LINK_GE_P_BAD_TO_GOOD = doubleProperty("tcp.link.ge.pBadToGood", 0.3);
+    public static final double LINK_GE_LOSS_GOOD = doubleProperty("tcp.link.ge.lossGood", 0);
+    public static final double LINK_GE_LOSS_BAD = doubleProperty("tcp.link.ge.lossBad", 0.5);
+    public static final double LINK_DELAY_MS = doubleProperty("tcp.link.delayMs", 0);
+    public static final double LINK_JITTER_MS = doubleProperty("tcp.link.jitterMs", 0);
+    public static final String LINK_JITTER_DISTRIBUTION = System.getProperty("tcp.link.jitter", "uniform");
+    public static final double LINK_REORDER = doubleProperty("tcp.link.reorder", 0);
+    public static final boolean LINK_REORDER_ACKS_ONLY = Boolean.getBoolean("tcp.link.reorderAcksOnly");
+    public static final double LINK_DUPLICATE = doubleProperty("tcp.link.duplicate", 0);
+    public static final long LINK_RATE = Long.getLong("tcp.link.rateBytesPerSec", 0L);
+    public static final int LINK_QUEUE_BYTES = Integer.getInteger("tcp.link.queueBytes", 0);
+    public static final long LINK_SEED = Long.getLong("tcp.link.seed", 1L);
+    public static final boolean LINK_EMULATION_ENABLED = LINK_LOSS > 0 || LINK_GE_P_GOOD_TO_BAD > 0 ||
+            LINK_DELAY_MS > 0 || LINK_JITTER_MS > 0 || LINK_REORDER > 0 || LINK_DUPLICATE > 0 || LINK_RATE > 0;
+
+    // Logging (Log): level error|warn|info|debug (-Dtcp.log.level); per-packet lines are debug only.
+    // Lines wait in a ring of -Dtcp.log.bufferLines entries for the writer thread, which prefixes
+    // wall-clock times when -Dtcp.log.timestamps=true.
+    public static final String LOG_LEVEL = System.getProperty("tcp.log.level", "info");
+    public static final int LOG_BUFFER_LINES = Integer.getInteger("tcp.log.bufferLines", 8192);
+    public static final boolean LOG_TIMESTAMPS = Boolean.parseBoolean(System.getProperty("tcp.log.timestamps", "false"));
+
+    // Prometheus metrics at http://127.0.0.1:<port>/metrics for as long as the JVM runs
+    // (-Dtcp.metrics.port=<port>; 0 = no endpoint, the counters are kept either way)
+    public static final int METRICS_PORT = Integer.getInteger("tcp.metrics.port", 0);
+
+    // Records of the client's CWND history held in memory before they are appended to its CSV file
+    // (-Dtcp.cwndLog.capacity=<records>)
+    public static final int CWND_LOG_CAPACITY = Math.max(Integer.getInteger("tcp.cwndLog.capacity", 4096), 1);
+
+    public static final int TIMER_TICK_MS = 10;
+    public static final int TIMER_WHEEL_SIZE = 512;
+
+    public static final int PACKET_POOL_SIZE = 64;
+    public static final boolean PACKET_POOL_DIRECT = false;
+
+    // Slow-receiver emulation: bytes/s the server consumes per connection (0 = full speed).
+    // Override with -Dtcp.receiver.pacingRate=<bytes/s> and -Dtcp.receiver.pacingBurst=<bytes>.
+    public static final long RECEIVER_PACING_RATE = Long.getLong("tcp.receiver.pacingRate", 0L);
+    public static final int RECEIVER_PACING_BURST = Integer.getInteger("tcp.receiver.pacingBurst",
+            4 * MAX_SEGMENT_SIZE);
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
     private Constants() {
         throw new UnsupportedOperationException("This is a constants class");
     }
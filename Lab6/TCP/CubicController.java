@@ -0,0 +1,140 @@
+/**
+ * CUBIC (RFC 9438): after a loss the window follows a cubic function of the
+ * time since that loss, centred on the window where the loss happened. Growth
+ * is fast far from that point and flat near it, and it does not depend on the
+ * RTT. That lets long, fat paths refill their pipe quickly. Loss recovery is
+ * the same as NewReno's.
+ */
+public class CubicController extends AbstractCongestionController {
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double maxWindow = 0;          // W_max, bytes
+    private double originWindow = 0;       // Plateau of the current cubic curve, bytes
+    private double k = 0;                  // Seconds from epoch start to the plateau
+    private double renoWindow = 0;         // W_est, the Reno-friendly estimate, bytes
+    private double windowFraction = 0;     // Sub-byte growth carried between ACKs
+    private long epochStartNanos = -1;
+    private long recoverySequence = -1;
+
+    @Override
+    public String getName() {
+        return "CUBIC";
+    }
+
+    @Override
+    public synchronized void onAck(long ackNum, int ackedBytes, long bytesInFlight) {
+        switch (state) {
+            case SLOW_START:
+                slowStart(ackedBytes);
+                break;
+            case CONGESTION_AVOIDANCE:
+                cubicIncrease(ackedBytes);
+                break;
+            case FAST_RECOVERY:
+                if (ackNum >= recoverySequence) {
+                    congestionWindow = slowStartThreshold;
+                    state = CongestionState.CONGESTION_AVOIDANCE;
+                    Log.info("[CONGESTION] Exiting Fast Recovery (CUBIC) | CWND: " +
+                            congestionWindow + " bytes");
+                    emit("EXIT_FAST_RECOVERY");
+                }
+                break;
+        }
+    }
+
+    @Override
+    public synchronized boolean onDupAck(long ackNum, int dupAckCount, long bytesInFlight) {
+        if (state == CongestionState.FAST_RECOVERY || dupAckCount < Constants.FAST_RETRANSMIT_THRESHOLD) {
+            return false;
+        }
+
+        int oldCongestionWindow = congestionWindow;
+        reduceOnLoss();
+        congestionWindow = slowStartThreshold;
+        state = CongestionState.FAST_RECOVERY;
+        recoverySequence = ackNum + bytesInFlight;
+
+        Log.info("[FAST-RETRANSMIT] Entering Fast Recovery (CUBIC) until seq: " + recoverySequence);
+        Log.info("[FAST-RETRANSMIT] Old CWND: " + oldCongestionWindow + " bytes" +
+                " | W_max: " + (long) maxWindow + " bytes");
+        Log.info("[FAST-RETRANSMIT] New CWND: " + congestionWindow + " bytes");
+        emit("FAST_RETRANSMIT_CUBIC");
+        return true;
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        reduceOnLoss();
+        super.onTimeout();
+    }
+
+    @Override
+    protected int lossThreshold() {
+        return Math.max((int) (congestionWindow * BETA), 2 * mss);
+    }
+
+    /**
+     * Remembers where the loss happened and starts a new cubic epoch on the
+     * next ACK. Fast convergence: if the window did not get back to the
+     * previous W_max, another flow probably needs the space, so the new W_max
+     * is set lower.
+     */
+    private void reduceOnLoss() {
+        if (congestionWindow < maxWindow) {
+            maxWindow = congestionWindow * (1 + BETA) / 2;
+        } else {
+            maxWindow = congestionWindow;
+        }
+        slowStartThreshold = lossThreshold();
+        epochStartNanos = -1;
+        windowFraction = 0;
+    }
+
+    private void cubicIncrease(int ackedBytes) {
+        long now = System.nanoTime();
+        if (epochStartNanos < 0) {
+            epochStartNanos = now;
+            renoWindow = congestionWindow;
+            if (congestionWindow < maxWindow) {
+                k = Math.cbrt((maxWindow - congestionWindow) / mss / C);
+                originWindow = maxWindow;
+            } else {
+                k = 0;
+                originWindow = congestionWindow;
+            }
+        }
+
+        double rttSeconds = minRtt == Double.MAX_VALUE ? 0 : minRtt / 1000.0;
+        double t = (now - epochStartNanos) / 1e9 + rttSeconds;
+        double target = originWindow + C * Math.pow(t - k, 3) * mss;
+        target = Math.min(Math.max(target, congestionWindow), 1.5 * congestionWindow);
+
+        // Reno-friendly region: never grow slower than standard TCP would
+        renoWindow += 3 * (1 - BETA) / (1 + BETA) * ackedBytes * mss / congestionWindow;
+
+        double increase;
+        if (renoWindow > target) {
+            increase = renoWindow - congestionWindow;
+        } else {
+            increase = (target - congestionWindow) * ackedBytes / congestionWindow;
+        }
+        windowFraction += Math.max(increase, 0);
+
+        int wholeBytes = (int) windowFraction;
+        if (wholeBytes > 0) {
+            windowFraction -= wholeBytes;
+            int oldCongestionWindow = congestionWindow;
+            congestionWindow += wholeBytes;
+            if (congestionWindow / mss > oldCongestionWindow / mss) {
+                if (Log.DEBUG) {
+                    Log.debug("[CONGESTION] CUBIC - CWND increased to " + congestionWindow +
+                            " bytes (" + (congestionWindow / mss) + " MSS) | t=" + String.format("%.3f", t) +
+                            "s K=" + String.format("%.3f", k) + "s");
+                }
+                emit("CA_INCREASE");
+            }
+        }
+    }
+}
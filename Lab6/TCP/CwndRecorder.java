@@ -0,0 +1,234 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Congestion window history of one connection: time, packet number, CWND,
+ * ssthresh, RTT, event and state for every sent packet and window change.
+ * Records go into fixed-size parallel arrays; each time those fill up they
+ * are appended to the CSV file that cwnd_plotter.py reads, so memory stays
+ * the same however long the transfer runs. The summary comes from running
+ * totals, kept as records are added.
+ */
+public class CwndRecorder {
+    private static final String CSV_HEADER = "Time_ms,Packet_Number,CWND_bytes,CWND_MSS,SSThresh,RTT_ms,Event,State";
+    private static final CongestionState[] STATES = CongestionState.values();
+
+    private final String fileName;
+    private final long startTime = System.currentTimeMillis();
+
+    // One column per field; row i of each is the same record
+    private final long[] times;
+    private final int[] packetNumbers;
+    private final int[] cwnds;
+    private final int[] ssthresholds;
+    private final float[] rtts;
+    private final byte[] events;
+    private final byte[] states;
+    private int size = 0;
+
+    // Event names by id; there are only a handful, so a scan finds them
+    private String[] eventNames = new String[16];
+    private int eventCount = 0;
+
+    private BufferedWriter writer;
+    private boolean writeFailed = false;
+    private boolean closed = false;
+
+    // Running totals over every record
+    private long records = 0;
+    private long cwndSum = 0;
+    private int minCwnd = Integer.MAX_VALUE;
+    private int maxCwnd = 0;
+    private long lastTime = 0;
+    private long[] eventCounts = new long[16];
+
+    public CwndRecorder(String fileName) {
+        this(fileName, Constants.CWND_LOG_CAPACITY);
+    }
+
+    public CwndRecorder(String fileName, int capacity) {
+        this.fileName = fileName;
+        times = new long[capacity];
+        packetNumbers = new int[capacity];
+        cwnds = new int[capacity];
+        ssthresholds = new int[capacity];
+        rtts = new float[capacity];
+        events = new byte[capacity];
+        states = new byte[capacity];
+    }
+
+    public synchronized void record(int packetNumber, int cwnd, int ssthresh, double rtt, String event,
+            CongestionState state) {
+        if (closed) {
+            return;
+        }
+        if (size == times.length) {
+            flush();
+        }
+        long time = System.currentTimeMillis() - startTime;
+        int eventId = eventId(event);
+        times[size] = time;
+        packetNumbers[size] = packetNumber;
+        cwnds[size] = cwnd;
+        ssthresholds[size] = ssthresh;
+        rtts[size] = (float) rtt;
+        events[size] = (byte) eventId;
+        states[size] = (byte) state.ordinal();
+        size++;
+
+        records++;
+        cwndSum += cwnd;
+        minCwnd = Math.min(minCwnd, cwnd);
+        maxCwnd = Math.max(maxCwnd, cwnd);
+        lastTime = time;
+        eventCounts[eventId]++;
+    }
+
+    /**
+     * Writes out the records still held and closes the file. Later records are ignored.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.error("[ERROR] Failed to write CWND log to CSV file: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void logSummary(String variant) {
+        if (!writeFailed) {
+            Log.info("[CWND-LOG] CWND history saved to: " + fileName);
+        }
+        Log.info("[CWND-LOG] TCP Variant: " + variant);
+        Log.info("[CWND-LOG] Total entries logged: " + records);
+        if (records == 0) {
+            return;
+        }
+        double avgCwnd = (double) cwndSum / records;
+        Log.info("[CWND-LOG] Transfer Statistics (" + variant + "):");
+        Log.info("[CWND-LOG]   Duration: " + lastTime + "ms");
+        Log.info("[CWND-LOG]   Max CWND: " + maxCwnd + " bytes (" + (maxCwnd / Constants.MAX_SEGMENT_SIZE) + " MSS)");
+        Log.info("[CWND-LOG]   Min CWND: " + minCwnd + " bytes (" + (minCwnd / Constants.MAX_SEGMENT_SIZE) + " MSS)");
+        Log.info("[CWND-LOG]   Avg CWND: " + String.format("%.2f", avgCwnd) + " bytes ("
+                + String.format("%.2f", avgCwnd / Constants.MAX_SEGMENT_SIZE) + " MSS)");
+        Log.info("[CWND-LOG]   Events Summary:");
+        Log.info("[CWND-LOG]     Timeouts: " + countEvents("TIMEOUT", false));
+        Log.info("[CWND-LOG]     Fast Retransmits (" + variant + "): " + countEvents("FAST_RETRANSMIT", true));
+        Log.info("[CWND-LOG]     Slow Start Increases: " + countEvents("SLOW_START_INCREASE", false));
+        Log.info("[CWND-LOG]     Congestion Avoidance Increases: " + countEvents("CA_INCREASE", false));
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    private int eventId(String event) {
+        for (int i = 0; i < eventCount; i++) {
+            if (eventNames[i] == event || eventNames[i].equals(event)) {
+                return i;
+            }
+        }
+        if (eventCount == Byte.MAX_VALUE) {
+            throw new IllegalStateException("Too many distinct CWND events");
+        }
+        if (eventCount == eventNames.length) {
+            eventNames = Arrays.copyOf(eventNames, 2 * eventCount);
+            eventCounts = Arrays.copyOf(eventCounts, 2 * eventCount);
+        }
+        eventNames[eventCount] = event;
+        return eventCount++;
+    }
+
+    private long countEvents(String name, boolean prefix) {
+        long count = 0;
+        for (int i = 0; i < eventCount; i++) {
+            if (prefix ? eventNames[i].startsWith(name) : eventNames[i].equals(name)) {
+                count += eventCounts[i];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Appends the held records to the CSV file, opening it on first use. If
+     * the file can't be written the records go to the console instead.
+     */
+    private void flush() {
+        if (size == 0) {
+            return;
+        }
+        if (writer == null && !writeFailed) {
+            try {
+                writer = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8);
+                writer.write(CSV_HEADER);
+                writer.newLine();
+            } catch (IOException e) {
+                failWrites(e);
+            }
+        }
+        if (writer != null) {
+            try {
+                StringBuilder row = new StringBuilder(96);
+                for (int i = 0; i < size; i++) {
+                    row.setLength(0);
+                    appendRow(row, i);
+                    writer.append(row);
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                failWrites(e);
+            }
+        }
+        if (writeFailed) {
+            for (int i = 0; i < size; i++) {
+                StringBuilder row = new StringBuilder("[CWND-LOG] ");
+                appendRow(row, i);
+                Log.info(row.toString());
+            }
+        }
+        size = 0;
+    }
+
+    private void failWrites(IOException e) {
+        Log.error("[ERROR] Failed to write CWND log to CSV file: " + e.getMessage());
+        Log.info("[CWND-LOG] Falling back to console output:");
+        Log.info("[CWND-LOG] " + CSV_HEADER);
+        writeFailed = true;
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+                // Already failing; the records go to the console
+            }
+            writer = null;
+        }
+    }
+
+    private void appendRow(StringBuilder row, int i) {
+        row.append(times[i]).append(',')
+                .append(packetNumbers[i]).append(',')
+                .append(cwnds[i]).append(',')
+                .append(cwnds[i] / Constants.MAX_SEGMENT_SIZE).append(',')
+                .append(ssthresholds[i]).append(',');
+        // RTT with two decimals, as %.2f gave it, without going through the formatter
+        long hundredths = Math.round(rtts[i] * 100.0);
+        row.append(hundredths / 100).append('.');
+        if (hundredths % 100 < 10) {
+            row.append('0');
+        }
+        row.append(hundredths % 100).append(',')
+                .append(eventNames[events[i]]).append(',')
+                .append(STATES[states[i]]);
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 over every data byte a connection delivered, in sequence order and
+ * across all its files, exchanged on FIN to check the transfer end to end.
+ * The client hashes each file it sent once it is acknowledged. The server
+ * hashes bytes as they become in order: segments straight from the packet,
+ * and a run of out-of-order segments from the page cache once its gap is
+ * filled, so answering a FIN never reads the files back.
+ */
+public class DeliveredDigest {
+    public static final int LENGTH = 32;
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private final MessageDigest digest;
+    private ByteBuffer chunk;
+
+    public DeliveredDigest() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Hashes the bytes of a source that was sent in full.
+     */
+    public void update(FileSegmentSource source) throws IOException {
+        source.digestInto(digest);
+    }
+
+    /**
+     * Hashes the payload of a segment that arrived in order.
+     */
+    public void update(Packet segment) {
+        ByteBuffer payload = segment.getBuffer().duplicate();
+        int payloadOffset = segment.getPayloadOffset();
+        payload.limit(payloadOffset + segment.getPayloadLength()).position(payloadOffset);
+        digest.update(payload);
+    }
+
+    /**
+     * Hashes length bytes already written to channel at position.
+     */
+    public void update(FileChannel channel, long position, long length) throws IOException {
+        if (chunk == null) {
+            chunk = ByteBuffer.allocate(READ_CHUNK);
+        }
+        long end = position + length;
+        while (position < end) {
+            chunk.clear().limit((int) Math.min(READ_CHUNK, end - position));
+            int read = channel.read(chunk, position);
+            if (read < 0) {
+                throw new EOFException("Output ends before byte " + end);
+            }
+            position += read;
+            digest.update(chunk.flip());
+        }
+    }
+
+    /**
+     * Completes the digest and resets it.
+     */
+    public byte[] digest() {
+        return digest.digest();
+    }
+
+    public static boolean matches(byte[] a, byte[] b) {
+        return MessageDigest.isEqual(a, b);
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
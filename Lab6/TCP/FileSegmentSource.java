@@ -0,0 +1,90 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Memory-mapped, read-only view of the file being sent. Segments are copied
+ * straight from the mapping into packets when the window opens, and
+ * retransmissions read the same bytes again, so nothing but the mapping
+ * holds file data. The file is mapped lazily in 1 GiB regions, which keeps
+ * files larger than 2 GiB (and larger than RAM) within reach. A source may
+ * also cover just one byte range of the file, for striped transfers.
+ */
+public class FileSegmentSource implements Closeable {
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long size;
+    private final MappedByteBuffer[] regions;
+
+    public FileSegmentSource(Path path) throws IOException {
+        this(path, 0, -1);
+    }
+
+    /**
+     * Covers length bytes of the file from offset; a negative length means up to the end.
+     */
+    public FileSegmentSource(Path path, long offset, long length) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        long fileSize = channel.size();
+        if (offset < 0 || offset > fileSize || length > fileSize - offset) {
+            channel.close();
+            throw new IOException("Range [" + offset + ", " + (offset + length) + ") outside file of " +
+                    fileSize + " bytes");
+        }
+        this.start = offset;
+        this.size = length < 0 ? fileSize - offset : length;
+        this.regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Copies length bytes starting at position into the payload of packet.
+     */
+    public void readInto(long position, int length, Packet packet) throws IOException {
+        if (position < 0 || position + length > size) {
+            throw new IOException("Segment [" + position + ", " + (position + length) + ") outside file of " +
+                    size + " bytes");
+        }
+        int index = (int) (position / REGION_SIZE);
+        packet.setPayload(region(index), (int) (position - index * REGION_SIZE), length);
+    }
+
+    /**
+     * Feeds every byte of the source, in order, to digest.
+     */
+    public void digestInto(MessageDigest digest) throws IOException {
+        for (int index = 0; index < regions.length; index++) {
+            ByteBuffer region = region(index).duplicate();
+            long regionStart = index * REGION_SIZE;
+            region.position(0).limit((int) Math.min(REGION_SIZE, size - regionStart));
+            digest.update(region);
+        }
+    }
+
+    private synchronized MappedByteBuffer region(int index) throws IOException {
+        MappedByteBuffer region = regions[index];
+        if (region == null) {
+            // Regions overlap by one segment so a segment never straddles two mappings
+            long regionStart = index * REGION_SIZE;
+            long length = Math.min(size - regionStart, REGION_SIZE + Packet.MAX_HEADER_SIZE + Constants.MAX_SEGMENT_SIZE);
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start + regionStart, length);
+            regions[index] = region;
+        }
+        return region;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered socket input that can report whether more bytes are already
+ * buffered. Lets a reader batch its replies: they are flushed only when no
+ * further frame is waiting, right before the next read would block.
+ * Also supports a timed wait for the next frame, used to fire delayed ACKs.
+ *
+ * Not a BufferedInputStream: that one reads the socket under a monitor when
+ * subclassed, which pins a virtual thread to its carrier for the whole read.
+ * The stream belongs to the connection's reader thread and needs no lock.
+ */
+public class FrameInputStream extends InputStream {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int pos = 0;
+    private int count = 0;
+
+    public FrameInputStream(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[Constants.BUFFER_SIZE];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= count && fill() <= 0) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= count) {
+            if (len >= buffer.length) {
+                // Larger than the buffer: read straight into the caller's array
+                return in.read(b, off, len);
+            }
+            if (fill() <= 0) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, count - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (count - pos) + in.available();
+    }
+
+    public boolean hasBufferedData() {
+        return pos < count;
+    }
+
+    /**
+     * Blocks until at least one byte can be read without consuming it. With a
+     * socket timeout set this is a timed wait for the next frame: on
+     * SocketTimeoutException nothing has been read, so framing stays intact.
+     */
+    public void awaitData() throws IOException {
+        if (pos < count) {
+            return;
+        }
+        fill();
+    }
+
+    /**
+     * Refills the drained buffer from the front. Returns the bytes read, or -1 at end of stream.
+     */
+    private int fill() throws IOException {
+        pos = 0;
+        count = 0;
+        int n;
+        do {
+            n = in.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n > 0) {
+            count = n;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Emulated network link between a connection's packet writers and its socket.
+ * Frames written to it are cut out of the length-prefixed byte stream and each
+ * one is lost, queued behind the bandwidth cap, delayed, reordered or
+ * duplicated as configured (Constants.LINK_*); a delivery thread writes them
+ * to the socket when they are due.
+ *
+ * Every decision comes from one Random per link seeded from tcp.link.seed, so
+ * a run sees the same pattern each time. SYN and FIN segments are delayed but
+ * never dropped or duplicated: this stack does not retransmit them.
+ */
+public class LinkEmulator extends OutputStream {
+    private static final AtomicInteger linkCount = new AtomicInteger();
+    private static final int LENGTH_PREFIX = 4;
+    // Flags byte of the TCP header, just after the length prefix
+    private static final int FLAGS_OFFSET = LENGTH_PREFIX + 13;
+    // Data offset (header length in 32-bit words) in its high nibble
+    private static final int DATA_OFFSET_OFFSET = LENGTH_PREFIX + 12;
+    private static final int FLAG_FIN = 0x01;
+    private static final int FLAG_SYN = 0x02;
+    private static final long CLOSE_DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static class Frame implements Comparable<Frame> {
+        final byte[] bytes;
+        final long deliverAtNanos;
+        final long order;
+
+        Frame(byte[] bytes, long deliverAtNanos, long order) {
+            this.bytes = bytes;
+            this.deliverAtNanos = deliverAtNanos;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Frame other) {
+            int byTime = Long.compare(deliverAtNanos, other.deliverAtNanos);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+
+    private final OutputStream out;
+    private final String label;
+    private final long seed;
+    private final Random random;
+    private final Thread deliveryThread;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition scheduleChanged = lock.newCondition();
+    private final PriorityQueue<Frame> schedule = new PriorityQueue<>();
+    // Bytes of a frame not yet complete
+    private ByteBuffer partial = ByteBuffer.allocate(Constants.BUFFER_SIZE);
+    private long nextOrder = 0;
+    // When the bandwidth-capped link has sent everything accepted so far
+    private long linkFreeAtNanos = 0;
+    // Gilbert-Elliott channel state
+    private boolean badState = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    private long framesIn = 0;
+    private long framesDelivered = 0;
+    private long framesLost = 0;
+    private long queueDrops = 0;
+    private long framesDuplicated = 0;
+    private long framesReordered = 0;
+    private long totalDelayNanos = 0;
+
+    /**
+     * Returns out wrapped in an emulated link when any tcp.link.* option is set, otherwise out itself.
+     */
+    public static OutputStream wrap(OutputStream out, String label) {
+        return Constants.LINK_EMULATION_ENABLED ? new LinkEmulator(out, label) : out;
+    }
+
+    public LinkEmulator(OutputStream out, String label) {
+        this.out = out;
+        this.label = label;
+        this.seed = Constants.LINK_SEED + linkCount.getAndIncrement();
+        this.random = new Random(seed);
+        this.deliveryThread = new Thread(this::deliver, "link-" + label);
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+        Log.info("[LINK] " + label + " emulated: " + describe() + " | Seed: " + seed);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                throw new IOException("Link closed");
+            }
+            if (partial.remaining() < len) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * partial.capacity(), partial.position() + len));
+                grown.put(partial.flip());
+                partial = grown;
+            }
+            partial.put(b, off, len);
+            partial.flip();
+            while (partial.remaining() >= LENGTH_PREFIX &&
+                    partial.remaining() >= LENGTH_PREFIX + partial.getInt(partial.position())) {
+                byte[] frame = new byte[LENGTH_PREFIX + partial.getInt(partial.position())];
+                partial.get(frame);
+                transmit(frame);
+            }
+            partial.compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Decides the fate of one frame and schedules its delivery. Called with the lock held.
+     */
+    private void transmit(byte[] frame) {
+        framesIn++;
+        long now = System.nanoTime();
+        boolean control = frame.length > FLAGS_OFFSET && (frame[FLAGS_OFFSET] & (FLAG_SYN | FLAG_FIN)) != 0;
+
+        if (isLost() && !control) {
+            framesLost++;
+            return;
+        }
+
+        long departAtNanos = now;
+        if (Constants.LINK_RATE > 0) {
+            long startNanos = Math.max(now, linkFreeAtNanos);
+            long backlogBytes = (startNanos - now) * Constants.LINK_RATE / 1_000_000_000L;
+            if (Constants.LINK_QUEUE_BYTES > 0 && backlogBytes + frame.length > Constants.LINK_QUEUE_BYTES
+                    && !control) {
+                // Drop-tail at the bottleneck queue
+                queueDrops++;
+                return;
+            }
+            linkFreeAtNanos = startNanos + frame.length * 1_000_000_000L / Constants.LINK_RATE;
+            departAtNanos = linkFreeAtNanos;
+        }
+
+        long deliverAtNanos = departAtNanos + propagationDelayNanos();
+        if (Constants.LINK_REORDER > 0 && (!Constants.LINK_REORDER_ACKS_ONLY || !carriesData(frame))
+                && random.nextDouble() < Constants.LINK_REORDER) {
+            // Skips the delay, overtaking frames sent before it
+            deliverAtNanos = departAtNanos;
+            framesReordered++;
+        }
+        enqueue(frame, deliverAtNanos, now);
+
+        if (Constants.LINK_DUPLICATE > 0 && random.nextDouble() < Constants.LINK_DUPLICATE && !control) {
+            framesDuplicated++;
+            enqueue(frame, departAtNanos + propagationDelayNanos(), now);
+        }
+    }
+
+    private static boolean carriesData(byte[] frame) {
+        return frame.length > DATA_OFFSET_OFFSET
+                && frame.length > LENGTH_PREFIX + ((frame[DATA_OFFSET_OFFSET] & 0xF0) >> 4) * 4;
+    }
+
+    private void enqueue(byte[] frame, long deliverAtNanos, long now) {
+        totalDelayNanos += deliverAtNanos - now;
+        schedule.add(new Frame(frame, deliverAtNanos, nextOrder++));
+        scheduleChanged.signal();
+    }
+
+    /**
+     * Bernoulli loss, or Gilbert-Elliott when LINK_GE_P_GOOD_TO_BAD is set:
+     * the channel moves between a good and a bad state once per frame and
+     * loses with that state's probability, which gives bursts of loss.
+     */
+    private boolean isLost() {
+        if (Constants.LINK_GE_P_GOOD_TO_BAD > 0) {
+            double transition = random.nextDouble();
+            if (badState ? transition < Constants.LINK_GE_P_BAD_TO_GOOD
+                    : transition < Constants.LINK_GE_P_GOOD_TO_BAD) {
+                badState = !badState;
+            }
+            double lossRate = badState ? Constants.LINK_GE_LOSS_BAD : Constants.LINK_GE_LOSS_GOOD;
+            return random.nextDouble() < lossRate;
+        }
+        return Constants.LINK_LOSS > 0 && random.nextDouble() < Constants.LINK_LOSS;
+    }
+
+    private long propagationDelayNanos() {
+        double delayMs = Constants.LINK_DELAY_MS;
+        if (Constants.LINK_JITTER_MS > 0) {
+            double jitter = Constants.LINK_JITTER_DISTRIBUTION.equalsIgnoreCase("normal")
+                    ? random.nextGaussian()
+                    : 2 * random.nextDouble() - 1;
+            delayMs += jitter * Constants.LINK_JITTER_MS;
+        }
+        return (long) (Math.max(0, delayMs) * 1_000_000);
+    }
+
+    /**
+     * Delivery thread: writes every frame that is due, batching those due together into one write.
+     */
+    private void deliver() {
+        ByteBuffer batch = ByteBuffer.allocate(Constants.BUFFER_SIZE);
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    Frame head;
+                    while (true) {
+                        head = schedule.peek();
+                        if (head == null) {
+                            if (closed) {
+                                return;
+                            }
+                            scheduleChanged.await();
+                            continue;
+                        }
+                        long waitNanos = head.deliverAtNanos - System.nanoTime();
+                        if (waitNanos <= 0) {
+                            break;
+                        }
+                        scheduleChanged.awaitNanos(waitNanos);
+                    }
+                    batch.clear();
+                    long now = System.nanoTime();
+                    while ((head = schedule.peek()) != null && head.deliverAtNanos <= now) {
+                        if (batch.remaining() < head.bytes.length) {
+                            if (batch.position() > 0) {
+                                break;
+                            }
+                            batch = ByteBuffer.allocate(head.bytes.length);
+                        }
+                        batch.put(schedule.poll().bytes);
+                        framesDelivered++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                out.write(batch.array(), 0, batch.position());
+                out.flush();
+            }
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                failure = e;
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Frames leave when the link delivers them
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets frames already on the link arrive (for up to two seconds), then closes the socket stream.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            scheduleChanged.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            deliveryThread.join(TimeUnit.NANOSECONDS.toMillis(CLOSE_DRAIN_NANOS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while draining the link");
+        } finally {
+            Log.info("[LINK] " + this);
+            out.close();
+        }
+    }
+
+    private static String describe() {
+        StringBuilder description = new StringBuilder();
+        if (Constants.LINK_GE_P_GOOD_TO_BAD > 0) {
+            description.append("Gilbert-Elliott loss (p ").append(Constants.LINK_GE_P_GOOD_TO_BAD)
+                    .append(", r ").append(Constants.LINK_GE_P_BAD_TO_GOOD)
+                    .append(", loss ").append(Constants.LINK_GE_LOSS_GOOD)
+                    .append("/").append(Constants.LINK_GE_LOSS_BAD).append(")");
+        } else {
+            description.append("loss ").append(Constants.LINK_LOSS);
+        }
+        description.append(" | delay ").append(Constants.LINK_DELAY_MS).append(" ms");
+        if (Constants.LINK_JITTER_MS > 0) {
+            description.append(" +/- ").append(Constants.LINK_JITTER_MS).append(" ms ")
+                    .append(Constants.LINK_JITTER_DISTRIBUTION);
+        }
+        description.append(" | reorder ").append(Constants.LINK_REORDER)
+                .append(Constants.LINK_REORDER_ACKS_ONLY ? " (ACKs only)" : "")
+                .append(" | duplicate ").append(Constants.LINK_DUPLICATE);
+        if (Constants.LINK_RATE > 0) {
+            description.append(" | rate ").append(Constants.LINK_RATE).append(" B/s, queue ")
+                    .append(Constants.LINK_QUEUE_BYTES > 0 ? Constants.LINK_QUEUE_BYTES + " bytes" : "unbounded");
+        }
+        return description.toString();
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return label + " | Frames: " + framesIn +
+                    " | Delivered: " + framesDelivered +
+                    " | Lost: " + framesLost +
+                    " | Queue drops: " + queueDrops +
+                    " | Duplicated: " + framesDuplicated +
+                    " | Reordered: " + framesReordered +
+                    " | Mean delay: " + String.format("%.2f", totalDelayNanos / 1e6 / Math.max(1, nextOrder)) + " ms" +
+                    " | Seed: " + seed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled, asynchronous logger for the protocol classes. A log call puts the
+ * finished line into a bounded lock-free ring buffer (Vyukov's bounded queue:
+ * one CAS per line, no lock) and returns; a background thread writes the
+ * lines out in batches, a single write and flush per batch.
+ *
+ * Per-packet lines are logged at DEBUG and guarded with if (Log.DEBUG): the
+ * flag is a static final, so with the level off the JIT removes the message
+ * building along with the call. Level from -Dtcp.log.level (default info).
+ */
+public final class Log {
+
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    public static final Level LEVEL = parseLevel(Constants.LOG_LEVEL);
+    public static final boolean INFO = LEVEL.compareTo(Level.INFO) >= 0;
+    public static final boolean DEBUG = LEVEL.compareTo(Level.DEBUG) >= 0;
+
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Constants.LOG_BUFFER_LINES));
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    // Slot i holds the line claimed at position p while sequences[i] == p + 1; it is
+    // free for position p when sequences[i] == p. Lines and levels are published by
+    // the volatile write to sequences, and read back after the volatile read.
+    private static final String[] lines = new String[CAPACITY];
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong head = new AtomicLong();
+    // Only the writer thread touches tail
+    private static long tail = 0;
+    private static final AtomicLong stalls = new AtomicLong();
+    private static volatile boolean shuttingDown = false;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "log-shutdown"));
+    }
+
+    private Log() {
+        throw new UnsupportedOperationException("Static logger");
+    }
+
+    public static boolean isEnabled(Level level) {
+        return LEVEL.compareTo(level) >= 0;
+    }
+
+    public static void error(String line) {
+        log(Level.ERROR, line);
+    }
+
+    public static void warn(String line) {
+        if (LEVEL.compareTo(Level.WARN) >= 0) {
+            log(Level.WARN, line);
+        }
+    }
+
+    public static void info(String line) {
+        if (INFO) {
+            log(Level.INFO, line);
+        }
+    }
+
+    public static void debug(String line) {
+        if (DEBUG) {
+            log(Level.DEBUG, line);
+        }
+    }
+
+    /**
+     * Number of times a caller found the buffer full and had to wait for the writer.
+     */
+    public static long getStalls() {
+        return stalls.get();
+    }
+
+    private static void log(Level level, String line) {
+        long time = Constants.LOG_TIMESTAMPS ? System.currentTimeMillis() : 0;
+        boolean stalled = false;
+        while (true) {
+            long position = head.get();
+            int index = (int) position & MASK;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    lines[index] = line;
+                    levels[index] = level;
+                    times[index] = time;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+            } else if (available < 0) {
+                // Full: wake the writer and give it a moment rather than drop the line
+                if (!stalled) {
+                    stalled = true;
+                    stalls.incrementAndGet();
+                    LockSupport.unpark(writer);
+                }
+                LockSupport.parkNanos(10_000);
+            }
+            // available > 0: another producer claimed this position first; retry
+        }
+    }
+
+    private static void writeLoop() {
+        StringBuilder batch = new StringBuilder(Constants.BUFFER_SIZE);
+        while (true) {
+            if (drain(batch) == 0) {
+                if (shuttingDown) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes out every line published so far. Consecutive lines for the same
+     * stream go out together; errors go to System.err, in order with the rest.
+     */
+    private static int drain(StringBuilder batch) {
+        int drained = 0;
+        PrintStream target = null;
+        while (true) {
+            int index = (int) tail & MASK;
+            if (sequences.get(index) != tail + 1) {
+                break;
+            }
+            String line = lines[index];
+            Level level = levels[index];
+            long time = times[index];
+            lines[index] = null;
+            sequences.set(index, tail + CAPACITY);
+            tail++;
+            drained++;
+
+            PrintStream stream = level == Level.ERROR ? System.err : System.out;
+            if (stream != target) {
+                write(target, batch);
+                target = stream;
+            }
+            if (Constants.LOG_TIMESTAMPS) {
+                batch.append(TIME_FORMAT.format(LocalTime.ofInstant(Instant.ofEpochMilli(time),
+                        ZoneId.systemDefault()))).append(' ');
+            }
+            batch.append(line).append(System.lineSeparator());
+            if (batch.length() >= Constants.BUFFER_SIZE) {
+                write(target, batch);
+            }
+        }
+        write(target, batch);
+        return drained;
+    }
+
+    private static void write(PrintStream stream, StringBuilder batch) {
+        if (stream != null && batch.length() > 0) {
+            stream.print(batch);
+            stream.flush();
+        }
+        batch.setLength(0);
+    }
+
+    /**
+     * Writes out what is still buffered when the JVM exits.
+     */
+    private static void shutdown() {
+        shuttingDown = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level '" + name + "', using INFO");
+            return Level.INFO;
+        }
+    }
+}
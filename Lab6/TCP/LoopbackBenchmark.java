@@ -0,0 +1,496 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end throughput and latency of the stack over loopback, swept over
+ * file size, MSS, receive window, loss rate, reordering and congestion control.
+ *
+ * Those settings are read once into Constants, so every point of the sweep
+ * runs in a fresh JVM, in a scratch directory, with its own port. In that
+ * JVM the Server and the clients run together, so the CPU time measured
+ * covers both ends of every connection. Loss comes from the link emulator
+ * (both directions, fixed seed), so a point sees the same drops on every
+ * run; the client's own simulated loss is off. The selector server mode
+ * does not emulate its side of the link, so its ACKs are never lost.
+ * Reordered frames skip the link delay (-Dtcp.link.delayMs, 2 ms unless
+ * given), so they overtake the frames sent before them. Reordered data makes
+ * the receiver send genuine duplicate ACKs; with -Dtcp.link.reorderAcksOnly
+ * only ACKs are reordered, so a point without loss has nothing to recover:
+ * any fast retransmit there is spurious and the point is marked
+ * spurious_fast_retransmit.
+ *
+ * Each point reports completion time (first SYN to last FIN-ACK), goodput,
+ * p50/p99 RTT of data segments from the client's RTT histogram (bucket upper
+ * bounds, within 25%), retransmissions per data segment sent (fast ones
+ * also counted apart) and CPU time
+ * per MB delivered. Results go to the console and to [out].csv and
+ * [out].json, one row per point and run, so two builds can be compared.
+ *
+ * Usage: java LoopbackBenchmark [name=value ...]
+ *   sizes=1m,8m mss=730 windows=256k loss=0,0.01 reorder=0 cc=reno,cubic
+ *   clients=1 repeat=1 timeoutSec=300 out=loopback_results
+ * -Dtcp.* options given to this JVM are passed on to every point, e.g.
+ *   java -Dtcp.server.mode=selector LoopbackBenchmark clients=8
+ *   java -Dtcp.link.reorderAcksOnly=true LoopbackBenchmark loss=0 reorder=0.05,0.2
+ */
+public class LoopbackBenchmark {
+
+    private static final String RESULT_PREFIX = "[LOOPBACK-RESULT] ";
+    private static final String PAYLOAD_FILE = "payload.bin";
+
+    private static final String[] CSV_COLUMNS = {
+            "cc", "loss", "reorder", "window", "mss", "size", "clients", "run", "status",
+            "completion_ms", "goodput_mbps", "rtt_p50_ms", "rtt_p99_ms", "rtt_samples", "segments_sent",
+            "retransmits", "fast_retransmits", "retransmission_ratio", "cpu_ms", "cpu_ms_per_mb" };
+
+    /** One point of the sweep. */
+    private static final class Point {
+        final String cc;
+        final double loss;
+        final double reorder;
+        final int window;
+        final int mss;
+        final long size;
+        final int clients;
+        final int run;
+
+        Point(String cc, double loss, double reorder, int window, int mss, long size, int clients, int run) {
+            this.cc = cc;
+            this.loss = loss;
+            this.reorder = reorder;
+            this.window = window;
+            this.mss = mss;
+            this.size = size;
+            this.clients = clients;
+            this.run = run;
+        }
+    }
+
+    /** What one point measured; zero when it did not finish. */
+    private static final class Result {
+        final Point point;
+        String status = "failed";
+        long completionNanos;
+        long rttP50Micros = -1;
+        long rttP99Micros = -1;
+        long rttSamples;
+        long segmentsSent;
+        long retransmits;
+        long fastRetransmits;
+        long cpuNanos;
+
+        Result(Point point) {
+            this.point = point;
+        }
+
+        double megabytes() {
+            return (double) point.size * point.clients / (1 << 20);
+        }
+
+        double goodputMbps() {
+            return completionNanos > 0 ? point.size * point.clients * 8.0 / (completionNanos / 1e3) : 0;
+        }
+
+        double retransmissionRatio() {
+            return segmentsSent > 0 ? (double) retransmits / segmentsSent : 0;
+        }
+
+        double cpuMillisPerMegabyte() {
+            return cpuNanos / 1e6 / megabytes();
+        }
+
+        Object[] values() {
+            return new Object[] {
+                    point.cc, point.loss, point.reorder, point.window, point.mss, point.size, point.clients,
+                    point.run, status, round(completionNanos / 1e6), round(goodputMbps()), millis(rttP50Micros),
+                    millis(rttP99Micros), rttSamples, segmentsSent, retransmits, fastRetransmits,
+                    round(retransmissionRatio()),
+                    round(cpuNanos / 1e6), round(cpuMillisPerMegabyte()) };
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--point")) {
+            runPoint(Long.parseLong(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("sizes", "1m,8m");
+        options.put("mss", String.valueOf(Constants.MAX_SEGMENT_SIZE));
+        options.put("windows", String.valueOf(Constants.RECEIVE_BUFFER_SIZE));
+        options.put("loss", "0,0.01");
+        options.put("reorder", "0");
+        options.put("cc", "reno,cubic");
+        options.put("clients", "1");
+        options.put("repeat", "1");
+        options.put("timeoutSec", "300");
+        options.put("out", "loopback_results");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !options.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown option " + arg + "; expected one of " +
+                        options.keySet() + " as name=value");
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        List<Point> points = new ArrayList<>();
+        for (String cc : options.get("cc").split(",")) {
+            for (String loss : options.get("loss").split(",")) {
+                for (String reorder : options.get("reorder").split(",")) {
+                    for (String window : options.get("windows").split(",")) {
+                        for (String mss : options.get("mss").split(",")) {
+                            for (String size : options.get("sizes").split(",")) {
+                                for (String clients : options.get("clients").split(",")) {
+                                    for (int run = 1; run <= Integer.parseInt(options.get("repeat")); run++) {
+                                        points.add(new Point(cc.trim(), Double.parseDouble(loss.trim()),
+                                                Double.parseDouble(reorder.trim()), (int) parseSize(window),
+                                                (int) parseSize(mss), parseSize(size),
+                                                Integer.parseInt(clients.trim()), run));
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        long timeoutSeconds = Long.parseLong(options.get("timeoutSec"));
+        System.out.println("[LOOPBACK] " + points.size() + " runs, each in its own JVM");
+        System.out.println(String.format("%-8s %6s %7s %8s %6s %10s %7s %3s %10s %10s %9s %9s %7s %9s %8s",
+                "cc", "loss", "reorder", "window", "mss", "size", "clients", "run", "elapsed_ms", "Mbit/s",
+                "p50_ms", "p99_ms", "retx%", "cpu_ms/MB", "status"));
+        List<Result> results = new ArrayList<>();
+        for (Point point : points) {
+            Result result = launch(point, timeoutSeconds);
+            results.add(result);
+            System.out.println(String.format(Locale.ROOT,
+                    "%-8s %6.3f %7.3f %8d %6d %10d %7d %3d %10.0f %10.1f %9s %9s %7.2f %9.1f %8s",
+                    point.cc, point.loss, point.reorder, point.window, point.mss, point.size, point.clients,
+                    point.run,
+                    result.completionNanos / 1e6, result.goodputMbps(), millis(result.rttP50Micros),
+                    millis(result.rttP99Micros), 100 * result.retransmissionRatio(),
+                    result.cpuMillisPerMegabyte(), result.status));
+        }
+
+        String out = options.get("out");
+        writeCsv(Paths.get(out + ".csv"), results);
+        writeJson(Paths.get(out + ".json"), results);
+        System.out.println("[LOOPBACK] Results written to " + out + ".csv and " + out + ".json");
+    }
+
+    /**
+     * Runs one point in a child JVM and reads back the line it prints.
+     */
+    private static Result launch(Point point, long timeoutSeconds) throws IOException, InterruptedException {
+        Result result = new Result(point);
+        Path workDir = Files.createTempDirectory("loopback");
+        try {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            Map<String, String> properties = new LinkedHashMap<>();
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith("tcp.")) {
+                    properties.put(name, System.getProperty(name));
+                }
+            }
+            properties.put("tcp.port", String.valueOf(freePort()));
+            properties.put("tcp.cc", point.cc);
+            properties.put("tcp.mss", String.valueOf(point.mss));
+            properties.put("tcp.receiver.bufferSize", String.valueOf(point.window));
+            properties.put("tcp.link.loss", String.valueOf(point.loss));
+            properties.put("tcp.lossRate", "0");
+            properties.put("tcp.link.reorder", String.valueOf(point.reorder));
+            if (point.reorder > 0) {
+                properties.putIfAbsent("tcp.link.delayMs", "2");
+            }
+            properties.putIfAbsent("tcp.log.level", "warn");
+            properties.forEach((name, value) -> command.add("-D" + name + "=" + value));
+            command.add(LoopbackBenchmark.class.getName());
+            command.add("--point");
+            command.add(String.valueOf(point.size));
+            command.add(String.valueOf(point.clients));
+
+            Path log = workDir.resolve("point.log");
+            Process process = new ProcessBuilder(command).directory(workDir.toFile())
+                    .redirectErrorStream(true).redirectOutput(log.toFile()).start();
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+                result.status = "timeout";
+                return result;
+            }
+
+            List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    parseResult(line.substring(RESULT_PREFIX.length()), result);
+                }
+            }
+            if (result.status.equals("failed") || process.exitValue() != 0) {
+                result.status = "failed";
+                System.err.println("[LOOPBACK] Run failed (exit " + process.exitValue() + "), last output:");
+                lines.subList(Math.max(0, lines.size() - 10), lines.size()).forEach(System.err::println);
+            } else if (result.status.equals("ok") && Constants.LINK_REORDER_ACKS_ONLY && point.loss == 0
+                    && point.reorder > 0 && result.fastRetransmits > 0) {
+                result.status = "spurious_fast_retransmit";
+            }
+            return result;
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    private static void parseResult(String line, Result result) {
+        for (String field : line.split(" ")) {
+            int equals = field.indexOf('=');
+            String value = field.substring(equals + 1);
+            switch (field.substring(0, equals)) {
+                case "status":
+                    result.status = value;
+                    break;
+                case "completionNanos":
+                    result.completionNanos = Long.parseLong(value);
+                    break;
+                case "rttP50Micros":
+                    result.rttP50Micros = Long.parseLong(value);
+                    break;
+                case "rttP99Micros":
+                    result.rttP99Micros = Long.parseLong(value);
+                    break;
+                case "rttSamples":
+                    result.rttSamples = Long.parseLong(value);
+                    break;
+                case "segmentsSent":
+                    result.segmentsSent = Long.parseLong(value);
+                    break;
+                case "retransmits":
+                    result.retransmits = Long.parseLong(value);
+                    break;
+                case "fastRetransmits":
+                    result.fastRetransmits = Long.parseLong(value);
+                    break;
+                case "cpuNanos":
+                    result.cpuNanos = Long.parseLong(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The child side: serves and sends size bytes on each of clients
+     * connections in this JVM, checks every received copy and prints the
+     * measurements on one line.
+     */
+    private static void runPoint(long size, int clients) throws Exception {
+        Path payload = Paths.get(PAYLOAD_FILE);
+        writePayload(payload, size);
+
+        Server server = new Server();
+        Thread serverThread = new Thread(server::start, "loopback-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        if (!server.awaitListening(10, TimeUnit.SECONDS)) {
+            throw new IOException("Server did not start listening on port " + Constants.SERVER_PORT);
+        }
+
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        boolean delivered = true;
+        long cpuStart = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        try {
+            List<Future<Boolean>> transfers = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                transfers.add(executor.submit(() -> sendOnce(payload)));
+            }
+            for (Future<Boolean> transfer : transfers) {
+                try {
+                    delivered &= transfer.get();
+                } catch (ExecutionException e) {
+                    System.err.println("[LOOPBACK] Transfer failed: " + e.getCause());
+                    delivered = false;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long completionNanos = System.nanoTime() - start;
+        long cpuNanos = os.getProcessCpuTime() - cpuStart;
+
+        // The same series the Client records into, looked up by name
+        Metrics.Histogram rtt = Metrics.histogram("tcp_client_rtt_seconds", "RTT samples", 4, 25, 1e-6);
+        long segmentsSent = Metrics.counter("tcp_client_segments_sent_total",
+                "Data segments sent, including retransmissions and simulated losses").get();
+        long fastRetransmits = Metrics.counter("tcp_client_retransmits_total",
+                "Segments retransmitted, by what triggered it", "kind", "fast").get();
+        long retransmits = Metrics.counter("tcp_client_retransmits_total",
+                "Segments retransmitted, by what triggered it", "kind", "timeout").get() + fastRetransmits;
+
+        String status = !delivered ? "undelivered" : receivedCopiesMatch(payload, clients) ? "ok" : "mismatch";
+        System.out.println(RESULT_PREFIX + "status=" + status +
+                " completionNanos=" + completionNanos +
+                " rttP50Micros=" + rtt.quantile(0.50) +
+                " rttP99Micros=" + rtt.quantile(0.99) +
+                " rttSamples=" + rtt.getCount() +
+                " segmentsSent=" + segmentsSent +
+                " retransmits=" + retransmits +
+                " fastRetransmits=" + fastRetransmits +
+                " cpuNanos=" + cpuNanos);
+        System.out.flush();
+        // Connection threads of the server are not daemons
+        System.exit(0);
+    }
+
+    private static boolean sendOnce(Path payload) throws IOException, InterruptedException {
+        Client client = new Client(CongestionController.create(Constants.CONGESTION_CONTROL));
+        try {
+            client.open();
+            return client.sendFile(payload);
+        } catch (ConnectException e) {
+            System.err.println("[LOOPBACK] Could not connect: " + e.getMessage());
+            return false;
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Whether the server wrote one copy of the payload per client, each identical to it.
+     */
+    private static boolean receivedCopiesMatch(Path payload, int clients) throws IOException {
+        List<Path> copies = new ArrayList<>();
+        try (Stream<Path> files = Files.list(Paths.get("."))) {
+            files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(Constants.OUTPUT_FILE_PREFIX) && name.endsWith("_" + PAYLOAD_FILE);
+            }).forEach(copies::add);
+        }
+        if (copies.size() != clients) {
+            System.err.println("[LOOPBACK] Expected " + clients + " received copies, found " + copies.size());
+            return false;
+        }
+        for (Path copy : copies) {
+            if (Files.mismatch(payload, copy) != -1) {
+                System.err.println("[LOOPBACK] " + copy.getFileName() + " differs from the payload");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The same pseudo-random bytes for a given size on every run.
+     */
+    private static void writePayload(Path path, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] chunk = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static void writeCsv(Path path, List<Result> results) throws IOException {
+        StringBuilder csv = new StringBuilder(String.join(",", CSV_COLUMNS)).append('\n');
+        for (Result result : results) {
+            Object[] values = result.values();
+            for (int i = 0; i < values.length; i++) {
+                csv.append(i > 0 ? "," : "").append(values[i] != null ? values[i] : "");
+            }
+            csv.append('\n');
+        }
+        Files.writeString(path, csv);
+    }
+
+    private static void writeJson(Path path, List<Result> results) throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Object[] values = results.get(r).values();
+            json.append("  {");
+            for (int i = 0; i < values.length; i++) {
+                json.append(i > 0 ? ", " : "").append('"').append(CSV_COLUMNS[i]).append("\": ");
+                if (values[i] instanceof String) {
+                    json.append('"').append(values[i]).append('"');
+                } else {
+                    json.append(values[i] != null ? values[i] : "null");
+                }
+            }
+            json.append(r < results.size() - 1 ? "},\n" : "}\n");
+        }
+        Files.writeString(path, json.append("]\n"));
+    }
+
+    /**
+     * Bytes from a count with an optional k, m or g suffix (powers of 1024).
+     */
+    private static long parseSize(String size) {
+        String trimmed = size.trim().toLowerCase(Locale.ROOT);
+        int shift = 0;
+        switch (trimmed.charAt(trimmed.length() - 1)) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+            default:
+                return Long.parseLong(trimmed);
+        }
+        return Long.parseLong(trimmed.substring(0, trimmed.length() - 1)) << shift;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /** Microseconds as milliseconds for the reports; null with no samples or past the histogram's top. */
+    private static Double millis(long micros) {
+        return micros < 0 || micros == Long.MAX_VALUE ? null : micros / 1000.0;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and histograms for the stack, served in the Prometheus
+ * text format at http://127.0.0.1:&lt;tcp.metrics.port&gt;/metrics while the
+ * JVM runs. Counters and histogram buckets are LongAdders, so recording is
+ * lock-free and stays on whether or not anything scrapes. Gauges are read
+ * from the connection's own fields only when scraped. Series with a conn
+ * label belong to one connection and are removed when it closes.
+ */
+public final class Metrics {
+
+    public enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        String exposition() {
+            return name().toLowerCase(java.util.Locale.ROOT);
+        }
+    }
+
+    private interface Series {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    private static final class Family {
+        final String help;
+        final Type type;
+        final Map<String, Series> series = new ConcurrentHashMap<>();
+
+        Family(String help, Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    static {
+        if (Constants.METRICS_PORT > 0) {
+            startEndpoint(Constants.METRICS_PORT);
+        }
+    }
+
+    private Metrics() {
+        throw new UnsupportedOperationException("Static registry");
+    }
+
+    public static final class Counter implements Series {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Histogram with log-linear buckets, as in HdrHistogram: each power of two
+     * from 2^lowestExp to 2^highestExp is split into four equal buckets, so a
+     * bucket bound is within 25% of any value in it. Finding the bucket takes a
+     * few bit operations. Values are recorded in integer units and exported
+     * multiplied by unitScale (microseconds recorded, seconds exported).
+     */
+    public static final class Histogram implements Series {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final int lowestExp;
+        private final double unitScale;
+        private final LongAdder[] counts;
+        private final String[] bounds;
+        private final long[] upperBounds;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(int lowestExp, int highestExp, double unitScale) {
+            if (lowestExp < SUB_BUCKET_BITS || highestExp <= lowestExp || highestExp > 62) {
+                throw new IllegalArgumentException("Bad bucket range 2^" + lowestExp + "..2^" + highestExp);
+            }
+            this.lowestExp = lowestExp;
+            this.unitScale = unitScale;
+            int buckets = 2 + (highestExp - lowestExp) * SUB_BUCKETS;
+            counts = new LongAdder[buckets];
+            bounds = new String[buckets];
+            upperBounds = new long[buckets];
+            for (int i = 0; i < buckets; i++) {
+                counts[i] = new LongAdder();
+            }
+            upperBounds[0] = 1L << lowestExp;
+            for (int i = 1; i < buckets - 1; i++) {
+                int exp = lowestExp + (i - 1) / SUB_BUCKETS;
+                int sub = (i - 1) % SUB_BUCKETS;
+                upperBounds[i] = (1L << exp) + ((long) (sub + 1) << (exp - SUB_BUCKET_BITS));
+            }
+            upperBounds[buckets - 1] = Long.MAX_VALUE;
+            for (int i = 0; i < buckets - 1; i++) {
+                bounds[i] = formatBound(upperBounds[i]);
+            }
+            bounds[buckets - 1] = "+Inf";
+        }
+
+        public void record(long value) {
+            counts[bucketIndex(value)].increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : counts) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Upper bound, in recorded units, of the bucket holding the q-quantile
+         * (0 &lt; q &lt;= 1) of the values recorded so far, so at most 25% above
+         * the exact value; -1 with no values, Long.MAX_VALUE past the top bucket.
+         */
+        public long quantile(double q) {
+            long[] snapshot = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                snapshot[i] = counts[i].sum();
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long cumulative = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                cumulative += snapshot[i];
+                if (cumulative >= rank) {
+                    return upperBounds[i];
+                }
+            }
+            return upperBounds[upperBounds.length - 1];
+        }
+
+        /**
+         * Index of the bucket whose upper bound is the smallest one at or above value.
+         */
+        int bucketIndex(long value) {
+            long below = value - 1;
+            if (below < (1L << lowestExp)) {
+                return 0;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(below);
+            int sub = (int) (below >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return Math.min(1 + (exp - lowestExp) * SUB_BUCKETS + sub, counts.length - 1);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                out.append(name).append("_bucket").append(labelPrefix)
+                        .append("le=\"").append(bounds[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum").append(labels).append(' ');
+            appendNumber(out, sum.sum() * unitScale);
+            out.append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+
+        private String formatBound(long bound) {
+            return BigDecimal.valueOf(bound).multiply(BigDecimal.valueOf(unitScale)).stripTrailingZeros()
+                    .toPlainString();
+        }
+    }
+
+    /**
+     * A value read when scraped; remove() takes it out, e.g. when its connection closes.
+     */
+    public static final class Function implements Series {
+        private final DoubleSupplier supplier;
+        private final Family family;
+        private final String labels;
+
+        private Function(DoubleSupplier supplier, Family family, String labels) {
+            this.supplier = supplier;
+            this.family = family;
+            this.labels = labels;
+        }
+
+        public void remove() {
+            family.series.remove(labels, this);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ');
+            appendNumber(out, supplier.getAsDouble());
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Returns the counter with this name and labels (given as name, value pairs), creating it on first use.
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series
+                .computeIfAbsent(renderLabels(labels), key -> new Counter());
+    }
+
+    /**
+     * Returns the histogram with this name and labels, with buckets from
+     * 2^lowestExp to 2^highestExp units, creating it on first use.
+     */
+    public static Histogram histogram(String name, String help, int lowestExp, int highestExp, double unitScale,
+            String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).series
+                .computeIfAbsent(renderLabels(labels), key -> new Histogram(lowestExp, highestExp, unitScale));
+    }
+
+    /**
+     * Registers a gauge read from supplier at each scrape, replacing any with the same name and labels.
+     */
+    public static Function gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        return function(Type.GAUGE, name, help, supplier, labels);
+    }
+
+    /**
+     * Registers a counter kept elsewhere (a connection's own total), read at each scrape.
+     */
+    public static Function counterFunction(String name, String help, DoubleSupplier supplier, String... labels) {
+        return function(Type.COUNTER, name, help, supplier, labels);
+    }
+
+    private static Function function(Type type, String name, String help, DoubleSupplier supplier,
+            String... labels) {
+        Family family = family(name, help, type);
+        String rendered = renderLabels(labels);
+        Function function = new Function(supplier, family, rendered);
+        family.series.put(rendered, function);
+        return function;
+    }
+
+    private static Family family(String name, String help, Type type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type.exposition());
+        }
+        return family;
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format, sorted by name.
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            Family family = entry.getValue();
+            if (family.series.isEmpty()) {
+                continue;
+            }
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type.exposition()).append('\n');
+            for (Map.Entry<String, Series> series : new TreeMap<>(family.series).entrySet()) {
+                series.getValue().write(out, entry.getKey(), series.getKey());
+            }
+        }
+        return out.toString();
+    }
+
+    private static String renderLabels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name, value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder rendered = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                rendered.append(',');
+            }
+            rendered.append(labels[i]).append("=\"");
+            for (char c : labels[i + 1].toCharArray()) {
+                if (c == '\\' || c == '"') {
+                    rendered.append('\\').append(c);
+                } else if (c == '\n') {
+                    rendered.append("\\n");
+                } else {
+                    rendered.append(c);
+                }
+            }
+            rendered.append('"');
+        }
+        return rendered.append('}').toString();
+    }
+
+    private static void appendNumber(StringBuilder out, double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    /**
+     * Serves GET /metrics on the loopback interface from a daemon thread, so
+     * the endpoint never keeps a finished client JVM alive.
+     */
+    private static void startEndpoint(int port) {
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            Log.error("[METRICS] Could not listen on port " + port + ": " + e.getMessage());
+            return;
+        }
+        Thread endpoint = new Thread(() -> {
+            while (true) {
+                try (Socket socket = serverSocket.accept()) {
+                    socket.setSoTimeout(2000);
+                    respond(socket);
+                } catch (IOException e) {
+                    Log.warn("[METRICS] Scrape failed: " + e.getMessage());
+                }
+            }
+        }, "metrics-endpoint");
+        endpoint.setDaemon(true);
+        endpoint.start();
+        Log.info("[METRICS] Serving http://127.0.0.1:" + port + "/metrics");
+    }
+
+    private static void respond(Socket socket) throws IOException {
+        String requestLine = readRequestHead(socket.getInputStream());
+        String[] parts = requestLine.split(" ");
+        String status;
+        String body;
+        if (parts.length < 2 || !parts[0].equals("GET")) {
+            status = "405 Method Not Allowed";
+            body = "Only GET is supported\n";
+        } else if (parts[1].equals("/metrics") || parts[1].startsWith("/metrics?")) {
+            status = "200 OK";
+            body = scrape();
+        } else {
+            status = "404 Not Found";
+            body = "Metrics are at /metrics\n";
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+                "Content-Length: " + bytes.length + "\r\n" +
+                "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Reads the request up to the blank line that ends its headers and returns the request line.
+     */
+    private static String readRequestHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && head.length() < 8192) {
+            head.append((char) c);
+            int length = head.length();
+            if (length >= 4 && head.charAt(length - 1) == '\n' && head.charAt(length - 3) == '\n') {
+                break;
+            }
+        }
+        int end = head.indexOf("\r\n");
+        return end >= 0 ? head.substring(0, end) : head.toString().trim();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * TCP NewReno (RFC 6582): Reno whose fast recovery lasts until everything
+ * outstanding at the time of the loss is acknowledged. A partial ACK keeps
+ * the connection in recovery so the next hole is resent without waiting for
+ * another three duplicate ACKs or a timeout.
+ */
+public class NewRenoController extends AbstractCongestionController {
+
+    private long recoverySequence = -1;
+
+    @Override
+    public String getName() {
+        return "NEWRENO";
+    }
+
+    @Override
+    public synchronized void onAck(long ackNum, int ackedBytes, long bytesInFlight) {
+        switch (state) {
+            case SLOW_START:
+                slowStart(ackedBytes);
+                break;
+            case CONGESTION_AVOIDANCE:
+                congestionAvoidance(ackedBytes);
+                break;
+            case FAST_RECOVERY:
+                if (ackNum >= recoverySequence) {
+                    // Full ACK: everything sent before the loss has arrived
+                    congestionWindow = Math.min(slowStartThreshold, (int) bytesInFlight + mss);
+                    state = CongestionState.CONGESTION_AVOIDANCE;
+                    bytesSinceLastIncrease = 0;
+                    Log.info("[CONGESTION] Full ACK " + ackNum + " - exiting Fast Recovery (TCP NewReno)");
+                    Log.info("[CONGESTION] CWND set to: " + congestionWindow + " bytes");
+                    emit("EXIT_FAST_RECOVERY");
+                } else {
+                    // Partial ACK: deflate by the data it covered, allow one new segment
+                    congestionWindow = Math.max(congestionWindow - ackedBytes + mss, mss);
+                    Log.info("[CONGESTION] Partial ACK " + ackNum + " (recover: " + recoverySequence +
+                            ") - staying in Fast Recovery | CWND: " + congestionWindow + " bytes");
+                    emit("PARTIAL_ACK");
+                }
+                break;
+        }
+    }
+
+    @Override
+    public synchronized boolean onDupAck(long ackNum, int dupAckCount, long bytesInFlight) {
+        if (state == CongestionState.FAST_RECOVERY) {
+            // Each further duplicate means another segment has left the network
+            congestionWindow += mss;
+            return false;
+        }
+        if (dupAckCount < Constants.FAST_RETRANSMIT_THRESHOLD) {
+            return false;
+        }
+
+        int oldCongestionWindow = congestionWindow;
+        slowStartThreshold = Math.max((int) (bytesInFlight / 2), 2 * mss);
+        congestionWindow = slowStartThreshold + 3 * mss;
+        state = CongestionState.FAST_RECOVERY;
+        recoverySequence = ackNum + bytesInFlight;
+
+        Log.info("[FAST-RETRANSMIT] Entering Fast Recovery (TCP NewReno) until seq: " + recoverySequence);
+        Log.info("[FAST-RETRANSMIT] Old CWND: " + oldCongestionWindow + " bytes");
+        Log.info("[FAST-RETRANSMIT] New ssthresh: " + slowStartThreshold + " bytes");
+        Log.info("[FAST-RETRANSMIT] New CWND: " + congestionWindow + " bytes");
+        emit("FAST_RETRANSMIT_NEWRENO");
+        return true;
+    }
+}
@@ -1,235 +1,825 @@
 import java.io.*;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * TCP segment laid out in a ByteBuffer. A packet either owns a heap buffer
+ * or is a flyweight view over a slot of a shared buffer handed out by a
+ * PacketPool, in which case header and payload are read and written in
+ * place through the offset/length accessors without copying.
+ */
 public class Packet {
-    private byte[] packet;
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+    private int capacity;
+    private PacketPool pool;
 
     private static final int MIN_HEADER_SIZE = 20;
+    public static final int MAX_HEADER_SIZE = 60;
+    // A peer may announce any 16-bit MSS; a longer frame cannot be a segment of this protocol
+    private static final int MAX_FRAME_LENGTH = MAX_HEADER_SIZE + 0xFFFF;
+
+    // TCP option kinds
+    public static final int OPTION_END = 0;
+    public static final int OPTION_NOP = 1;
+    public static final int OPTION_MSS = 2;
+    public static final int OPTION_WINDOW_SCALE = 3;
+    public static final int OPTION_SACK_PERMITTED = 4;
+    public static final int OPTION_SACK = 5;
+    public static final int OPTION_TIMESTAMPS = 8;
+    // Experimental option (RFC 6994) marking a segment whose payload is the name of the
+    // file that the bytes after it belong to; lets one connection carry several files
+    public static final int OPTION_EXPERIMENTAL = 254;
+    private static final int FILE_NAME_EXID = 0x4649;
+    // Same option, but the payload describes one byte range of a file striped over several connections
+    private static final int STRIPE_EXID = 0x5354;
+    public static final int MAX_SACK_BLOCKS = 4;
+    // Next to a timestamps option only three SACK blocks fit in the 40 option bytes
+    public static final int MAX_SACK_BLOCKS_WITH_TIMESTAMPS = 3;
+    // The 16-bit window field and the largest shift RFC 7323 allows on top of it
+    public static final int MAX_WINDOW = 0xFFFF;
+    public static final int MAX_WINDOW_SCALE = 14;
+
+    // Staging area for moving direct-buffer packets through streams
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal
+            .withInitial(() -> new byte[MAX_HEADER_SIZE + Constants.MAX_SEGMENT_SIZE]);
+    // One checksum engine per thread, reset for each segment
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
 
     public Packet() {
-        this.packet = new byte[MIN_HEADER_SIZE];
+        this(new byte[MIN_HEADER_SIZE]);
 
         setHeaderLength(5);
     }
 
     public Packet(int size) {
-        this.packet = new byte[size];
+        this(new byte[size]);
     }
 
     public Packet(byte[] packet) {
-        this.packet = packet;
+        this(ByteBuffer.wrap(packet), 0, packet.length);
+    }
+
+    /**
+     * Creates a view over length bytes of buffer starting at offset.
+     */
+    public Packet(ByteBuffer buffer, int offset, int length) {
+        view(buffer, offset, length);
+    }
+
+    /**
+     * Re-points this packet at another region, so one instance can be reused.
+     */
+    public void view(ByteBuffer buffer, int offset, int length) {
+        view(buffer, offset, length, buffer.capacity() - offset);
+    }
+
+    void view(ByteBuffer buffer, int offset, int length, int capacity) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.capacity = capacity;
+    }
+
+    private int get(int index) {
+        return buffer.get(offset + index) & 0xFF;
+    }
+
+    private void put(int index, long value) {
+        buffer.put(offset + index, (byte) value);
     }
 
     public int getSourcePort() {
-        return ((packet[0] & 0xFF) << 8) | (packet[1] & 0xFF);
+        return (get(0) << 8) | get(1);
     }
 
     public void setSourcePort(int port) {
-        packet[0] = (byte) ((port >> 8) & 0xFF);
-        packet[1] = (byte) (port & 0xFF);
+        put(0, (port >> 8) & 0xFF);
+        put(1, port & 0xFF);
     }
 
     public int getDestinationPort() {
-        return ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+        return (get(2) << 8) | get(3);
     }
 
     public void setDestinationPort(int port) {
-        packet[2] = (byte) ((port >> 8) & 0xFF);
-        packet[3] = (byte) (port & 0xFF);
+        put(2, (port >> 8) & 0xFF);
+        put(3, port & 0xFF);
     }
 
     public long getSequenceNumber() {
-        return ((long) (packet[4] & 0xFF) << 24) |
-                ((long) (packet[5] & 0xFF) << 16) |
-                ((long) (packet[6] & 0xFF) << 8) |
-                (packet[7] & 0xFF);
+        return ((long) get(4) << 24) |
+                ((long) get(5) << 16) |
+                ((long) get(6) << 8) |
+                get(7);
     }
 
     public void setSequenceNumber(long seqNum) {
-        packet[4] = (byte) ((seqNum >> 24) & 0xFF);
-        packet[5] = (byte) ((seqNum >> 16) & 0xFF);
-        packet[6] = (byte) ((seqNum >> 8) & 0xFF);
-        packet[7] = (byte) (seqNum & 0xFF);
+        put(4, (seqNum >> 24) & 0xFF);
+        put(5, (seqNum >> 16) & 0xFF);
+        put(6, (seqNum >> 8) & 0xFF);
+        put(7, seqNum & 0xFF);
+    }
+
+    /**
+     * Widens a 32-bit sequence or ACK number read from a header to the 64-bit
+     * stream position nearest reference. Both ends count positions in longs
+     * that keep growing past 2^32 while the header field wraps, so every value
+     * taken off the wire goes through here before it is compared or stored.
+     */
+    public static long unwrapSequence(long wire, long reference) {
+        return reference + (int) (wire - reference);
     }
 
     public long getAckNumber() {
-        return ((long) (packet[8] & 0xFF) << 24) |
-                ((long) (packet[9] & 0xFF) << 16) |
-                ((long) (packet[10] & 0xFF) << 8) |
-                (packet[11] & 0xFF);
+        return ((long) get(8) << 24) |
+                ((long) get(9) << 16) |
+                ((long) get(10) << 8) |
+                get(11);
     }
 
     public void setAckNumber(long ackNum) {
-        packet[8] = (byte) ((ackNum >> 24) & 0xFF);
-        packet[9] = (byte) ((ackNum >> 16) & 0xFF);
-        packet[10] = (byte) ((ackNum >> 8) & 0xFF);
-        packet[11] = (byte) (ackNum & 0xFF);
+        put(8, (ackNum >> 24) & 0xFF);
+        put(9, (ackNum >> 16) & 0xFF);
+        put(10, (ackNum >> 8) & 0xFF);
+        put(11, ackNum & 0xFF);
     }
 
     public int getHeaderLength() {
-        return (packet[12] & 0xF0) >> 4;
+        return (get(12) & 0xF0) >> 4;
     }
 
     public void setHeaderLength(int length) {
-        packet[12] = (byte) ((packet[12] & 0x0F) | ((length & 0x0F) << 4));
+        put(12, (get(12) & 0x0F) | ((length & 0x0F) << 4));
     }
 
     public boolean getUrgFlag() {
-        return (packet[13] & 0x20) != 0;
+        return (get(13) & 0x20) != 0;
     }
 
     public void setUrgFlag(boolean flag) {
         if (flag) {
-            packet[13] |= 0x20;
+            put(13, get(13) | 0x20);
         } else {
-            packet[13] &= ~0x20;
+            put(13, get(13) & ~0x20);
         }
     }
 
     public boolean getAckFlag() {
-        return (packet[13] & 0x10) != 0;
+        return (get(13) & 0x10) != 0;
     }
 
     public void setAckFlag(boolean flag) {
         if (flag) {
-            packet[13] |= 0x10;
+            put(13, get(13) | 0x10);
         } else {
-            packet[13] &= ~0x10;
+            put(13, get(13) & ~0x10);
         }
     }
 
     public boolean getPshFlag() {
-        return (packet[13] & 0x08) != 0;
+        return (get(13) & 0x08) != 0;
     }
 
     public void setPshFlag(boolean flag) {
         if (flag) {
-            packet[13] |= 0x08;
+            put(13, get(13) | 0x08);
         } else {
-            packet[13] &= ~0x08;
+            put(13, get(13) & ~0x08);
         }
     }
 
     public boolean getRstFlag() {
-        return (packet[13] & 0x04) != 0;
+        return (get(13) & 0x04) != 0;
     }
 
     public void setRstFlag(boolean flag) {
         if (flag) {
-            packet[13] |= 0x04;
+            put(13, get(13) | 0x04);
         } else {
-            packet[13] &= ~0x04;
+            put(13, get(13) & ~0x04);
         }
     }
 
     public boolean getSynFlag() {
-        return (packet[13] & 0x02) != 0;
+        return (get(13) & 0x02) != 0;
     }
 
     public void setSynFlag(boolean flag) {
         if (flag) {
-            packet[13] |= 0x02;
+            put(13, get(13) | 0x02);
         } else {
-            packet[13] &= ~0x02;
+            put(13, get(13) & ~0x02);
         }
     }
 
     public boolean getFinFlag() {
-        return (packet[13] & 0x01) != 0;
+        return (get(13) & 0x01) != 0;
     }
 
     public void setFinFlag(boolean flag) {
         if (flag) {
-            packet[13] |= 0x01;
+            put(13, get(13) | 0x01);
         } else {
-            packet[13] &= ~0x01;
+            put(13, get(13) & ~0x01);
         }
     }
 
     public int getWindowSize() {
-        return ((packet[14] & 0xFF) << 8) | (packet[15] & 0xFF);
+        return (get(14) << 8) | get(15);
     }
 
     public void setWindowSize(int windowSize) {
-        packet[14] = (byte) ((windowSize >> 8) & 0xFF);
-        packet[15] = (byte) (windowSize & 0xFF);
+        put(14, (windowSize >> 8) & 0xFF);
+        put(15, windowSize & 0xFF);
     }
 
     public int getChecksum() {
-        return ((packet[16] & 0xFF) << 8) | (packet[17] & 0xFF);
+        return (get(16) << 8) | get(17);
     }
 
     public void setChecksum(int checksum) {
-        packet[16] = (byte) ((checksum >> 8) & 0xFF);
-        packet[17] = (byte) (checksum & 0xFF);
+        put(16, (checksum >> 8) & 0xFF);
+        put(17, checksum & 0xFF);
+    }
+
+    /**
+     * Computes the checksum over header and payload and stores it. Called on
+     * every frame as it is written, when Constants.CHECKSUM_ENABLED.
+     */
+    public void updateChecksum() {
+        setChecksum(computeChecksum());
+    }
+
+    /**
+     * Whether the checksum matches the packet's contents. A packet sent
+     * without one (checksum 0) always passes.
+     */
+    public boolean verifyChecksum() {
+        int checksum = getChecksum();
+        return checksum == 0 || checksum == computeChecksum();
+    }
+
+    /**
+     * CRC32C (a single instruction per 8 bytes on current x86 and ARM) over the
+     * whole segment, with the checksum field counted as zero, folded into the
+     * 16-bit field. 0 is sent as 0xFFFF, since 0 means "no checksum" as in UDP.
+     */
+    private int computeChecksum() {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int base = buffer.arrayOffset() + offset;
+            crc.update(array, base, 16);
+            crc.update(0);
+            crc.update(0);
+            crc.update(array, base + 18, length - 18);
+        } else {
+            // Positional view, so concurrent readers of a shared pool buffer are unaffected
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + 16).position(offset);
+            crc.update(view);
+            crc.update(0);
+            crc.update(0);
+            view.limit(offset + length).position(offset + 18);
+            crc.update(view);
+        }
+        int value = (int) crc.getValue();
+        int folded = (value ^ (value >>> 16)) & 0xFFFF;
+        return folded == 0 ? 0xFFFF : folded;
     }
 
     public int getUrgentPointer() {
-        return ((packet[18] & 0xFF) << 8) | (packet[19] & 0xFF);
+        return (get(18) << 8) | get(19);
     }
 
     public void setUrgentPointer(int urgentPointer) {
-        packet[18] = (byte) ((urgentPointer >> 8) & 0xFF);
-        packet[19] = (byte) (urgentPointer & 0xFF);
+        put(18, (urgentPointer >> 8) & 0xFF);
+        put(19, urgentPointer & 0xFF);
     }
 
-    public byte[] getPayload() {
+    // ---- Options (header length > 5) ----
+
+    /**
+     * Appends an option of the given kind with dataLength bytes of data, padded
+     * in front with NOPs to a 32-bit boundary. Options must be added before
+     * the payload. Returns the absolute index of the option data in the packet.
+     */
+    private int appendOption(int kind, int dataLength) {
         int headerSize = getHeaderLength() * 4;
-        if (headerSize >= packet.length) {
-            return new byte[0];
+        if (length > headerSize) {
+            throw new IllegalStateException("Options must be added before the payload");
+        }
+        int optionLength = 2 + dataLength;
+        int padded = (optionLength + 3) & ~3;
+        if (headerSize + padded > MAX_HEADER_SIZE) {
+            throw new IllegalStateException("No room for option " + kind + " in a " + headerSize + "-byte header");
+        }
+        ensureCapacity(headerSize + padded);
+
+        int index = headerSize;
+        for (int i = 0; i < padded - optionLength; i++) {
+            put(index++, OPTION_NOP);
+        }
+        put(index++, kind);
+        put(index++, optionLength);
+
+        setHeaderLength((headerSize + padded) / 4);
+        length = headerSize + padded;
+        return index;
+    }
+
+    /**
+     * Returns the index of the kind byte of the first option of that kind, or -1.
+     * Stops at the first option whose length byte is missing, below 2 or runs
+     * past the header: what follows it cannot be parsed.
+     */
+    public int findOption(int kind) {
+        int headerSize = Math.min(getHeaderLength() * 4, length);
+        int index = MIN_HEADER_SIZE;
+        while (index < headerSize) {
+            int current = get(index);
+            if (current == OPTION_END) {
+                break;
+            }
+            if (current == OPTION_NOP) {
+                index++;
+                continue;
+            }
+            if (index + 1 >= headerSize) {
+                break; // malformed option list
+            }
+            int optionLength = get(index + 1);
+            if (optionLength < 2 || index + optionLength > headerSize) {
+                break; // malformed option list
+            }
+            if (current == kind) {
+                return index;
+            }
+            index += optionLength;
+        }
+        return -1;
+    }
+
+    /**
+     * Like findOption, but also -1 when the option is not exactly optionLength
+     * bytes long, so a malformed option is ignored rather than misread.
+     */
+    private int findOption(int kind, int optionLength) {
+        int index = findOption(kind);
+        return index >= 0 && get(index + 1) == optionLength ? index : -1;
+    }
+
+    public boolean hasOption(int kind) {
+        return findOption(kind) >= 0;
+    }
+
+    /**
+     * Adds a maximum segment size option: the largest payload this side accepts.
+     */
+    public void addMssOption(int mss) {
+        int index = appendOption(OPTION_MSS, 2);
+        put(index, (mss >> 8) & 0xFF);
+        put(index + 1, mss & 0xFF);
+    }
+
+    /**
+     * Returns the MSS from the MSS option, or -1 if there is none.
+     */
+    public int getMss() {
+        int index = findOption(OPTION_MSS, 4);
+        return index < 0 ? -1 : (get(index + 2) << 8) | get(index + 3);
+    }
+
+    /**
+     * Adds a timestamps option (RFC 7323): the sender's clock and the most
+     * recent timestamp received from the peer, echoed back.
+     */
+    public void addTimestampsOption(long tsVal, long tsEcr) {
+        int index = appendOption(OPTION_TIMESTAMPS, 8);
+        put32(index, tsVal);
+        put32(index + 4, tsEcr);
+    }
+
+    public boolean hasTimestamps() {
+        return findOption(OPTION_TIMESTAMPS, 10) >= 0;
+    }
+
+    /**
+     * Returns TSval from the timestamps option, or -1 if there is none.
+     */
+    public long getTimestampValue() {
+        int index = findOption(OPTION_TIMESTAMPS, 10);
+        return index < 0 ? -1 : get32(index + 2);
+    }
+
+    /**
+     * Returns TSecr from the timestamps option, or -1 if there is none.
+     */
+    public long getTimestampEcho() {
+        int index = findOption(OPTION_TIMESTAMPS, 10);
+        return index < 0 ? -1 : get32(index + 6);
+    }
+
+    /**
+     * The timestamps option clock: microseconds, truncated to 32 bits. Finer
+     * than the usual millisecond tick so loopback round trips still measure.
+     */
+    public static long timestampClock() {
+        return (System.nanoTime() / 1000) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Microseconds from an earlier timestampClock() reading to now, across wraparound.
+     */
+    public static long timestampAge(long timestamp) {
+        return (timestampClock() - timestamp) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Whether timestamp a is later than b in 32-bit sequence space.
+     */
+    public static boolean timestampAfter(long a, long b) {
+        return (int) (a - b) > 0;
+    }
+
+    /**
+     * Marks this segment as a file header: its payload is the file name.
+     */
+    public void addFileNameOption() {
+        addExperimentalOption(FILE_NAME_EXID);
+    }
+
+    /**
+     * Marks this segment as a stripe header: its payload says which byte range
+     * of which file the bytes after it are.
+     */
+    public void addStripeOption() {
+        addExperimentalOption(STRIPE_EXID);
+    }
+
+    /**
+     * Whether this segment starts a new file or stripe rather than carrying file data.
+     */
+    public boolean isFileHeader() {
+        int exid = getExperimentalId();
+        return exid == FILE_NAME_EXID || exid == STRIPE_EXID;
+    }
+
+    public boolean isStripeHeader() {
+        return getExperimentalId() == STRIPE_EXID;
+    }
+
+    private void addExperimentalOption(int exid) {
+        int index = appendOption(OPTION_EXPERIMENTAL, 2);
+        put(index, (exid >> 8) & 0xFF);
+        put(index + 1, exid & 0xFF);
+    }
+
+    private int getExperimentalId() {
+        int index = findOption(OPTION_EXPERIMENTAL);
+        if (index < 0 || get(index + 1) < 4) {
+            return -1;
+        }
+        return (get(index + 2) << 8) | get(index + 3);
+    }
+
+    /**
+     * Adds a window scale option (RFC 7323): windows this side advertises after
+     * the handshake are shifted right by shift bits.
+     */
+    public void addWindowScaleOption(int shift) {
+        int index = appendOption(OPTION_WINDOW_SCALE, 1);
+        put(index, shift);
+    }
+
+    /**
+     * Returns the shift from the window scale option, or -1 if there is none.
+     */
+    public int getWindowScale() {
+        int index = findOption(OPTION_WINDOW_SCALE, 3);
+        return index < 0 ? -1 : Math.min(MAX_WINDOW_SCALE, get(index + 2));
+    }
+
+    public void addSackPermittedOption() {
+        appendOption(OPTION_SACK_PERMITTED, 0);
+    }
+
+    /**
+     * Adds a SACK option with blockCount [left, right) blocks taken from
+     * edges (left edge at 2*i, right edge at 2*i+1).
+     */
+    public void addSackOption(long[] edges, int blockCount) {
+        int index = appendOption(OPTION_SACK, 8 * blockCount);
+        for (int i = 0; i < 2 * blockCount; i++) {
+            put32(index + 4 * i, edges[i]);
+        }
+    }
+
+    /**
+     * Returns the number of SACK blocks, 0 when there is no SACK option or its
+     * length is not a whole number of blocks.
+     */
+    public int getSackBlockCount() {
+        int index = findOption(OPTION_SACK);
+        if (index < 0) {
+            return 0;
+        }
+        int dataLength = get(index + 1) - 2;
+        return dataLength % 8 != 0 ? 0 : Math.min(MAX_SACK_BLOCKS, dataLength / 8);
+    }
+
+    public long getSackLeftEdge(int block) {
+        return get32(sackBlockIndex(block));
+    }
+
+    public long getSackRightEdge(int block) {
+        return get32(sackBlockIndex(block) + 4);
+    }
+
+    private int sackBlockIndex(int block) {
+        if (block < 0 || block >= getSackBlockCount()) {
+            throw new IndexOutOfBoundsException("SACK block " + block + " of " + getSackBlockCount());
+        }
+        return findOption(OPTION_SACK) + 2 + 8 * block;
+    }
+
+    private long get32(int index) {
+        return ((long) get(index) << 24) | ((long) get(index + 1) << 16) | ((long) get(index + 2) << 8) | get(index + 3);
+    }
+
+    private void put32(int index, long value) {
+        put(index, (value >> 24) & 0xFF);
+        put(index + 1, (value >> 16) & 0xFF);
+        put(index + 2, (value >> 8) & 0xFF);
+        put(index + 3, value & 0xFF);
+    }
+
+    public byte[] getPayload() {
+        int payloadLength = getPayloadLength();
+        byte[] payload = new byte[payloadLength];
+        if (payloadLength > 0) {
+            buffer.get(getPayloadOffset(), payload, 0, payloadLength);
         }
-        byte[] payload = new byte[packet.length - headerSize];
-        System.arraycopy(packet, headerSize, payload, 0, payload.length);
         return payload;
     }
 
     public void setPayload(byte[] payload) {
+        setPayload(payload, 0, payload.length);
+    }
+
+    /**
+     * Copies len bytes of src into the payload area and sets the packet length.
+     * The backing buffer is only replaced when the packet owns it and it is too small.
+     */
+    public void setPayload(byte[] src, int srcOffset, int len) {
         int headerSize = getHeaderLength() * 4;
-        if (headerSize + payload.length > packet.length) {
+        ensureCapacity(headerSize + len);
+        buffer.put(offset + headerSize, src, srcOffset, len);
+        length = headerSize + len;
+    }
+
+    public void setPayload(ByteBuffer src, int srcOffset, int len) {
+        int headerSize = getHeaderLength() * 4;
+        ensureCapacity(headerSize + len);
+        buffer.put(offset + headerSize, src, srcOffset, len);
+        length = headerSize + len;
+    }
+
+    /**
+     * Absolute index of the first payload byte in getBuffer().
+     */
+    public int getPayloadOffset() {
+        return offset + Math.min(getHeaderLength() * 4, length);
+    }
 
-            byte[] newPacket = new byte[headerSize + payload.length];
-            System.arraycopy(packet, 0, newPacket, 0, headerSize);
-            packet = newPacket;
+    public int getPayloadLength() {
+        return Math.max(0, length - getHeaderLength() * 4);
+    }
+
+    /**
+     * Writes the payload to channel at position without copying it. Packet
+     * accessors are all absolute, so the buffer's position and limit are
+     * only used here as scratch state.
+     */
+    public int writePayloadTo(FileChannel channel, long position) throws IOException {
+        int payloadOffset = getPayloadOffset();
+        int payloadLength = getPayloadLength();
+        buffer.clear();
+        buffer.position(payloadOffset).limit(payloadOffset + payloadLength);
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
         }
-        System.arraycopy(payload, 0, packet, headerSize, payload.length);
+        buffer.clear();
+        return payloadLength;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getCapacity() {
+        return capacity;
     }
 
     public byte[] getPacket() {
-        return packet;
+        if (buffer.hasArray() && buffer.arrayOffset() + offset == 0 && buffer.array().length == length) {
+            return buffer.array();
+        }
+        byte[] copy = new byte[length];
+        buffer.get(offset, copy, 0, length);
+        return copy;
     }
 
     public void setPacket(byte[] packet) {
-        this.packet = packet;
+        view(ByteBuffer.wrap(packet), 0, packet.length);
     }
 
     public int getPacketLength() {
-        return packet.length;
+        return length;
+    }
+
+    /**
+     * Zeroes the header and drops the payload so a pooled packet can be rebuilt.
+     */
+    public void clear() {
+        int headerSize = Math.min(Math.max(MIN_HEADER_SIZE, getHeaderLength() * 4), capacity);
+        for (int i = 0; i < headerSize; i++) {
+            put(i, 0);
+        }
+        length = MIN_HEADER_SIZE;
+        setHeaderLength(5);
+    }
+
+    /**
+     * Returns this packet to the pool it came from. No-op for unpooled packets.
+     */
+    public void release() {
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+
+    PacketPool getPool() {
+        return pool;
+    }
+
+    void setPool(PacketPool pool) {
+        this.pool = pool;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= getCapacity()) {
+            return;
+        }
+        if (pool != null) {
+            throw new IllegalStateException("Pooled packet slot too small: " + required + " > " + getCapacity());
+        }
+        ByteBuffer grown = buffer.isDirect() ? ByteBuffer.allocateDirect(required) : ByteBuffer.allocate(required);
+        grown.put(0, buffer, offset, Math.min(length, required));
+        view(grown, 0, length);
     }
 
     public void sendPacket(DataOutputStream out) throws IOException {
-        byte[] packetData = this.getPacket();
-        out.writeInt(packetData.length);
-        out.write(packetData);
-        out.flush();
+        // Stage prefix and body together: writeInt on a socket stream costs one
+        // system call per byte, the whole frame then goes out in a single write
+        if (Constants.CHECKSUM_ENABLED) {
+            updateChecksum();
+        }
+        byte[] frame = scratch(getFrameLength());
+        ByteBuffer.wrap(frame).putInt(0, length);
+        buffer.get(offset, frame, 4, length);
+
+        // Retransmissions come from other threads; keep each frame contiguous
+        synchronized (out) {
+            out.write(frame, 0, getFrameLength());
+            out.flush();
+        }
     }
 
     public static Packet receivePacket(DataInputStream in) throws IOException {
-        int length = in.readInt();
+        int length = readFrameLength(in);
         byte[] packetData = new byte[length];
         in.readFully(packetData);
         return new Packet(packetData);
     }
 
+    /**
+     * Reads the next frame into a packet taken from pool, falling back to a
+     * standalone packet when the frame does not fit a pool slot.
+     */
+    public static Packet receivePacket(DataInputStream in, PacketPool pool) throws IOException {
+        int length = readFrameLength(in);
+        Packet packet = length <= pool.getSlotSize() ? pool.acquire() : new Packet(length);
+        packet.readBody(in, length);
+        return packet;
+    }
+
+    /**
+     * Reads the next frame into this packet, reusing its buffer when it fits.
+     */
+    public Packet readFrom(DataInputStream in) throws IOException {
+        readBody(in, readFrameLength(in));
+        return this;
+    }
+
+    /**
+     * Reads a length prefix, rejecting one no segment can have before anything is allocated for it.
+     */
+    private static int readFrameLength(DataInputStream in) throws IOException {
+        int frameLength = in.readInt();
+        if (frameLength < MIN_HEADER_SIZE || frameLength > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + frameLength);
+        }
+        return frameLength;
+    }
+
+    private void readBody(DataInputStream in, int frameLength) throws IOException {
+        ensureCapacity(frameLength);
+        if (buffer.hasArray()) {
+            in.readFully(buffer.array(), buffer.arrayOffset() + offset, frameLength);
+        } else {
+            byte[] scratch = scratch(frameLength);
+            in.readFully(scratch, 0, frameLength);
+            buffer.put(offset, scratch, 0, frameLength);
+        }
+        length = frameLength;
+    }
+
+    /**
+     * Returns the size of this packet on the wire: length prefix plus packet bytes.
+     */
+    public int getFrameLength() {
+        return 4 + length;
+    }
+
+    /**
+     * Appends this packet's frame, length prefix first, to dst.
+     */
+    public void writeFrame(ByteBuffer dst) {
+        if (Constants.CHECKSUM_ENABLED) {
+            updateChecksum();
+        }
+        dst.putInt(length);
+        dst.put(dst.position(), buffer, offset, length);
+        dst.position(dst.position() + length);
+    }
+
+    /**
+     * Parses the next frame in src into a packet taken from pool. Returns null
+     * and leaves src untouched when the frame has not fully arrived yet.
+     */
+    public static Packet readFrame(ByteBuffer src, PacketPool pool) throws IOException {
+        if (src.remaining() < 4) {
+            return null;
+        }
+        int frameLength = src.getInt(src.position());
+        if (frameLength < MIN_HEADER_SIZE || frameLength > src.capacity() - 4) {
+            throw new IOException("Invalid frame length: " + frameLength);
+        }
+        if (src.remaining() < 4 + frameLength) {
+            return null;
+        }
+
+        Packet packet = frameLength <= pool.getSlotSize() ? pool.acquire() : new Packet(frameLength);
+        packet.ensureCapacity(frameLength);
+        packet.buffer.put(packet.offset, src, src.position() + 4, frameLength);
+        packet.length = frameLength;
+        src.position(src.position() + 4 + frameLength);
+        return packet;
+    }
+
+    private static byte[] scratch(int size) {
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < size) {
+            scratch = new byte[size];
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+
+    /**
+     * Logs the main header fields at DEBUG.
+     */
     public void printPacketInfo() {
-        System.out.println("  Source Port: " + getSourcePort());
-        System.out.println("  Destination Port: " + getDestinationPort());
-        System.out.println("  Sequence Number: " + getSequenceNumber());
-        System.out.println("  ACK Number: " + getAckNumber());
-        System.out.println("  Window Size: " + getWindowSize());
-        System.out.println("  Flags: SYN=" + getSynFlag() +
-                " ACK=" + getAckFlag() +
-                " FIN=" + getFinFlag());
-        System.out.println();
-        System.out.flush();
+        if (Log.DEBUG) {
+            Log.debug("  Source Port: " + getSourcePort() +
+                    "\n  Destination Port: " + getDestinationPort() +
+                    "\n  Sequence Number: " + getSequenceNumber() +
+                    "\n  ACK Number: " + getAckNumber() +
+                    "\n  Window Size: " + getWindowSize() +
+                    "\n  Flags: SYN=" + getSynFlag() +
+                    " ACK=" + getAckFlag() +
+                    " FIN=" + getFinFlag() + "\n");
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of packet views carved out of one shared ByteBuffer (heap or direct).
+ * Each slot holds a full segment, so building, sending and receiving a
+ * segment through a pooled packet allocates nothing. When the pool runs dry
+ * a standalone packet is handed out instead and counted as a miss.
+ */
+public class PacketPool {
+    private final ByteBuffer slab;
+    private final int slotSize;
+    private final ArrayDeque<Packet> free;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public PacketPool(int slots) {
+        this(slots, Packet.MAX_HEADER_SIZE + Constants.MAX_SEGMENT_SIZE, Constants.PACKET_POOL_DIRECT);
+    }
+
+    public PacketPool(int slots, int slotSize, boolean direct) {
+        this.slotSize = slotSize;
+        this.slab = direct ? ByteBuffer.allocateDirect(slots * slotSize) : ByteBuffer.allocate(slots * slotSize);
+        this.free = new ArrayDeque<>(slots);
+
+        for (int i = 0; i < slots; i++) {
+            Packet packet = new Packet(slab, i * slotSize, 0);
+            packet.view(slab, i * slotSize, 0, slotSize);
+            packet.setPool(this);
+            free.push(packet);
+        }
+    }
+
+    /**
+     * Returns an empty packet with a zeroed 20-byte header.
+     */
+    public Packet acquire() {
+        Packet packet;
+        synchronized (free) {
+            packet = free.poll();
+        }
+        if (packet == null) {
+            misses.incrementAndGet();
+            packet = new Packet(new byte[slotSize]);
+        } else {
+            hits.incrementAndGet();
+        }
+        packet.clear();
+        return packet;
+    }
+
+    public void release(Packet packet) {
+        if (packet.getPool() != this) {
+            return;
+        }
+        synchronized (free) {
+            free.push(packet);
+        }
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public int available() {
+        synchronized (free) {
+            return free.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
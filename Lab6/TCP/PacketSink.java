@@ -0,0 +1,9 @@
+import java.io.IOException;
+
+/**
+ * Destination for the packets a connection handler sends back to its client:
+ * a blocking socket stream, or the outbound queue of a selector connection.
+ */
+public interface PacketSink {
+    void send(Packet packet) throws IOException;
+}
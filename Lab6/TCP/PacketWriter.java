@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Batches outgoing frames for one connection. write() stages a frame, length
+ * prefix included, and flush() hands everything staged to the socket in a
+ * single write, so a window burst or a run of ACKs costs one system call
+ * instead of several per segment. Safe to share between threads.
+ */
+public class PacketWriter implements PacketSink {
+    private final OutputStream out;
+    private ByteBuffer buffer;
+    private int lastFrameStart = -1;
+
+    private long framesWritten = 0;
+    private long socketWrites = 0;
+    private long bytesWritten = 0;
+
+    public PacketWriter(OutputStream out) {
+        this(out, Constants.BUFFER_SIZE);
+    }
+
+    public PacketWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Stages a frame; it reaches the socket on the next flush, or earlier if
+     * the buffer fills up.
+     */
+    public synchronized void write(Packet packet) throws IOException {
+        int frameLength = packet.getFrameLength();
+        if (buffer.remaining() < frameLength) {
+            flush();
+            if (buffer.capacity() < frameLength) {
+                buffer = ByteBuffer.allocate(frameLength);
+            }
+        }
+        lastFrameStart = buffer.position();
+        packet.writeFrame(buffer);
+        framesWritten++;
+    }
+
+    /**
+     * Flips one bit in the last byte of the frame just staged, after its
+     * checksum was computed; simulates corruption on the link.
+     */
+    public synchronized void corruptLastFrame() {
+        if (lastFrameStart >= 0 && buffer.position() > lastFrameStart) {
+            int last = buffer.position() - 1;
+            buffer.put(last, (byte) (buffer.get(last) ^ 0x01));
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        out.flush();
+        socketWrites++;
+        bytesWritten += buffer.position();
+        buffer.clear();
+        lastFrameStart = -1;
+    }
+
+    /**
+     * Writes the frame and flushes straight away, for packets that must not wait.
+     */
+    @Override
+    public synchronized void send(Packet packet) throws IOException {
+        write(packet);
+        flush();
+    }
+
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public synchronized long getSocketWrites() {
+        return socketWrites;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Frames: " + framesWritten +
+                " | Socket writes: " + socketWrites +
+                " | Frames per write: " + String.format("%.2f", framesWritten / (double) Math.max(1, socketWrites)) +
+                " | Writes per MB: " + String.format("%.0f", socketWrites * 1048576.0 / Math.max(1, bytesWritten));
+    }
+}
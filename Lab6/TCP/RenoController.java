@@ -0,0 +1,57 @@
+/**
+ * TCP Reno: a triple duplicate ACK halves the window and enters fast
+ * recovery, which ends with the first ACK for new data.
+ */
+public class RenoController extends AbstractCongestionController {
+
+    private long fastRecoverySequence = -1;
+
+    @Override
+    public String getName() {
+        return "RENO";
+    }
+
+    @Override
+    public synchronized void onAck(long ackNum, int ackedBytes, long bytesInFlight) {
+        switch (state) {
+            case SLOW_START:
+                slowStart(ackedBytes);
+                break;
+            case CONGESTION_AVOIDANCE:
+                congestionAvoidance(ackedBytes);
+                break;
+            case FAST_RECOVERY:
+                if (ackNum > fastRecoverySequence) {
+                    congestionWindow = slowStartThreshold;
+                    state = CongestionState.CONGESTION_AVOIDANCE;
+                    bytesSinceLastIncrease = 0;
+                    Log.info("[CONGESTION] Exiting Fast Recovery (TCP Reno)");
+                    Log.info("[CONGESTION] CWND set to ssthresh: " + congestionWindow + " bytes");
+                    emit("EXIT_FAST_RECOVERY");
+                }
+                break;
+        }
+    }
+
+    @Override
+    public synchronized boolean onDupAck(long ackNum, int dupAckCount, long bytesInFlight) {
+        if (dupAckCount < Constants.FAST_RETRANSMIT_THRESHOLD) {
+            return false;
+        }
+
+        if (state != CongestionState.FAST_RECOVERY) {
+            int oldCongestionWindow = congestionWindow;
+            slowStartThreshold = lossThreshold();
+            congestionWindow = slowStartThreshold + 3 * mss;
+            state = CongestionState.FAST_RECOVERY;
+            fastRecoverySequence = ackNum;
+
+            Log.info("[FAST-RETRANSMIT] Entering Fast Recovery (TCP Reno)");
+            Log.info("[FAST-RETRANSMIT] Old CWND: " + oldCongestionWindow + " bytes");
+            Log.info("[FAST-RETRANSMIT] New ssthresh: " + slowStartThreshold + " bytes");
+            Log.info("[FAST-RETRANSMIT] New CWND: " + congestionWindow + " bytes");
+            emit("FAST_RETRANSMIT_RENO");
+        }
+        return true;
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for retransmission timers, keyed by sequence number.
+ * Arming, re-arming and cancelling a timer are O(1); a single worker thread
+ * advances the wheel one tick at a time and fires the timers that expired.
+ */
+public class RetransmissionTimerWheel {
+
+    public interface ExpiryHandler {
+        void onExpire(long seqNum);
+    }
+
+    private static class Timeout {
+        long seqNum;
+        long deadline;
+        long remainingRounds;
+        int bucket = -1;
+        Timeout prev;
+        Timeout next;
+    }
+
+    private final ExpiryHandler handler;
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final Map<Long, Timeout> timers = new HashMap<>();
+    private final long startNanos = System.nanoTime();
+    private long currentTick = 0;
+
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    private final AtomicLong timersArmed = new AtomicLong();
+    private final AtomicLong timersFired = new AtomicLong();
+    private final AtomicLong timersCancelled = new AtomicLong();
+
+    public RetransmissionTimerWheel(ExpiryHandler handler) {
+        this(handler, Constants.TIMER_TICK_MS, Constants.TIMER_WHEEL_SIZE);
+    }
+
+    public RetransmissionTimerWheel(ExpiryHandler handler, long tickMs, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+        this.handler = handler;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.mask = wheelSize - 1;
+        this.buckets = new Timeout[wheelSize];
+
+        this.worker = new Thread(this::run, "retransmission-timer-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Arms the timer for seqNum, replacing any timer already armed for it.
+     */
+    public void arm(long seqNum, long delayMs) {
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+
+        synchronized (this) {
+            Timeout timeout = timers.get(seqNum);
+            if (timeout == null) {
+                timeout = new Timeout();
+                timeout.seqNum = seqNum;
+                timers.put(seqNum, timeout);
+            } else {
+                unlink(timeout);
+            }
+
+            timeout.deadline = System.nanoTime() - startNanos + delayNanos;
+            long expiryTick = Math.max(currentTick, (timeout.deadline + tickNanos - 1) / tickNanos);
+            timeout.remainingRounds = (expiryTick - currentTick) / buckets.length;
+            link(timeout, (int) (expiryTick & mask));
+        }
+        timersArmed.incrementAndGet();
+    }
+
+    /**
+     * Cancels the timer for seqNum. Returns false if none was armed.
+     */
+    public boolean cancel(long seqNum) {
+        synchronized (this) {
+            Timeout timeout = timers.remove(seqNum);
+            if (timeout == null) {
+                return false;
+            }
+            unlink(timeout);
+        }
+        timersCancelled.incrementAndGet();
+        return true;
+    }
+
+    public synchronized int size() {
+        return timers.size();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    public long getTimersArmed() {
+        return timersArmed.get();
+    }
+
+    public long getTimersFired() {
+        return timersFired.get();
+    }
+
+    public long getTimersCancelled() {
+        return timersCancelled.get();
+    }
+
+    private void run() {
+        List<Long> expired = new ArrayList<>();
+
+        while (running) {
+            long nextTickNanos = (currentTick + 1) * tickNanos;
+            long sleepNanos = nextTickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+
+            synchronized (this) {
+                Timeout timeout = buckets[(int) (currentTick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.remainingRounds <= 0) {
+                        unlink(timeout);
+                        timers.remove(timeout.seqNum);
+                        expired.add(timeout.seqNum);
+                    } else {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = next;
+                }
+                currentTick++;
+            }
+
+            for (long seqNum : expired) {
+                timersFired.incrementAndGet();
+                try {
+                    handler.onExpire(seqNum);
+                } catch (RuntimeException e) {
+                    Log.error("[RETRANSMIT-TIMER] Expiry handler failed for seq " + seqNum + ": " + e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.bucket < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+}
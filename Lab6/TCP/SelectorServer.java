@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking server: one acceptor thread hands accepted channels round-robin
+ * to a fixed set of event loops, each multiplexing its connections over a
+ * Selector. Every readable event parses the length-prefixed frames that have
+ * fully arrived and feeds them to the connection's ClientConnectionHandler;
+ * the replies to one batch of frames are staged together and flushed with a
+ * single write.
+ */
+public class SelectorServer {
+
+    // A handshake reply or a few ACKs; grows when a peer stops draining its socket
+    private static final int INITIAL_WRITE_BUFFER = 512;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final Server stats;
+
+    public SelectorServer(int port, int eventLoops, Server stats) {
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        this.stats = stats;
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, stats);
+            Thread thread = new Thread(loops[i], "selector-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), Constants.SERVER_ACCEPT_BACKLOG);
+            Log.info("TCP Server listening on port " + port +
+                    " (selector mode, " + loops.length + " event loops)");
+            stats.listening();
+            if (Constants.LINK_EMULATION_ENABLED) {
+                Log.info("[LINK] Link emulation covers the thread and virtual modes only; " +
+                        "selector connections send straight to the socket");
+            }
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Log.info("Client connected: " + channel.getRemoteAddress());
+
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * A single selector thread and the connections registered with it.
+     */
+    private static class EventLoop implements Runnable {
+        private final int index;
+        private final Server stats;
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Connections the receiver pacer has paused, resumed once their deadline passes
+        private final List<Connection> paused = new ArrayList<>();
+        // Connections holding back a delayed ACK, sent once its deadline passes
+        private final List<Connection> delayedAcks = new ArrayList<>();
+        private final PacketPool packetPool = new PacketPool(Constants.PACKET_POOL_SIZE);
+
+        EventLoop(int index, Server stats) throws IOException {
+            this.index = index;
+            this.stats = stats;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.error("[SELECTOR-" + index + "] Error closing selector: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select(selectTimeoutMs());
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (IOException e) {
+                            Log.error("Error handling client " + connection.handler.getClientId() +
+                                    ": " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+
+                    resumePaused();
+                    fireDelayedAcks();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (selector.isOpen()) {
+                    Log.error("[SELECTOR-" + index + "] Event loop failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    stats.connectionOpened();
+                    Log.info("Handling client " + connection.handler.getClientId() +
+                            " on event loop " + index);
+                } catch (IOException e) {
+                    Log.error("[SELECTOR-" + index + "] Failed to register channel: " + e.getMessage());
+                }
+            }
+        }
+
+        private long selectTimeoutMs() {
+            if (paused.isEmpty() && delayedAcks.isEmpty()) {
+                return 0; // Block until an event arrives
+            }
+            long now = System.nanoTime();
+            long earliest = Long.MAX_VALUE;
+            for (Connection connection : paused) {
+                earliest = Math.min(earliest, connection.resumeAtNanos - now);
+            }
+            for (Connection connection : delayedAcks) {
+                earliest = Math.min(earliest, connection.handler.getAckDeadlineNanos() - now);
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest + 999_999));
+        }
+
+        private void resumePaused() {
+            if (paused.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Connection connection : new ArrayList<>(paused)) {
+                if (now >= connection.resumeAtNanos) {
+                    paused.remove(connection);
+                    try {
+                        connection.resume();
+                    } catch (IOException e) {
+                        Log.error("Error handling client " + connection.handler.getClientId() +
+                                ": " + e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        private void fireDelayedAcks() {
+            if (delayedAcks.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Connection connection : new ArrayList<>(delayedAcks)) {
+                long deadline = connection.handler.getAckDeadlineNanos();
+                if (deadline == 0 || now - deadline >= 0) {
+                    delayedAcks.remove(connection);
+                    connection.ackTimerQueued = false;
+                    try {
+                        connection.handler.onAckTimer();
+                        connection.flush();
+                    } catch (IOException e) {
+                        Log.error("Error handling client " + connection.handler.getClientId() +
+                                ": " + e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-channel state: the protocol handler plus inbound and outbound buffers.
+     */
+    private static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final ClientConnectionHandler handler;
+        private SelectionKey key;
+
+        // Room for several whole frames; partial frames stay here until the rest arrives
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(Constants.BUFFER_SIZE);
+        // Outbound frames staged back to back, kept in write mode between flushes
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_WRITE_BUFFER);
+        private long resumeAtNanos;
+        private boolean ackTimerQueued;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.handler = new ClientConnectionHandler(this::enqueue);
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                handler.onEndOfStream();
+                close();
+                return;
+            }
+            processFrames();
+        }
+
+        /**
+         * Feeds every complete frame to the handler, stopping early when the
+         * receiver pacer asks for a pause.
+         */
+        private void processFrames() throws IOException {
+            readBuffer.flip();
+            try {
+                Packet packet;
+                while (!handler.isClosed() && (packet = Packet.readFrame(readBuffer, loop.packetPool)) != null) {
+                    int payloadLength = handler.onPacket(packet);
+
+                    TokenBucket pacer = handler.getReceiverPacer();
+                    if (pacer != null && payloadLength > 0) {
+                        long waitNanos = pacer.reserve(payloadLength);
+                        if (waitNanos > 0) {
+                            pause(waitNanos);
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                readBuffer.compact();
+            }
+
+            if (handler.getAckDeadlineNanos() != 0 && !ackTimerQueued) {
+                ackTimerQueued = true;
+                loop.delayedAcks.add(this);
+            }
+            flush();
+            if (handler.isClosed() && writeBuffer.position() == 0) {
+                close();
+            }
+        }
+
+        private void pause(long waitNanos) {
+            resumeAtNanos = System.nanoTime() + waitNanos;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            loop.paused.add(this);
+        }
+
+        void resume() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            processFrames();
+        }
+
+        private void enqueue(Packet packet) {
+            if (writeBuffer.remaining() < packet.getFrameLength()) {
+                int capacity = Math.max(2 * writeBuffer.capacity(), writeBuffer.position() + packet.getFrameLength());
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                writeBuffer.flip();
+                grown.put(writeBuffer);
+                writeBuffer = grown;
+            }
+            packet.writeFrame(writeBuffer);
+        }
+
+        void flush() throws IOException {
+            if (writeBuffer.position() > 0) {
+                writeBuffer.flip();
+                try {
+                    channel.write(writeBuffer);
+                } finally {
+                    writeBuffer.compact();
+                }
+                if (writeBuffer.position() > 0) {
+                    // Socket buffer full: wait for OP_WRITE
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (handler.isClosed()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            handler.close();
+            loop.paused.remove(this);
+            loop.delayedAcks.remove(this);
+            loop.stats.connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+                Log.info("Client " + handler.getClientId() + " disconnected");
+            } catch (IOException e) {
+                Log.error("Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
+}
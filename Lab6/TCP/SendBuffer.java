@@ -0,0 +1,160 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retransmission queue holding unacknowledged segments in sequence order.
+ * The lowest unacked segment is always at the head, so a cumulative ACK
+ * only touches the segments it releases, and bytes in flight are kept as
+ * a running counter instead of being recomputed from the whole queue.
+ */
+public class SendBuffer {
+    private final ArrayDeque<UnackedPacket> segments = new ArrayDeque<>();
+    private final Map<Long, UnackedPacket> bySequence = new HashMap<>();
+    private long bytesInFlight = 0;
+
+    // SACK scoreboard: bytes of queued segments the receiver already holds
+    private long sackedBytes = 0;
+    private long highestSacked = -1;
+
+    /**
+     * Appends a newly sent segment. Segments must be added in sequence order.
+     */
+    public synchronized void add(UnackedPacket segment) {
+        UnackedPacket last = segments.peekLast();
+        if (last != null && segment.seqNum < last.endSeqNum()) {
+            throw new IllegalArgumentException("Segment " + segment.seqNum +
+                    " is out of order (last ends at " + last.endSeqNum() + ")");
+        }
+        segments.addLast(segment);
+        bySequence.put(segment.seqNum, segment);
+        bytesInFlight += segment.length;
+    }
+
+    public synchronized UnackedPacket get(long seqNum) {
+        return bySequence.get(seqNum);
+    }
+
+    /**
+     * Returns the lowest unacknowledged segment, or null if nothing is in flight.
+     */
+    public synchronized UnackedPacket first() {
+        return segments.peekFirst();
+    }
+
+    /**
+     * Removes and returns the head segment if it is fully covered by ackNum.
+     * Call repeatedly to release everything a cumulative ACK acknowledges.
+     */
+    public synchronized UnackedPacket pollAcknowledged(long ackNum) {
+        UnackedPacket head = segments.peekFirst();
+        if (head == null || head.endSeqNum() > ackNum) {
+            return null;
+        }
+        segments.pollFirst();
+        bySequence.remove(head.seqNum);
+        bytesInFlight -= head.length;
+        if (head.sacked) {
+            sackedBytes -= head.length;
+        }
+        return head;
+    }
+
+    /**
+     * Drops a segment that will never be acknowledged (e.g. retries exhausted).
+     */
+    public synchronized UnackedPacket remove(long seqNum) {
+        UnackedPacket segment = bySequence.remove(seqNum);
+        if (segment != null) {
+            segments.remove(segment);
+            bytesInFlight -= segment.length;
+            if (segment.sacked) {
+                sackedBytes -= segment.length;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Marks the queued segments inside the SACK block [left, right) as held by
+     * the receiver. Walks only the segments of the block. Returns the number
+     * of bytes newly marked.
+     */
+    public synchronized int markSacked(long left, long right) {
+        int newlySacked = 0;
+        UnackedPacket segment = bySequence.get(left);
+        while (segment != null && segment.endSeqNum() <= right) {
+            if (!segment.sacked) {
+                segment.sacked = true;
+                sackedBytes += segment.length;
+                newlySacked += segment.length;
+            }
+            segment = bySequence.get(segment.endSeqNum());
+        }
+        highestSacked = Math.max(highestSacked, right);
+        return newlySacked;
+    }
+
+    /**
+     * Starts a new recovery episode: every hole may be resent once more, and
+     * the highest SACKed byte is recomputed from the segments still queued,
+     * so nothing from an earlier episode decides which holes are reported.
+     */
+    public synchronized void startRecovery() {
+        highestSacked = -1;
+        for (UnackedPacket segment : segments) {
+            segment.sackRetransmitted = false;
+            if (segment.sacked) {
+                highestSacked = segment.endSeqNum();
+            }
+        }
+    }
+
+    /**
+     * Returns the holes of the scoreboard: segments below the highest SACKed
+     * byte that the receiver is missing and that have not been resent yet.
+     */
+    public synchronized List<UnackedPacket> sackHoles() {
+        List<UnackedPacket> holes = new ArrayList<>();
+        for (UnackedPacket segment : segments) {
+            if (segment.seqNum >= highestSacked) {
+                break;
+            }
+            if (!segment.sacked && !segment.sackRetransmitted) {
+                holes.add(segment);
+            }
+        }
+        return holes;
+    }
+
+    /**
+     * Drops every queued segment, e.g. when a transfer is abandoned, and returns them.
+     */
+    public synchronized List<UnackedPacket> clear() {
+        List<UnackedPacket> dropped = new ArrayList<>(segments);
+        segments.clear();
+        bySequence.clear();
+        bytesInFlight = 0;
+        sackedBytes = 0;
+        highestSacked = -1;
+        return dropped;
+    }
+
+    public synchronized long getSackedBytes() {
+        return sackedBytes;
+    }
+
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    public synchronized int size() {
+        return segments.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+}
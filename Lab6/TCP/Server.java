@@ -1,28 +1,96 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
 
+    private final String mode;
+    // Bounds how many connections are served at once; accept() waits for a free permit
+    private final Semaphore connectionPermits = new Semaphore(Constants.SERVER_MAX_CONNECTIONS);
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final AtomicLong totalConnections = new AtomicLong();
+    // Released once the listening socket is bound, for callers running start() on another thread
+    private final CountDownLatch listening = new CountDownLatch(1);
+
+    public Server() {
+        this(Constants.SERVER_MODE);
+    }
+
+    public Server(String mode) {
+        this.mode = mode;
+    }
+
     public static void main(String[] args) {
 
-        System.setOut(new PrintStream(System.out, true));
         Server server = new Server();
         server.start();
 
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(Constants.SERVER_PORT)) {
-            System.out.println("TCP Server listening on port " + Constants.SERVER_PORT);
+        startStatsReporter();
+        registerMetrics();
+
+        if (mode.equalsIgnoreCase("selector")) {
+            try {
+                new SelectorServer(Constants.SERVER_PORT, Constants.SERVER_EVENT_LOOPS, this).start();
+            } catch (IOException e) {
+                Log.error("Server error: " + e.getMessage());
+            }
+            return;
+        }
+
+        ExecutorService executor = createConnectionExecutor();
+
+        try (ServerSocket serverSocket = new ServerSocket(Constants.SERVER_PORT, Constants.SERVER_ACCEPT_BACKLOG)) {
+            Log.info("TCP Server listening on port " + Constants.SERVER_PORT +
+                    " (" + mode + " mode, max " + Constants.SERVER_MAX_CONNECTIONS + " connections)");
+            listening();
 
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
+                connectionPermits.acquire();
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                    clientSocket.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // Typically out of file descriptors; keep serving the connections we have
+                    connectionPermits.release();
+                    Log.error("Accept failed: " + e.getMessage());
+                    TimeUnit.MILLISECONDS.sleep(100);
+                    continue;
+                }
+                Log.info("Client connected: " + clientSocket.getInetAddress());
 
-                new Thread(() -> handleClient(clientSocket)).start();
+                connectionOpened();
+                executor.execute(() -> {
+                    try {
+                        handleClient(clientSocket);
+                    } finally {
+                        connectionClosed();
+                        connectionPermits.release();
+                    }
+                });
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            Log.error("Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
         }
     }
 
@@ -31,4 +99,114 @@ public class Server {
         ClientConnectionHandler handler = new ClientConnectionHandler(clientSocket);
         handler.handleConnection();
     }
-}
\ No newline at end of file
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getPeakConnections() {
+        return peakConnections.get();
+    }
+
+    public long getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    /**
+     * Waits until the server accepts connections; false if it did not within the timeout.
+     */
+    public boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+        return listening.await(timeout, unit);
+    }
+
+    void listening() {
+        listening.countDown();
+    }
+
+    void connectionOpened() {
+        int active = activeConnections.incrementAndGet();
+        peakConnections.accumulateAndGet(active, Math::max);
+        totalConnections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Runs each connection on its own thread: a virtual thread in "virtual"
+     * mode when the JDK has them (21+), a platform thread otherwise.
+     */
+    private ExecutorService createConnectionExecutor() {
+        if (mode.equalsIgnoreCase("virtual")) {
+            try {
+                // Looked up reflectively so the server still builds and runs on JDK 17
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                Log.info("[SERVER] Running connections on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("[SERVER] Virtual threads are not available on Java " +
+                        Runtime.version().feature() + " - falling back to platform threads");
+            }
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = task -> new Thread(task, "connection-" + threadNumber.incrementAndGet());
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    /**
+     * Connection counters for the metrics endpoint, read when scraped.
+     */
+    private void registerMetrics() {
+        Metrics.gauge("tcp_server_connections_active", "Connections being served", this::getActiveConnections);
+        Metrics.gauge("tcp_server_connections_peak", "Most connections served at once", this::getPeakConnections);
+        Metrics.counterFunction("tcp_server_connections_total", "Connections accepted", this::getTotalConnections);
+    }
+
+    /**
+     * Periodically logs connection counters next to thread count and heap use
+     * (-Dtcp.server.statsIntervalMs, off by default).
+     */
+    private void startStatsReporter() {
+        if (Constants.SERVER_STATS_INTERVAL_MS <= 0) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            Runtime runtime = Runtime.getRuntime();
+            while (true) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(Constants.SERVER_STATS_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+                Log.info("[SERVER-STATS] Active: " + getActiveConnections() +
+                        " | Peak: " + getPeakConnections() +
+                        " | Total: " + getTotalConnections() +
+                        " | Threads: " + ManagementFactory.getThreadMXBean().getThreadCount() +
+                        " | Heap used: " + (heapUsed >> 20) + " MB" +
+                        " | RSS: " + residentSetMegabytes() + " MB");
+            }
+        }, "server-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Resident set size from /proc, which unlike the heap includes thread stacks; -1 off Linux.
+     */
+    private static long residentSetMegabytes() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) >> 10;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+}
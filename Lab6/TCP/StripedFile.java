@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output file of a striped transfer, shared by the connections that each
+ * carry one byte range of it. Every connection writes its range with
+ * positional writes on the same channel, so no stripe waits for another;
+ * the file is complete once the finished ranges add up to its size.
+ * A transfer left without any connection for ABANDONED_AFTER_NANOS is
+ * dropped, as its sender has given up on the missing stripes.
+ */
+public class StripedFile {
+
+    // Long enough for a sender to resend a stripe on a new connection
+    private static final long ABANDONED_AFTER_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    // Transfers in progress by id; guarded by the class lock
+    private static final Map<Long, StripedFile> transfers = new HashMap<>();
+
+    private final long transferId;
+    private final String outputFile;
+    private final long size;
+    private final long startNanos = System.nanoTime();
+
+    private FileChannel channel;
+    private int openStripes = 0;
+    private int stripesReceived = 0;
+    private long bytesReceived = 0;
+    private long idleSinceNanos;
+
+    private StripedFile(long transferId, String outputFile, long size) {
+        this.transferId = transferId;
+        this.outputFile = outputFile;
+        this.size = size;
+    }
+
+    /**
+     * Joins the transfer with this id, creating its output file when the
+     * first stripe arrives. Call finishStripe or release when the stripe ends.
+     */
+    public static StripedFile open(long transferId, String outputFile, long size) throws IOException {
+        synchronized (StripedFile.class) {
+            dropAbandoned();
+            StripedFile file = transfers.get(transferId);
+            if (file == null) {
+                file = new StripedFile(transferId, outputFile, size);
+                transfers.put(transferId, file);
+                Log.info("[STRIPE] Receiving " + outputFile + " (" + size + " bytes, transfer " +
+                        Long.toHexString(transferId) + ")");
+            } else if (file.size != size) {
+                throw new IOException("Stripe of transfer " + Long.toHexString(transferId) + " gives size " +
+                        size + ", expected " + file.size);
+            }
+            if (file.channel == null) {
+                file.channel = FileChannel.open(Paths.get(file.outputFile), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.READ);
+            }
+            file.openStripes++;
+            return file;
+        }
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The shared channel; safe for concurrent positional writes.
+     */
+    public FileChannel channel() {
+        synchronized (StripedFile.class) {
+            return channel;
+        }
+    }
+
+    /**
+     * Records a stripe delivered in full, and closes the file once every byte has arrived.
+     */
+    public void finishStripe(long bytes) {
+        synchronized (StripedFile.class) {
+            stripesReceived++;
+            bytesReceived += bytes;
+            if (bytesReceived >= size) {
+                complete();
+            } else {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Leaves the transfer without counting the stripe, e.g. when its connection
+     * drops. Progress is kept, so the stripe can be sent again on a new
+     * connection (StripedTransfer retries it); if none joins within
+     * ABANDONED_AFTER_NANOS of the last one leaving, the transfer is dropped.
+     */
+    public void release() {
+        synchronized (StripedFile.class) {
+            openStripes--;
+            if (openStripes == 0) {
+                idleSinceNanos = System.nanoTime();
+                if (channel != null) {
+                    closeChannel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets transfers that have had no connection for ABANDONED_AFTER_NANOS.
+     * Called with the class lock held.
+     */
+    private static void dropAbandoned() {
+        long now = System.nanoTime();
+        transfers.values().removeIf(file -> {
+            if (file.openStripes > 0 || now - file.idleSinceNanos < ABANDONED_AFTER_NANOS) {
+                return false;
+            }
+            Log.warn("[STRIPE] Dropping abandoned transfer " + Long.toHexString(file.transferId) + " of " +
+                    file.outputFile + " (" + file.bytesReceived + " of " + file.size + " bytes in " +
+                    file.stripesReceived + " stripes)");
+            return true;
+        });
+    }
+
+    private void complete() {
+        openStripes--;
+        transfers.remove(transferId);
+        try {
+            channel.truncate(size);
+            channel.force(false);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            Log.info("[STRIPE] File saved as: " + outputFile + " (" + size + " bytes from " +
+                    stripesReceived + " stripes in " + elapsedMs + " ms)");
+        } catch (IOException e) {
+            Log.error("Error saving striped file: " + e.getMessage());
+        }
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("Error closing striped file: " + e.getMessage());
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Sends one file as byte ranges over several connections at once. Each
+ * connection is a full Client with its own congestion window and RTT
+ * estimate, so a loss only slows the stripe it hit; the server writes every
+ * stripe at its offset of one output file (StripedFile).
+ *
+ * Run as a tool it reports aggregate throughput for each stream count and
+ * loss rate, against a running server:
+ *
+ * Usage: java StripedTransfer [file] [streams,...] [lossRates,...] [algorithm]
+ * e.g.   java StripedTransfer big.bin 1,2,4,8 0,0.01,0.05
+ */
+public class StripedTransfer {
+    private static final int STRIPE_ATTEMPTS = 3;
+
+    private final Supplier<CongestionController> controllers;
+    private final int streams;
+    private double packetLossRate = Constants.PACKET_LOSS_RATE;
+
+    public StripedTransfer(String algorithm, int streams) {
+        this(() -> CongestionController.create(algorithm), streams);
+    }
+
+    public StripedTransfer(Supplier<CongestionController> controllers, int streams) {
+        if (streams < 1) {
+            throw new IllegalArgumentException("Need at least one stream: " + streams);
+        }
+        this.controllers = controllers;
+        this.streams = streams;
+    }
+
+    public void setPacketLossRate(double packetLossRate) {
+        this.packetLossRate = packetLossRate;
+    }
+
+    /**
+     * Sends the file and returns once every stripe is acknowledged. A stripe
+     * whose connection fails is sent again on a new one, up to STRIPE_ATTEMPTS
+     * times in all. Returns false if any stripe could not be delivered.
+     */
+    public boolean send(Path path) throws IOException, InterruptedException {
+        long size = Files.size(path);
+        List<Client> clients = new ArrayList<>(streams);
+        ExecutorService executor = null;
+        try {
+            for (int i = 0; i < streams; i++) {
+                clients.add(openClient());
+            }
+            // Whole segments of the negotiated MSS per stripe, so only the last stripe ends in a short segment
+            int segmentSize = clients.stream().mapToInt(Client::getMss).min().getAsInt();
+            long segments = Math.max(1, (size + segmentSize - 1) / segmentSize);
+            int stripes = (int) Math.min(streams, segments);
+            long stripeSize = (segments + stripes - 1) / stripes * segmentSize;
+            long transferId = ThreadLocalRandom.current().nextLong();
+            while (clients.size() > stripes) {
+                clients.remove(clients.size() - 1).close();
+            }
+
+            executor = Executors.newFixedThreadPool(stripes);
+            List<Future<Boolean>> results = new ArrayList<>(stripes);
+            for (int i = 0; i < stripes; i++) {
+                Client client = clients.get(i);
+                long offset = Math.min(size, i * stripeSize);
+                long length = Math.min(stripeSize, size - offset);
+                results.add(executor.submit(() -> sendStripe(client, path, transferId, offset, length)));
+            }
+            // The stripes own their connections from here on
+            clients.clear();
+
+            boolean delivered = true;
+            for (Future<Boolean> result : results) {
+                try {
+                    delivered &= result.get();
+                } catch (ExecutionException e) {
+                    Log.error("[STRIPE] Stripe failed: " + e.getCause());
+                    delivered = false;
+                }
+            }
+            return delivered;
+        } finally {
+            clients.forEach(Client::close);
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private Client openClient() throws IOException {
+        Client client = new Client(controllers.get());
+        client.setPacketLossRate(packetLossRate);
+        try {
+            client.open();
+        } catch (IOException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    /**
+     * Sends one stripe on client, then on fresh connections while attempts
+     * remain. The server keeps a transfer's finished stripes while one is resent.
+     */
+    private boolean sendStripe(Client client, Path path, long transferId, long offset, long length)
+            throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (client == null) {
+                    client = openClient();
+                }
+                if (client.sendStripe(path, transferId, offset, length)) {
+                    return true;
+                }
+                Log.warn("[STRIPE] Stripe at offset " + offset + " was not delivered (attempt " + attempt + ")");
+            } catch (IOException e) {
+                Log.warn("[STRIPE] Stripe at offset " + offset + " failed (attempt " + attempt + "): " +
+                        e.getMessage());
+            } finally {
+                if (client != null) {
+                    client.close();
+                    client = null;
+                }
+            }
+            if (attempt == STRIPE_ATTEMPTS) {
+                Log.error("[STRIPE] Giving up on the stripe at offset " + offset + " after " + attempt + " attempts");
+                return false;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Before Constants loads: keep the report readable unless -Dtcp.log.level asks for more
+        if (System.getProperty("tcp.log.level") == null) {
+            System.setProperty("tcp.log.level", "warn");
+        }
+        Path path = Paths.get(args.length > 0 ? args[0] : Constants.FILE_PATH);
+        int[] streamCounts = parseInts(args.length > 1 ? args[1] : "1,2,4,8");
+        double[] lossRates = parseDoubles(args.length > 2 ? args[2] : String.valueOf(Constants.PACKET_LOSS_RATE));
+        String algorithm = args.length > 3 ? args[3] : Constants.CONGESTION_CONTROL;
+
+        long size = Files.size(path);
+        System.out.println("[STRIPE] " + path + " (" + size + " bytes) with " + algorithm);
+        System.out.println(String.format("%8s %8s %10s %12s %8s", "streams", "loss", "elapsed_ms", "MB/s", "ok"));
+        for (double lossRate : lossRates) {
+            for (int streams : streamCounts) {
+                StripedTransfer transfer = new StripedTransfer(algorithm, streams);
+                transfer.setPacketLossRate(lossRate);
+                long start = System.nanoTime();
+                boolean delivered = transfer.send(path);
+                long elapsedNanos = System.nanoTime() - start;
+                double throughput = size / (elapsedNanos / 1e9) / (1 << 20);
+                System.out.println(String.format("%8d %8.3f %10d %12.2f %8s", streams, lossRate,
+                        TimeUnit.NANOSECONDS.toMillis(elapsedNanos), throughput, delivered ? "yes" : "NO"));
+            }
+        }
+    }
+
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static double[] parseDoubles(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+}
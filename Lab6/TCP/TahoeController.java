@@ -0,0 +1,40 @@
+/**
+ * TCP Tahoe: a triple duplicate ACK is handled like a timeout, so every loss
+ * sends the connection back to slow start. There is no fast recovery.
+ */
+public class TahoeController extends AbstractCongestionController {
+
+    @Override
+    public String getName() {
+        return "TAHOE";
+    }
+
+    @Override
+    public synchronized void onAck(long ackNum, int ackedBytes, long bytesInFlight) {
+        if (state == CongestionState.SLOW_START) {
+            slowStart(ackedBytes);
+        } else {
+            congestionAvoidance(ackedBytes);
+        }
+    }
+
+    @Override
+    public synchronized boolean onDupAck(long ackNum, int dupAckCount, long bytesInFlight) {
+        if (dupAckCount < Constants.FAST_RETRANSMIT_THRESHOLD) {
+            return false;
+        }
+
+        int oldCongestionWindow = congestionWindow;
+        slowStartThreshold = lossThreshold();
+        congestionWindow = mss;
+        state = CongestionState.SLOW_START;
+        bytesSinceLastIncrease = 0;
+
+        Log.info("[FAST-RETRANSMIT] TCP Tahoe - Resetting to Slow Start");
+        Log.info("[FAST-RETRANSMIT] Old CWND: " + oldCongestionWindow + " bytes");
+        Log.info("[FAST-RETRANSMIT] New ssthresh: " + slowStartThreshold + " bytes");
+        Log.info("[FAST-RETRANSMIT] New CWND: " + congestionWindow + " bytes");
+        emit("FAST_RETRANSMIT_TAHOE");
+        return true;
+    }
+}
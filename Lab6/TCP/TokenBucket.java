@@ -0,0 +1,71 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket rate limiter measured in bytes. Tokens refill continuously at
+ * the configured rate up to the burst size; taking more than is available
+ * puts the bucket into debt, and the caller waits until the debt is repaid.
+ */
+public class TokenBucket {
+    private long bytesPerSecond;
+    private final long burstBytes;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = Math.max(1, burstBytes);
+        this.tokens = this.burstBytes;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes bytes from the bucket without blocking and returns how many
+     * nanoseconds the caller should wait before using them.
+     */
+    public synchronized long reserve(int bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+    }
+
+    /**
+     * Takes bytes from the bucket, blocking until the rate allows them.
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long deadline = System.nanoTime() + reserve(bytes);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Changes the refill rate; tokens already accrued are kept.
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        if (bytesPerSecond != this.bytesPerSecond) {
+            reserve(0);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return bytesPerSecond + " B/s (burst " + burstBytes + " bytes)";
+    }
+}
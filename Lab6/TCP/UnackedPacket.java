@@ -1,16 +1,28 @@
 /**
- * Class to track unacknowledged packets for reliable data transfer
+ * Class to track unacknowledged packets for reliable data transfer.
+ * Only the segment's position is kept; its bytes are reread from the
+ * file source when it has to be retransmitted.
  */
 public class UnackedPacket {
-    Packet packet;
+    final long seqNum;
+    final int length;
     long timestamp;
     long sendTime;
     int retryCount;
+    boolean timeoutProcessed;
+    boolean sacked;
+    boolean sackRetransmitted;
 
-    UnackedPacket(Packet packet) {
-        this.packet = packet;
+    UnackedPacket(long seqNum, int length) {
+        this.seqNum = seqNum;
+        this.length = length;
         this.timestamp = System.currentTimeMillis();
         this.sendTime = System.currentTimeMillis();
         this.retryCount = 0;
+        this.timeoutProcessed = false;
+    }
+
+    long endSeqNum() {
+        return seqNum + length;
     }
 }
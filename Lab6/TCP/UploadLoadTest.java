@@ -0,0 +1,156 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loopback load generator for the server.
+ * <ol>
+ * <li>Opens every connection and completes its handshake.</li>
+ * <li>Holds all of them open at the same time.</li>
+ * <li>Uploads a small payload on each, then closes it.</li>
+ * </ol>
+ * Start the server with -Dtcp.server.statsIntervalMs=1000 and compare the
+ * [SERVER-STATS] threads and RSS across the thread, virtual and selector modes.
+ * Uploads are stop-and-wait, so each segment waits out the server's delayed
+ * ACK; add -Dtcp.ack.delayMs=0 on the server when timing the upload phase.
+ *
+ * Usage: java UploadLoadTest [connections] [bytesPerUpload] [workers] [holdMs]
+ */
+public class UploadLoadTest {
+
+    private static class Upload {
+        final ConnectionManager connectionManager = new ConnectionManager();
+        Socket socket;
+        DataInputStream in;
+        DataOutputStream out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Before Constants loads: keep the report readable unless -Dtcp.log.level asks for more
+        if (System.getProperty("tcp.log.level") == null) {
+            System.setProperty("tcp.log.level", "warn");
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int bytesPerUpload = args.length > 1 ? Integer.parseInt(args[1]) : 4 * Constants.MAX_SEGMENT_SIZE;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        long holdMs = args.length > 3 ? Long.parseLong(args[3]) : 3000;
+
+        System.out.println("[LOAD] Opening " + connections + " connections (" + workers + " workers)");
+        List<Upload> uploads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            uploads.add(new Upload());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        AtomicInteger connected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+
+        long start = System.nanoTime();
+        runAll(pool, uploads, upload -> {
+            upload.socket = upload.connectionManager.connect();
+            upload.in = new DataInputStream(upload.socket.getInputStream());
+            upload.out = new DataOutputStream(upload.socket.getOutputStream());
+            int done = connected.incrementAndGet();
+            if (done % 1000 == 0) {
+                System.out.println("[LOAD]   " + done + " connections established");
+            }
+        }, failed);
+        long connectMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("[LOAD] " + connected.get() + " concurrent connections open after " + connectMs +
+                " ms (" + failed.get() + " failed); holding for " + holdMs + " ms");
+        Thread.sleep(holdMs);
+
+        byte[] payload = new byte[Constants.MAX_SEGMENT_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+
+        AtomicInteger completed = new AtomicInteger();
+        start = System.nanoTime();
+        runAll(pool, uploads, upload -> {
+            if (upload.socket == null) {
+                return;
+            }
+            try {
+                sendPayload(upload, payload, bytesPerUpload);
+                upload.connectionManager.closeConnection(upload.in, upload.out);
+                completed.incrementAndGet();
+            } finally {
+                upload.socket.close();
+            }
+        }, failed);
+        long uploadMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        pool.shutdown();
+
+        System.out.println("[LOAD] Uploads completed: " + completed.get() + "/" + connections +
+                " | Failures: " + failed.get() +
+                " | Upload phase: " + uploadMs + " ms" +
+                " | " + String.format("%.0f", completed.get() * 1000.0 / Math.max(1, uploadMs)) + " uploads/s");
+    }
+
+    private interface UploadStep {
+        void run(Upload upload) throws IOException;
+    }
+
+    private static void runAll(ExecutorService pool, List<Upload> uploads, UploadStep step,
+            AtomicInteger failed) throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<>(uploads.size());
+        for (Upload upload : uploads) {
+            futures.add(pool.submit(() -> {
+                try {
+                    step.run(upload);
+                } catch (IOException e) {
+                    if (failed.incrementAndGet() <= 10) {
+                        Log.warn("[LOAD] Upload failed: " + e);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (java.util.concurrent.ExecutionException e) {
+                Log.error("[LOAD] Worker failed: " + e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Sends the payload stop-and-wait: one segment, then its cumulative ACK.
+     */
+    private static void sendPayload(Upload upload, byte[] payload, int bytes) throws IOException {
+        ConnectionManager connectionManager = upload.connectionManager;
+        Packet packet = new Packet();
+        int sent = 0;
+        while (sent < bytes) {
+            int length = Math.min(payload.length, bytes - sent);
+            long seqNum = connectionManager.getSequenceNumber();
+
+            packet.clear();
+            packet.setSourcePort(Constants.CLIENT_PORT);
+            packet.setDestinationPort(Constants.SERVER_PORT);
+            packet.setSequenceNumber(seqNum);
+            packet.setAckNumber(connectionManager.getAckNumber());
+            packet.setAckFlag(true);
+            packet.setPshFlag(true);
+            packet.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+            packet.setPayload(payload, 0, length);
+            packet.sendPacket(upload.out);
+
+            Packet ack = Packet.receivePacket(upload.in);
+            if (Packet.unwrapSequence(ack.getAckNumber(), seqNum) != seqNum + length) {
+                throw new IOException("Unexpected ACK " + ack.getAckNumber() + " for seq " + seqNum);
+            }
+            connectionManager.setSequenceNumber(seqNum + length);
+            sent += length;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import tcpbench.Workloads;
+
+/**
+ * A Client with no socket whose window is full of unacknowledged segments;
+ * each operation acknowledges the oldest segment and sends one more, so the
+ * window stays the same size (see tcpbench.Workloads).
+ */
+public class AckProcessingWorkload implements Workloads.AckProcessing {
+    private static final int SEGMENT = Constants.MAX_SEGMENT_SIZE;
+
+    private Client client;
+    private long nextAck;
+    private long nextSequence;
+
+    @Override
+    public void setUp(int windowBytes) {
+        client = new Client(CongestionController.create("reno"));
+        long initialSequence = 1_000_000;
+        client.openDetached(initialSequence);
+        nextSequence = initialSequence;
+        for (int sent = 0; sent + SEGMENT <= Math.max(windowBytes, SEGMENT); sent += SEGMENT) {
+            client.trackSentSegment(nextSequence, SEGMENT);
+            nextSequence += SEGMENT;
+        }
+        nextAck = initialSequence + SEGMENT;
+    }
+
+    @Override
+    public int ackOneSegment() {
+        int acked = client.processAck(nextAck, -1);
+        nextAck += SEGMENT;
+        client.trackSentSegment(nextSequence, SEGMENT);
+        nextSequence += SEGMENT;
+        return acked;
+    }
+
+    @Override
+    public void tearDown() {
+        client.stopDetached();
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import tcpbench.Workloads;
+
+/**
+ * One data segment framed through the stream paths (sendPacket, receivePacket,
+ * readFrom) and the buffer paths of the selector server (writeFrame,
+ * readFrame), all in memory (see tcpbench.Workloads).
+ */
+public class FramingWorkload implements Workloads.Framing {
+
+    /** Keeps the last frame written, like a socket stream that never blocks. */
+    private static final class FrameSink extends OutputStream {
+        private final byte[] bytes = new byte[Packet.MAX_HEADER_SIZE + 4 + 64 * 1024];
+        private int length = 0;
+
+        @Override
+        public void write(int b) {
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, bytes, length, len);
+            length += len;
+        }
+
+        int reset() {
+            int written = length;
+            length = 0;
+            return written;
+        }
+    }
+
+    private Packet segment;
+    private final FrameSink sink = new FrameSink();
+    private final DataOutputStream out = new DataOutputStream(sink);
+    private ByteArrayInputStream frameBytes;
+    private DataInputStream in;
+    private final PacketPool pool = new PacketPool(4, Packet.MAX_HEADER_SIZE + 64 * 1024, false);
+    private final Packet reused = new Packet(Packet.MAX_HEADER_SIZE);
+    private ByteBuffer frameBuffer;
+    private ByteBuffer encodeBuffer;
+
+    @Override
+    public void setUp(int payloadSize) throws Exception {
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        segment = new Packet(Packet.MAX_HEADER_SIZE + payloadSize);
+        segment.clear();
+        segment.setSourcePort(Constants.CLIENT_PORT);
+        segment.setDestinationPort(Constants.SERVER_PORT);
+        segment.setSequenceNumber(1000);
+        segment.setAckNumber(2000);
+        segment.setAckFlag(true);
+        segment.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        segment.addTimestampsOption(1, 2);
+        segment.setPayload(payload, 0, payloadSize);
+
+        segment.sendPacket(out);
+        byte[] frame = new byte[sink.length];
+        System.arraycopy(sink.bytes, 0, frame, 0, frame.length);
+        sink.reset();
+        frameBytes = new ByteArrayInputStream(frame);
+        in = new DataInputStream(frameBytes);
+        frameBuffer = ByteBuffer.wrap(frame);
+        encodeBuffer = ByteBuffer.allocate(frame.length);
+    }
+
+    @Override
+    public int sendPacket() throws Exception {
+        segment.sendPacket(out);
+        return sink.reset();
+    }
+
+    @Override
+    public int receivePacket() throws Exception {
+        frameBytes.reset();
+        return Packet.receivePacket(in).getPacketLength();
+    }
+
+    @Override
+    public int receivePooled() throws Exception {
+        frameBytes.reset();
+        Packet packet = Packet.receivePacket(in, pool);
+        int length = packet.getPacketLength();
+        packet.release();
+        return length;
+    }
+
+    @Override
+    public int readInto() throws Exception {
+        frameBytes.reset();
+        return reused.readFrom(in).getPacketLength();
+    }
+
+    @Override
+    public int writeFrame() {
+        encodeBuffer.clear();
+        segment.writeFrame(encodeBuffer);
+        return encodeBuffer.position();
+    }
+
+    @Override
+    public int readFrame() throws Exception {
+        frameBuffer.clear();
+        Packet packet = Packet.readFrame(frameBuffer, pool);
+        int length = packet.getPacketLength();
+        packet.release();
+        return length;
+    }
+}
@@ -0,0 +1,53 @@
+import tcpbench.Workloads;
+
+/**
+ * Header field writes and reads on one reused Packet (see tcpbench.Workloads).
+ */
+public class PacketHeaderWorkload implements Workloads.PacketHeaders {
+    private final Packet packet = new Packet(Packet.MAX_HEADER_SIZE + Constants.MAX_SEGMENT_SIZE);
+
+    public PacketHeaderWorkload() {
+        packet.clear();
+        setFields(1);
+    }
+
+    @Override
+    public long setFields(long sequence) {
+        packet.setSourcePort(Constants.CLIENT_PORT);
+        packet.setDestinationPort(Constants.SERVER_PORT);
+        packet.setSequenceNumber(sequence);
+        packet.setAckNumber(sequence + 1);
+        packet.setAckFlag(true);
+        packet.setPshFlag(true);
+        packet.setSynFlag(false);
+        packet.setFinFlag(false);
+        packet.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        packet.setUrgentPointer(0);
+        return packet.getSequenceNumber();
+    }
+
+    @Override
+    public long getFields() {
+        long sum = packet.getSourcePort() + packet.getDestinationPort();
+        sum += packet.getSequenceNumber() + packet.getAckNumber();
+        sum += packet.getHeaderLength() + packet.getWindowSize() + packet.getChecksum();
+        if (packet.getAckFlag()) {
+            sum++;
+        }
+        if (packet.getPshFlag()) {
+            sum++;
+        }
+        if (packet.getSynFlag() || packet.getFinFlag() || packet.getRstFlag() || packet.getUrgFlag()) {
+            sum--;
+        }
+        return sum;
+    }
+
+    @Override
+    public long addAndParseOptions(long tsVal) {
+        packet.clear();
+        packet.addTimestampsOption(tsVal, tsVal - 1);
+        packet.addSackOption(new long[] { tsVal, tsVal + 730 }, 1);
+        return packet.getTimestampValue() + packet.getTimestampEcho() + packet.getSackLeftEdge(0);
+    }
+}
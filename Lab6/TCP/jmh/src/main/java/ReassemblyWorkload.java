@@ -0,0 +1,112 @@
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import tcpbench.Workloads;
+
+/**
+ * A server-side ClientConnectionHandler past its handshake, fed one receive
+ * window of segments per operation: in order, with the first segment
+ * arriving last, or entirely reversed. Data goes to /dev/null, so the time
+ * is the handler's bookkeeping, ACKs and write calls (see tcpbench.Workloads).
+ */
+public class ReassemblyWorkload implements Workloads.Reassembly {
+    private static final int SEGMENT = Constants.MAX_SEGMENT_SIZE;
+
+    private ClientConnectionHandler handler;
+    private Packet[] window;
+    private long nextSequence;
+    private long serverSequence;
+
+    @Override
+    public void setUp(int windowSegments) throws Exception {
+        handler = new ClientConnectionHandler(packet -> {
+            if (packet.getSynFlag()) {
+                serverSequence = packet.getSequenceNumber();
+            }
+        });
+        long clientSequence = 5_000;
+
+        Packet syn = new Packet();
+        syn.setSequenceNumber(clientSequence);
+        syn.setSynFlag(true);
+        syn.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        syn.addMssOption(SEGMENT);
+        syn.addWindowScaleOption(0);
+        handler.onPacket(checksummed(syn));
+
+        Packet ack = new Packet();
+        ack.setSequenceNumber(clientSequence + 1);
+        ack.setAckNumber(serverSequence + 1);
+        ack.setAckFlag(true);
+        ack.setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+        handler.onPacket(checksummed(ack));
+
+        handler.setOutputChannel(FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE));
+        nextSequence = clientSequence + 1;
+
+        byte[] payload = new byte[SEGMENT];
+        window = new Packet[windowSegments];
+        for (int i = 0; i < windowSegments; i++) {
+            window[i] = new Packet(Packet.MAX_HEADER_SIZE + SEGMENT);
+            window[i].clear();
+            window[i].setSourcePort(Constants.CLIENT_PORT);
+            window[i].setDestinationPort(Constants.SERVER_PORT);
+            window[i].setAckNumber(serverSequence + 1);
+            window[i].setAckFlag(true);
+            window[i].setWindowSize(Constants.CLIENT_WINDOW_SIZE);
+            window[i].setPayload(payload, 0, SEGMENT);
+        }
+    }
+
+    @Override
+    public int inOrderWindow() throws Exception {
+        int consumed = 0;
+        for (int i = 0; i < window.length; i++) {
+            consumed += deliver(i);
+        }
+        return finishWindow(consumed);
+    }
+
+    @Override
+    public int firstSegmentLateWindow() throws Exception {
+        int consumed = 0;
+        for (int i = 1; i < window.length; i++) {
+            consumed += deliver(i);
+        }
+        consumed += deliver(0);
+        return finishWindow(consumed);
+    }
+
+    @Override
+    public int reversedWindow() throws Exception {
+        int consumed = 0;
+        for (int i = window.length - 1; i >= 0; i--) {
+            consumed += deliver(i);
+        }
+        return finishWindow(consumed);
+    }
+
+    @Override
+    public void tearDown() {
+        handler.close();
+    }
+
+    private int deliver(int index) throws Exception {
+        Packet segment = window[index];
+        segment.setSequenceNumber(nextSequence + (long) index * SEGMENT);
+        return handler.onPacket(checksummed(segment));
+    }
+
+    private int finishWindow(int consumed) {
+        nextSequence += (long) window.length * SEGMENT;
+        return consumed;
+    }
+
+    private static Packet checksummed(Packet packet) {
+        if (Constants.CHECKSUM_ENABLED) {
+            packet.updateChecksum();
+        }
+        return packet;
+    }
+}
@@ -0,0 +1,53 @@
+package tcpbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The sender's per-ACK work - removing the acknowledged segment from the
+ * unacked queue, cancelling its retransmission timer, the RTT sample and the
+ * congestion window update - plus tracking the segment sent in its place.
+ * The window sizes run from a few segments to 16 MB of data in flight, so a
+ * cost that grows with the window shows up as a rising line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AckProcessingBenchmark {
+
+    @Param({ "4096", "65536", "1048576", "16777216" })
+    public int windowBytes;
+
+    private Workloads.AckProcessing sender;
+
+    @Setup
+    public void setUp() {
+        sender = Workloads.load("AckProcessingWorkload", Workloads.AckProcessing.class);
+        sender.setUp(windowBytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.tearDown();
+    }
+
+    @Benchmark
+    public int ackOneSegment() {
+        return sender.ackOneSegment();
+    }
+}
@@ -0,0 +1,72 @@
+package tcpbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A segment's trip through the length-prefixed framing, in memory: the
+ * stream paths the Client and the threaded server use, and the ByteBuffer
+ * paths of the selector server. Checksums stay on, as in a default run, so
+ * the send paths include computing one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    /** An ACK-sized and a full (MSS) segment. */
+    @Param({ "64", "730" })
+    public int payloadSize;
+
+    private Workloads.Framing framing;
+
+    @Setup
+    public void setUp() throws Exception {
+        framing = Workloads.load("FramingWorkload", Workloads.Framing.class);
+        framing.setUp(payloadSize);
+    }
+
+    @Benchmark
+    public int sendPacket() throws Exception {
+        return framing.sendPacket();
+    }
+
+    @Benchmark
+    public int receivePacket() throws Exception {
+        return framing.receivePacket();
+    }
+
+    @Benchmark
+    public int receivePooled() throws Exception {
+        return framing.receivePooled();
+    }
+
+    @Benchmark
+    public int readInto() throws Exception {
+        return framing.readInto();
+    }
+
+    @Benchmark
+    public int writeFrame() {
+        return framing.writeFrame();
+    }
+
+    @Benchmark
+    public int readFrame() throws Exception {
+        return framing.readFrame();
+    }
+}
@@ -0,0 +1,49 @@
+package tcpbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header encode and decode on one Packet: the fixed fields, and the
+ * timestamp and SACK options every data segment and ACK carries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketHeaderBenchmark {
+    private Workloads.PacketHeaders packet;
+    private long sequence;
+
+    @Setup
+    public void setUp() {
+        packet = Workloads.load("PacketHeaderWorkload", Workloads.PacketHeaders.class);
+    }
+
+    @Benchmark
+    public long setFields() {
+        return packet.setFields(sequence += 730);
+    }
+
+    @Benchmark
+    public long getFields() {
+        return packet.getFields();
+    }
+
+    @Benchmark
+    public long addAndParseOptions() {
+        return packet.addAndParseOptions(++sequence);
+    }
+}
@@ -0,0 +1,62 @@
+package tcpbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The receiver's work per segment for a window delivered in order, with its
+ * first segment late (everything else waits in the out-of-order buffer), and
+ * fully reversed. Scores are per window, so divide by windowSegments for the
+ * cost of one segment; payloads go to /dev/null.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark {
+
+    @Param({ "16", "64", "256" })
+    public int windowSegments;
+
+    private Workloads.Reassembly receiver;
+
+    @Setup
+    public void setUp() throws Exception {
+        receiver = Workloads.load("ReassemblyWorkload", Workloads.Reassembly.class);
+        receiver.setUp(windowSegments);
+    }
+
+    @TearDown
+    public void tearDown() {
+        receiver.tearDown();
+    }
+
+    @Benchmark
+    public int inOrder() throws Exception {
+        return receiver.inOrderWindow();
+    }
+
+    @Benchmark
+    public int firstSegmentLate() throws Exception {
+        return receiver.firstSegmentLateWindow();
+    }
+
+    @Benchmark
+    public int reversed() throws Exception {
+        return receiver.reversedWindow();
+    }
+}
@@ -0,0 +1,72 @@
+package tcpbench;
+
+/**
+ * The operations the benchmarks time. JMH only accepts benchmarks in a named
+ * package, and a named package cannot refer to the stack's classes in the
+ * unnamed one, so each workload is implemented by a class in the unnamed
+ * package (next to this one in src/main/java) and loaded by name once per
+ * trial. Calls through these interfaces have a single implementation each
+ * and are inlined by the JIT.
+ */
+public final class Workloads {
+
+    private Workloads() {
+        throw new UnsupportedOperationException("Namespace for the workload interfaces");
+    }
+
+    /** One Packet reused for header writes and reads. */
+    public interface PacketHeaders {
+        long setFields(long sequence);
+
+        long getFields();
+
+        long addAndParseOptions(long tsVal);
+    }
+
+    /** Frames of one segment written to and read from in-memory streams and buffers. */
+    public interface Framing {
+        void setUp(int payloadSize) throws Exception;
+
+        int sendPacket() throws Exception;
+
+        int receivePacket() throws Exception;
+
+        int receivePooled() throws Exception;
+
+        int readInto() throws Exception;
+
+        int writeFrame();
+
+        int readFrame() throws Exception;
+    }
+
+    /** A detached Client with a full window of unacknowledged segments. */
+    public interface AckProcessing {
+        void setUp(int windowBytes);
+
+        int ackOneSegment();
+
+        void tearDown();
+    }
+
+    /** A server-side connection handler fed windows of segments. */
+    public interface Reassembly {
+        void setUp(int windowSegments) throws Exception;
+
+        int inOrderWindow() throws Exception;
+
+        int firstSegmentLateWindow() throws Exception;
+
+        int reversedWindow() throws Exception;
+
+        void tearDown();
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load workload " + className, e);
+        }
+    }
+}